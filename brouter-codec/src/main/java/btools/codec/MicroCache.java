@@ -79,7 +79,7 @@ public class MicroCache extends ByteDataWriter
     return size;
   }
 
-  public final int getDataSize()
+  public int getDataSize()
   {
     return ab == null ? 0 : ab.length;
   }
@@ -142,7 +142,7 @@ public class MicroCache extends ByteDataWriter
     return n > 0 ? fapos[n - 1] & 0x7fffffff : 0;
   }
 
-  public final int collect( int threshold )
+  public int collect( int threshold )
   {
     if ( delcount <= threshold )
     {
@@ -513,6 +513,7 @@ public final class MicroCache2 extends MicroCache
       }
       if ( pass == 3 )
       {
+        bc.mergeBitStats();
         return bc.closeAndGetEncodedLength();
       }
     }
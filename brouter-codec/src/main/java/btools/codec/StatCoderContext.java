@@ -1,5 +1,6 @@
 package btools.codec;
 
+import java.nio.ByteBuffer;
 import java.util.TreeMap;
 
 import btools.util.BitCoderContext;
@@ -7,6 +8,7 @@ import btools.util.BitCoderContext;
 public final class StatCoderContext extends BitCoderContext
 {
   private static TreeMap<String, long[]> statsPerName;
+  private TreeMap<String, long[]> localStats; // merged by mergeBitStats, so encoders don't share a lock
   private long lastbitpos = 0;
 
 
@@ -34,36 +36,79 @@ public final class StatCoderContext extends BitCoderContext
     super( ab );
   }
 
+  /**
+   * create a decode-only context reading directly from
+   * the given (e.g. memory-mapped) buffer region
+   */
+  public StatCoderContext( ByteBuffer bb )
+  {
+    super( bb );
+  }
+
   /**
    * assign the de-/encoded bits since the last call assignBits to the given
-   * name. Used for encoding statistics
+   * name. Used for encoding statistics, collected per context until mergeBitStats
    * 
    * @see #getBitReport
    */
   public void assignBits( String name )
   {
     long bitpos = getWritingBitPosition();
-    if ( statsPerName == null )
+    if ( localStats == null )
     {
-      statsPerName = new TreeMap<String, long[]>();
+      localStats = new TreeMap<String, long[]>();
     }
-    long[] stats = statsPerName.get( name );
+    long[] stats = localStats.get( name );
     if ( stats == null )
     {
       stats = new long[2];
-      statsPerName.put( name, stats );
+      localStats.put( name, stats );
     }
     stats[0] += bitpos - lastbitpos;
     stats[1] += 1;
     lastbitpos = bitpos;
   }
 
+  /**
+   * add the statistics of this context to the bit report
+   * (encoders may run in parallel)
+   *
+   * @see #getBitReport
+   */
+  public void mergeBitStats()
+  {
+    if ( localStats == null )
+    {
+      return;
+    }
+    synchronized( StatCoderContext.class )
+    {
+      if ( statsPerName == null )
+      {
+        statsPerName = new TreeMap<String, long[]>();
+      }
+      for ( String name : localStats.keySet() )
+      {
+        long[] local = localStats.get( name );
+        long[] stats = statsPerName.get( name );
+        if ( stats == null )
+        {
+          stats = new long[2];
+          statsPerName.put( name, stats );
+        }
+        stats[0] += local[0];
+        stats[1] += local[1];
+      }
+    }
+    localStats = null;
+  }
+
   /**
    * Get a textual report on the bit-statistics
    * 
    * @see #assignBits
    */
-  public static String getBitReport()
+  public static synchronized String getBitReport()
   {
     if ( statsPerName == null )
     {
@@ -1,5 +1,6 @@
 package btools.codec;
 
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.PriorityQueue;
@@ -87,8 +88,39 @@ public final class TagValueCoder
 
   public TagValueCoder( BitCoderContext bc, DataBuffers buffers, TagValueValidator validator )
   {
-    tree = decodeTree( bc, buffers, validator );
+    ArrayList<TagValueWrapper> leafs = validator == null ? null : new ArrayList<TagValueWrapper>();
+    tree = decodeTree( bc, buffers, validator, leafs );
     this.bc = bc;
+
+    // validate the whole dictionary as a batch, and drop the leafs without access
+    if ( leafs != null && leafs.size() > 0 )
+    {
+      int n = leafs.size();
+      byte[][] tagValueSets = new byte[n][];
+      int[] accessTypes = new int[n];
+      for( int i=0; i<n; i++ )
+      {
+        tagValueSets[i] = leafs.get( i ).data;
+      }
+      validator.accessTypes( tagValueSets, accessTypes, n );
+      for( int i=0; i<n; i++ )
+      {
+        leafs.get( i ).accessType = accessTypes[i];
+      }
+      tree = dropNoAccess( tree );
+    }
+  }
+
+  private static Object dropNoAccess( Object node )
+  {
+    if ( node instanceof TreeNode )
+    {
+      TreeNode tn = (TreeNode) node;
+      tn.child1 = dropNoAccess( tn.child1 );
+      tn.child2 = dropNoAccess( tn.child2 );
+      return tn;
+    }
+    return node != null && ((TagValueWrapper)node).accessType > 0 ? node : null;
   }
 
   public TagValueCoder()
@@ -96,14 +128,14 @@ public final class TagValueCoder
     identityMap = new HashMap<TagValueSet, TagValueSet>();
   }
 
-  private Object decodeTree( BitCoderContext bc, DataBuffers buffers, TagValueValidator validator )
+  private Object decodeTree( BitCoderContext bc, DataBuffers buffers, TagValueValidator validator, ArrayList<TagValueWrapper> leafs )
   {
     boolean isNode = bc.decodeBit();
     if ( isNode )
     {
       TreeNode node = new TreeNode();
-      node.child1 = decodeTree( bc, buffers, validator );
-      node.child2 = decodeTree( bc, buffers, validator );
+      node.child1 = decodeTree( bc, buffers, validator, leafs );
+      node.child2 = decodeTree( bc, buffers, validator, leafs );
       return node;
     }
 
@@ -155,15 +187,17 @@ public final class TagValueCoder
       res = validator.unify( buffer, 0, len );
     }
 
-    int accessType = validator == null ? 2 : validator.accessType( res );
-    if ( accessType > 0 )
+    TagValueWrapper w = new TagValueWrapper();
+    w.data = res;
+    if ( validator == null )
+    {
+      w.accessType = 2;
+    }
+    else
     {
-      TagValueWrapper w = new TagValueWrapper();
-      w.data = res;
-      w.accessType = accessType;
-      return w;
+      leafs.add( w ); // access type set by batch validation
     }
-    return null;
+    return w;
   }
 
   public static final class TreeNode
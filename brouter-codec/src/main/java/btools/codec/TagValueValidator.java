@@ -9,6 +9,16 @@ public interface TagValueValidator
    */
   public int accessType( byte[] tagValueSet );
 
+  /**
+   * Batch version of accessType, called with all
+   * way descriptions of the dictionary of a tile
+   *
+   * @param tagValueSets the way descriptions to check
+   * @param accessTypes receives the access types
+   * @param n the number of descriptions
+   */
+  public void accessTypes( byte[][] tagValueSets, int[] accessTypes, int n );
+
   public byte[] unify( byte[] tagValueSet, int offset, int len );
 
   public boolean isLookupIdxUsed( int idx );
@@ -128,4 +128,21 @@ public class StatCoderContextTest
       }
     }
   }
+
+  @Test
+  public void bitReportTest()
+  {
+    StatCoderContext.getBitReport(); // reset
+
+    StatCoderContext ctx = new StatCoderContext( new byte[100] );
+    ctx.encodeVarBits( 1000 );
+    ctx.assignBits( "test" );
+    ctx.encodeVarBits( 1000 );
+    ctx.assignBits( "test" );
+    Assert.assertEquals( "<empty bit report>", StatCoderContext.getBitReport() );
+
+    ctx.mergeBitStats();
+    ctx.mergeBitStats(); // merged only once
+    Assert.assertEquals( "test count=2 bits=" + ctx.getWritingBitPosition() + "\n", StatCoderContext.getBitReport() );
+  }
 }
@@ -1,58 +1,144 @@
 /**
  * Container for routig configs
  *
+ * A ProfileCache is a pool for one profile: it holds a parsed
+ * prototype and the idle contexts created as copies of the prototype,
+ * so concurrent requests for one profile do not parse it again.
+ *
+ * Locking is striped: the static lock is held just for the pool
+ * lookup, parsing and copying is done under the lock of the pool.
+ *
+ * If the system property "expressionCacheDir" is set, the result
+ * cache of a pool is saved there, tagged with a hash of the profile,
+ * lookup table and keyValues, and loaded again when the profile is
+ * parsed, so cold regions skip the evaluation for known profiles.
+ * Saving is done by a background thread, not by the request releasing
+ * the profile.
+ *
+ * If watching is started, a background thread checks the cached
+ * profiles and the lookup table for updates, parses changed profiles
+ * and swaps them into the cache, so requests do not wait for parsing
+ * (but may use the old version until the next check).
+ *
  * @author ab
  */
 package btools.router;
 
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import btools.expressions.BExpressionContextNode;
 import btools.expressions.BExpressionContextWay;
 import btools.expressions.BExpressionMetaData;
+import btools.expressions.BExpressionResultCache;
+import btools.util.Crc32;
 
-public final class ProfileCache 
+public final class ProfileCache
 {
- 
+
   private static File lastLookupFile;
   private static long lastLookupTimestamp;
 
-  private BExpressionContextWay expctxWay;
-  private BExpressionContextNode expctxNode;
+  private BExpressionContextWay protoWay;
+  private BExpressionContextNode protoNode;
+  private BExpressionResultCache wayResultCache; // shared by all contexts of that pool
+  private ArrayList<BExpressionContextWay> idleWays = new ArrayList<BExpressionContextWay>();
+  private ArrayList<BExpressionContextNode> idleNodes = new ArrayList<BExpressionContextNode>();
   private File lastProfileFile;
-  private long lastProfileTimestamp;  
-  private boolean profilesBusy;
+  private long lastProfileTimestamp;
   private long lastUseTime;
-    
+  private File resultCacheFile;
+  private long profileHash;
+  private File profileDir;
+  private int memoryclass;
+  private long keyValueChecksum;
+  private boolean savePending; // guarded by the pool lock
+
   private static ProfileCache[] apc = new ProfileCache[1];
   private static boolean debug = Boolean.getBoolean( "debugProfileCache" );
+  private static String resultCacheDir = System.getProperty( "expressionCacheDir" );
+  private static Thread watcher;
+  private static ExecutorService saver;
 
   public static synchronized void setSize( int size )
   {
     apc = new ProfileCache[size];
   }
 
-  public static synchronized boolean parseProfile( RoutingContext rc )
+  private static File getProfileDir( RoutingContext rc )
+  {
+    String profileBaseDir = System.getProperty( "profileBaseDir" );
+    return profileBaseDir == null ? new File( rc.localFunction ).getParentFile() : new File( profileBaseDir );
+  }
+
+  private static File getProfileFile( RoutingContext rc )
   {
-      String profileBaseDir = System.getProperty( "profileBaseDir" );
-      File profileDir;
-      File profileFile;
-      if ( profileBaseDir == null )
+    String profileBaseDir = System.getProperty( "profileBaseDir" );
+    return profileBaseDir == null ? new File( rc.localFunction ) : new File( profileBaseDir, rc.localFunction + ".brf" );
+  }
+
+  public static boolean parseProfile( RoutingContext rc )
+  {
+    File profileDir = getProfileDir( rc );
+    File profileFile = getProfileFile( rc );
+
+    long keyValueChecksum = rc.getKeyValueChecksum();
+    long profileTimestamp = profileTimestamp( profileFile, keyValueChecksum );
+    File lookupFile = new File( profileDir, "lookups.dat" );
+
+    ProfileCache pc = getPool( profileFile, profileTimestamp, keyValueChecksum, lookupFile );
+
+    boolean cached;
+    synchronized( pc )
+    {
+      cached = pc.protoWay != null;
+      if ( !cached )
+      {
+        pc.profileDir = profileDir;
+        pc.memoryclass = rc.memoryclass;
+        pc.parsePrototype();
+      }
+      rc.profileTimestamp = pc.lastProfileTimestamp; // of the version in use
+
+      int nidle = pc.idleWays.size();
+      if ( nidle > 0 )
       {
-        profileDir = new File( rc.localFunction ).getParentFile();
-        profileFile = new File( rc.localFunction ) ;
+        rc.expctxWay = pc.idleWays.remove( nidle-1 );
+        rc.expctxNode = pc.idleNodes.remove( nidle-1 );
       }
       else
       {
-        profileDir = new File( profileBaseDir );
-        profileFile = new File( profileDir, rc.localFunction + ".brf" ) ;
+        rc.expctxWay = new BExpressionContextWay( pc.protoWay );
+        rc.expctxNode = new BExpressionContextNode( pc.protoNode );
+        rc.expctxNode.setForeignContext( rc.expctxWay );
       }
+    }
+    rc.readGlobalConfig();
+    return cached;
+  }
 
-      rc.profileTimestamp = profileFile.lastModified() + rc.getKeyValueChecksum()<<24;
-      File lookupFile = new File( profileDir, "lookups.dat" );
-      
+  private static long profileTimestamp( File profileFile, long keyValueChecksum )
+  {
+    return profileFile.lastModified() + keyValueChecksum<<24;
+  }
+
+  /**
+   * find the pool for the given profile, or create a new one,
+   * replacing the least recently used
+   *
+   * When watching, a pool is used even if outdated,
+   * updating it is left to the watcher.
+   */
+  private static synchronized ProfileCache getPool( File profileFile, long profileTimestamp, long keyValueChecksum, File lookupFile )
+  {
       // invalidate cache at lookup-table update
-      if ( !(lookupFile.equals( lastLookupFile ) && lookupFile.lastModified() == lastLookupTimestamp ) )
+      if ( !(lookupFile.equals( lastLookupFile ) && ( watcher != null || lookupFile.lastModified() == lastLookupTimestamp ) ) )
       {
         if ( lastLookupFile != null )
         {
@@ -62,102 +148,324 @@ public final class ProfileCache
         lastLookupFile = lookupFile;
         lastLookupTimestamp = lookupFile.lastModified();
       }
-      
-      ProfileCache lru = null;
-      int unusedSlot =-1;
 
-      // check for re-use
+      if ( apc.length == 0 )
+      {
+        ProfileCache pc = new ProfileCache(); // caching disabled
+        pc.lastProfileTimestamp = profileTimestamp;
+        pc.lastProfileFile = profileFile;
+        pc.keyValueChecksum = keyValueChecksum;
+        return pc;
+      }
+
+      int lruSlot = -1;
       for( int i=0; i<apc.length; i++)
       {
         ProfileCache pc = apc[i];
-        
-        if ( pc != null )
+        if ( pc == null )
         {
-          if ( (!pc.profilesBusy) && profileFile.equals( pc.lastProfileFile ) )
+          if ( lruSlot < 0 || apc[lruSlot] != null )
           {
-            if ( rc.profileTimestamp == pc.lastProfileTimestamp )
-            {
-              rc.expctxWay = pc.expctxWay;
-              rc.expctxNode = pc.expctxNode;
-              rc.readGlobalConfig();
-              pc.profilesBusy = true;
-              return true;
-            }
-            lru = pc; // name-match but timestamp-mismatch -> we overide this one
-            unusedSlot = -1;
-            break;
+            lruSlot = i;
           }
-          if ( lru == null || lru.lastUseTime > pc.lastUseTime )
+          continue;
+        }
+        if ( profileFile.equals( pc.lastProfileFile ) )
+        {
+          if ( profileTimestamp == pc.lastProfileTimestamp || ( watcher != null && keyValueChecksum == pc.keyValueChecksum ) )
           {
-            lru = pc;
+            pc.lastUseTime = System.currentTimeMillis();
+            return pc;
           }
+          lruSlot = i; // name-match but timestamp-mismatch -> we overide this one
+          break;
         }
-        else if ( unusedSlot < 0 )
+        if ( lruSlot < 0 || ( apc[lruSlot] != null && apc[lruSlot].lastUseTime > pc.lastUseTime ) )
         {
-          unusedSlot = i;
+          lruSlot = i;
         }
       }
-      
+
+      ProfileCache lru = apc[lruSlot];
+      if ( lru == null )
+      {
+        if ( debug ) System.out.println( "******* adding new profile at idx=" + lruSlot + " for " +  profileFile );
+      }
+      else
+      {
+        if ( debug ) System.out.println( "******* replacing profile of age " + ((System.currentTimeMillis()-lru.lastUseTime)/1000L) + " sec " + lru.lastProfileFile + "->" + profileFile );
+      }
+
+      ProfileCache pc = new ProfileCache();
+      pc.lastProfileTimestamp = profileTimestamp;
+      pc.lastProfileFile = profileFile;
+      pc.keyValueChecksum = keyValueChecksum;
+      pc.lastUseTime = System.currentTimeMillis();
+      apc[lruSlot] = pc;
+      return pc;
+  }
+
+  private void parsePrototype()
+  {
+      File profileFile = lastProfileFile;
       BExpressionMetaData meta = new BExpressionMetaData();
-      
-      rc.expctxWay = new BExpressionContextWay( rc.memoryclass * 512, meta );
-      rc.expctxNode = new BExpressionContextNode( 0, meta );
-      rc.expctxNode.setForeignContext( rc.expctxWay );
-      
+
+      BExpressionContextWay expctxWay = new BExpressionContextWay( memoryclass * 512, meta );
+      BExpressionContextNode expctxNode = new BExpressionContextNode( 0, meta );
+      expctxNode.setForeignContext( expctxWay );
+
       meta.readMetaData( new File( profileDir, "lookups.dat" ) );
 
-      rc.expctxWay.parseFile( profileFile, "global" );
-      rc.expctxNode.parseFile( profileFile, "global" );
+      expctxWay.parseFile( profileFile, "global" );
+      expctxNode.parseFile( profileFile, "global" );
 
-      rc.readGlobalConfig();
-      
-      if ( rc.processUnusedTags )
+      wayResultCache = new BExpressionResultCache( memoryclass * 512 );
+      expctxWay.setSharedCache( wayResultCache );
+      if ( resultCacheDir != null )
       {
-        rc.expctxWay.setAllTagsUsed();
+        try
+        {
+          File lookupFile = new File( profileDir, "lookups.dat" );
+          profileHash = ( (long)fileCrc( profileFile ) << 32 ) ^ ( fileCrc( lookupFile ) & 0xffffffffL ) ^ keyValueChecksum;
+          resultCacheFile = new File( resultCacheDir, profileFile.getName() + "_" + Long.toHexString( profileHash ) + ".rescache" );
+          boolean loaded = wayResultCache.load( resultCacheFile, profileHash );
+          if ( debug ) System.out.println( "******* result cache " + resultCacheFile + " loaded=" + loaded + " size=" + wayResultCache.size() );
+        }
+        catch( IOException e )
+        {
+          System.out.println( "cannot load result cache: " + e );
+          resultCacheFile = null;
+        }
       }
 
-      if ( lru == null || unusedSlot >= 0 )
+      if ( 0.f != expctxWay.getVariableValue( "processUnusedTags", 0.f ) )
+      {
+        expctxWay.setAllTagsUsed();
+      }
+
+      protoWay = expctxWay;
+      protoNode = expctxNode;
+  }
+
+  public static void releaseProfile( RoutingContext rc )
+  {
+    ProfileCache pool = null;
+    if ( rc.expctxWay != null && rc.localFunction != null )
+    {
+      File profileFile = getProfileFile( rc );
+      synchronized( ProfileCache.class )
       {
-        lru = new ProfileCache();
-        if ( unusedSlot >= 0 )
+        for( int i=0; i<apc.length; i++)
         {
-          apc[unusedSlot] = lru;
-          if ( debug ) System.out.println( "******* adding new profile at idx=" + unusedSlot + " for " +  profileFile );            
+          ProfileCache pc = apc[i];
+          if ( pc != null && profileFile.equals( pc.lastProfileFile ) && rc.profileTimestamp == pc.lastProfileTimestamp )
+          {
+            pool = pc;
+            break;
+          }
         }
       }
+    }
 
-      if ( lru.lastProfileFile != null )
+    // give the contexts back to the pool, if still existing
+    if ( pool != null )
+    {
+      synchronized( pool )
       {
-        if ( debug ) System.out.println( "******* replacing profile of age " + ((System.currentTimeMillis()-lru.lastUseTime)/1000L) + " sec " + lru.lastProfileFile + "->" + profileFile );
+        if ( pool.idleWays.size() < apc.length && pool.protoWay != null && rc.expctxWay.getSharedCache() == pool.wayResultCache )
+        {
+          pool.idleWays.add( rc.expctxWay );
+          pool.idleNodes.add( rc.expctxNode );
+        }
       }
+    }
+    rc.expctxWay = null;
+    rc.expctxNode = null;
 
-      lru.lastProfileTimestamp = rc.profileTimestamp;
-      lru.lastProfileFile = profileFile;
-      lru.expctxWay = rc.expctxWay;
-      lru.expctxNode = rc.expctxNode;
-      lru.profilesBusy = true;
-      lru.lastUseTime = System.currentTimeMillis();
-      return false;
+    if ( pool != null && pool.resultCacheFile != null && pool.wayResultCache.needsSave() )
+    {
+      scheduleSave( pool );
+    }
   }
 
-  public static synchronized void releaseProfile( RoutingContext rc )
+  /**
+   * save the result cache of the pool in the background,
+   * unless a save for that pool is already pending
+   */
+  private static void scheduleSave( final ProfileCache pool )
   {
-    for( int i=0; i<apc.length; i++)
+    synchronized( pool )
     {
-      ProfileCache pc = apc[i];
-        
-      if ( pc != null )
+      if ( pool.savePending )
       {
-        // only the thread that holds the cached instance can release it
-        if ( rc.expctxWay == pc.expctxWay && rc.expctxNode == pc.expctxNode )
+        return;
+      }
+      pool.savePending = true;
+    }
+    getSaver().execute( new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        try
         {
-          pc.profilesBusy = false;
-          break;
+          pool.wayResultCache.save( pool.resultCacheFile, pool.profileHash );
+        }
+        catch( IOException e )
+        {
+          System.out.println( "cannot save result cache: " + e );
+        }
+        finally
+        {
+          synchronized( pool )
+          {
+            pool.savePending = false;
+          }
         }
       }
+    } );
+  }
+
+  private static synchronized ExecutorService getSaver()
+  {
+    if ( saver == null )
+    {
+      saver = Executors.newSingleThreadExecutor( new ThreadFactory()
+      {
+        @Override
+        public Thread newThread( Runnable r )
+        {
+          Thread t = new Thread( r, "ProfileCache-saver" );
+          t.setDaemon( true );
+          return t;
+        }
+      } );
     }
-    rc.expctxWay = null;
-    rc.expctxNode = null;
+    return saver;
+  }
+
+  /**
+   * Start a daemon thread checking the cached profiles for updates
+   * every interval milliseconds
+   */
+  public static synchronized void startWatching( final long interval )
+  {
+    if ( watcher != null )
+    {
+      return;
+    }
+    watcher = new Thread( "ProfileCache-watcher" )
+    {
+      @Override
+      public void run()
+      {
+        for(;;)
+        {
+          try
+          {
+            Thread.sleep( interval );
+            checkForUpdates();
+          }
+          catch( InterruptedException ie )
+          {
+            return;
+          }
+          catch( Throwable t )
+          {
+            System.out.println( "profile update check failed: " + t );
+          }
+        }
+      }
+    };
+    watcher.setDaemon( true );
+    watcher.start();
+  }
+
+  /**
+   * parse the cached profiles that changed (or all of them if the
+   * lookup table changed) and swap the new versions into the cache.
+   * On parse errors, the old version is kept.
+   */
+  static void checkForUpdates()
+  {
+    ProfileCache[] pools;
+    boolean lookupChanged;
+    long lookupTimestamp;
+    synchronized( ProfileCache.class )
+    {
+      pools = apc.clone();
+      lookupTimestamp = lastLookupFile == null ? 0L : lastLookupFile.lastModified();
+      lookupChanged = lookupTimestamp != lastLookupTimestamp;
+    }
+
+    for( ProfileCache pc : pools )
+    {
+      if ( pc == null )
+      {
+        continue;
+      }
+      ProfileCache npc = new ProfileCache();
+      synchronized( pc )
+      {
+        if ( pc.protoWay == null )
+        {
+          continue; // not yet parsed
+        }
+        npc.lastProfileFile = pc.lastProfileFile;
+        npc.profileDir = pc.profileDir;
+        npc.memoryclass = pc.memoryclass;
+        npc.keyValueChecksum = pc.keyValueChecksum;
+        npc.lastUseTime = pc.lastUseTime;
+      }
+      npc.lastProfileTimestamp = profileTimestamp( npc.lastProfileFile, npc.keyValueChecksum );
+      if ( npc.lastProfileTimestamp == pc.lastProfileTimestamp && !lookupChanged )
+      {
+        continue;
+      }
+      try
+      {
+        npc.parsePrototype();
+      }
+      catch( Exception e )
+      {
+        System.out.println( "cannot reload profile " + npc.lastProfileFile + ": " + e );
+        continue;
+      }
+      synchronized( ProfileCache.class )
+      {
+        for( int i=0; i<apc.length; i++ )
+        {
+          if ( apc[i] == pc )
+          {
+            apc[i] = npc;
+            if ( debug ) System.out.println( "******* reloaded profile " + npc.lastProfileFile );
+          }
+        }
+      }
+    }
+
+    if ( lookupChanged )
+    {
+      synchronized( ProfileCache.class )
+      {
+        lastLookupTimestamp = lookupTimestamp;
+      }
+    }
+  }
+
+  private static int fileCrc( File f ) throws IOException
+  {
+    byte[] ab = new byte[(int)f.length()];
+    DataInputStream dis = new DataInputStream( new FileInputStream( f ) );
+    try
+    {
+      dis.readFully( ab );
+    }
+    finally
+    {
+      dis.close();
+    }
+    return Crc32.crc( ab, 0, ab.length );
   }
 
 }
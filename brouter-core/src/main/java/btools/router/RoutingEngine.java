@@ -16,6 +16,8 @@ import btools.mapaccess.OsmLink;
 import btools.mapaccess.OsmLinkHolder;
 import btools.mapaccess.OsmNode;
 import btools.mapaccess.OsmNodePairSet;
+import btools.util.CompactLongSet;
+import btools.util.FrozenLongSet;
 import btools.util.SortedHeap;
 import btools.util.StackSampler;
 
@@ -585,6 +587,16 @@ public class RoutingEngine extends Thread
     islandNodePairs.clearTempPairs();
   }
 
+  private CompactLongSet getCorridorNodes( OsmTrack track )
+  {
+    CompactLongSet ids = new CompactLongSet();
+    for ( OsmPathElement n : track.nodes )
+    {
+      ids.add( n.getIdFromPos() );
+    }
+    return new FrozenLongSet( ids );
+  }
+
   private OsmPath getStartPath( OsmNode n1, OsmNode n2, MatchedWaypoint mwp, OsmNodeNamed endPos, boolean sameSegmentSearch )
   {
     OsmPath p = getStartPath( n1, n2, new OsmNodeNamed( mwp.waypoint ), endPos );
@@ -699,6 +711,10 @@ public class RoutingEngine extends Thread
     {
       boolean detailed = guideTrack != null;
       resetCache( detailed );
+      if ( detailed )
+      {
+        nodesCache.setCorridor( getCorridorNodes( guideTrack ) );
+      }
       nodesCache.nodesMap.cleanupMode = detailed ? 0 : ( routingContext.considerTurnRestrictions ? 2 : 1 );
       return _findTrack( operationName, startWp, endWp, costCuttingTrack, refTrack, fastPartialRecalc );
     }
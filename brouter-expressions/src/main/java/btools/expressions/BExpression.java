@@ -1,5 +1,7 @@
 package btools.expressions;
 
+import java.util.Arrays;
+import java.util.List;
 import java.util.StringTokenizer;
 
 final class BExpression
@@ -34,6 +36,7 @@ final class BExpression
   private int variableIdx;
   private int lookupNameIdx;
   private int[] lookupValueIdxArray;
+  private boolean[] lookupValueMatch; // lookupValueIdxArray as a table over the value indices
 
   // Parse the expression and all subexpression
   public static BExpression parse( BExpressionContext ctx, int level ) throws Exception
@@ -177,6 +180,7 @@ final class BExpression
                 throw new IllegalArgumentException( "unknown lookup value: " + value );
               }
             }
+            exp.lookupValueMatch = matchTable( exp.lookupValueIdxArray );
           }
           else if ( ( idx = operator.indexOf( ':' ) ) >= 0 )
           {
@@ -264,7 +268,7 @@ final class BExpression
       case LESSER_EXP: return op1.evaluate(ctx) < op2.evaluate(ctx) ? 1.f : 0.f;
       case SWITCH_EXP: return op1.evaluate(ctx) != 0.f ? op2.evaluate(ctx) : op3.evaluate(ctx);
       case ASSIGN_EXP: return ctx.assign( variableIdx, op1.evaluate(ctx) );
-      case LOOKUP_EXP: return ctx.getLookupMatch( lookupNameIdx, lookupValueIdxArray );
+      case LOOKUP_EXP: return ctx.getLookupMatch( lookupNameIdx, lookupValueMatch );
       case NUMBER_EXP: return numberValue;
       case VARIABLE_EXP: return ctx.getVariableValue( variableIdx );
       case FOREIGN_VARIABLE_EXP: return ctx.getForeignVariableValue( variableIdx );
@@ -273,6 +277,286 @@ final class BExpression
     }
   }
 
+  /**
+   * @return the index of the variable assigned by this (toplevel) expression, or -1
+   */
+  int getAssignedVariableIdx()
+  {
+    return typ == ASSIGN_EXP ? variableIdx : -1;
+  }
+
+  /**
+   * mark the lookups referenced by this expression and its subexpressions
+   */
+  void markLookups( boolean[] lookupIdxUsed )
+  {
+    if ( typ == LOOKUP_EXP )
+    {
+      lookupIdxUsed[lookupNameIdx] = true;
+    }
+    if ( op1 != null ) op1.markLookups( lookupIdxUsed );
+    if ( op2 != null ) op2.markLookups( lookupIdxUsed );
+    if ( op3 != null ) op3.markLookups( lookupIdxUsed );
+  }
+
+  /**
+   * Optimize a (toplevel) expression list in place, without changing
+   * the resulting variable values:
+   *
+   * - read-only (global context) variables are inlined
+   * - variables assigned exactly once from a constant are inlined
+   *   into expressions following that assignment
+   * - operations on constants are folded, which prunes switch
+   *   branches that can never fire
+   * - or/and of lookups on the same tag are merged into one lookup
+   *
+   * All assignments are kept, because the variables can be accessed
+   * by name from outside.
+   *
+   * @return the number of expression nodes removed
+   */
+  static int optimize( List<BExpression> expressions, BExpressionContext ctx )
+  {
+    int nvars = ctx.getVariableCount();
+    int minWriteIdx = ctx.getMinWriteIdx();
+    boolean[] known = new boolean[nvars];
+    float[] values = new float[nvars];
+    for( int i=0; i<minWriteIdx; i++ )
+    {
+      known[i] = true;
+      values[i] = ctx.getVariableValue( i );
+    }
+
+    int[] assignCount = new int[nvars];
+    int nodesBefore = 0;
+    for( BExpression exp : expressions )
+    {
+      nodesBefore += exp.countNodes();
+      if ( exp.typ == ASSIGN_EXP )
+      {
+        assignCount[exp.variableIdx]++;
+      }
+    }
+
+    int nodesAfter = 0;
+    for( BExpression exp : expressions )
+    {
+      exp.op1 = exp.op1.fold( known, values );
+      if ( exp.typ == ASSIGN_EXP && exp.op1.typ == NUMBER_EXP && assignCount[exp.variableIdx] == 1 )
+      {
+        known[exp.variableIdx] = true; // constant for all expressions following
+        values[exp.variableIdx] = exp.op1.numberValue;
+      }
+      nodesAfter += exp.countNodes();
+    }
+    return nodesBefore - nodesAfter;
+  }
+
+  private BExpression fold( boolean[] known, float[] values )
+  {
+    if ( op1 != null ) op1 = op1.fold( known, values );
+    if ( op2 != null ) op2 = op2.fold( known, values );
+    if ( op3 != null ) op3 = op3.fold( known, values );
+
+    switch( typ )
+    {
+      case VARIABLE_EXP:
+        return known[variableIdx] ? number( values[variableIdx] ) : this;
+      case LOOKUP_EXP:
+      case NUMBER_EXP:
+      case FOREIGN_VARIABLE_EXP:
+        return this;
+      case SWITCH_EXP:
+        if ( op1.typ == NUMBER_EXP )
+        {
+          return op1.numberValue != 0.f ? op2 : op3;
+        }
+        return this;
+      case OR_EXP:
+        if ( ( op1.typ == NUMBER_EXP && op1.numberValue != 0.f ) || ( op2.typ == NUMBER_EXP && op2.numberValue != 0.f ) )
+        {
+          return number( 1.f );
+        }
+        if ( op1.typ == LOOKUP_EXP && op2.typ == LOOKUP_EXP && op1.lookupNameIdx == op2.lookupNameIdx )
+        {
+          return lookup( op1.lookupNameIdx, union( op1.lookupValueIdxArray, op2.lookupValueIdxArray ) );
+        }
+        break;
+      case AND_EXP:
+        if ( ( op1.typ == NUMBER_EXP && op1.numberValue == 0.f ) || ( op2.typ == NUMBER_EXP && op2.numberValue == 0.f ) )
+        {
+          return number( 0.f );
+        }
+        if ( op1.typ == LOOKUP_EXP && op2.typ == LOOKUP_EXP && op1.lookupNameIdx == op2.lookupNameIdx )
+        {
+          int[] common = intersection( op1.lookupValueIdxArray, op2.lookupValueIdxArray );
+          return common.length == 0 ? number( 0.f ) : lookup( op1.lookupNameIdx, common );
+        }
+        break;
+      default:
+    }
+
+    // operations with constant operands only
+    if ( ( op1 == null || op1.typ == NUMBER_EXP )
+      && ( op2 == null || op2.typ == NUMBER_EXP )
+      && ( op3 == null || op3.typ == NUMBER_EXP ) )
+    {
+      return number( evaluate( null ) );
+    }
+    return this;
+  }
+
+  private int countNodes()
+  {
+    return 1 + ( op1 == null ? 0 : op1.countNodes() )
+             + ( op2 == null ? 0 : op2.countNodes() )
+             + ( op3 == null ? 0 : op3.countNodes() );
+  }
+
+  private static BExpression number( float value )
+  {
+    BExpression exp = new BExpression();
+    exp.typ = NUMBER_EXP;
+    exp.numberValue = value;
+    return exp;
+  }
+
+  private static BExpression lookup( int nameIdx, int[] valueIdxArray )
+  {
+    BExpression exp = new BExpression();
+    exp.typ = LOOKUP_EXP;
+    exp.lookupNameIdx = nameIdx;
+    exp.lookupValueIdxArray = valueIdxArray;
+    exp.lookupValueMatch = matchTable( valueIdxArray );
+    return exp;
+  }
+
+  private static boolean[] matchTable( int[] valueIdxArray )
+  {
+    int max = 0;
+    for( int i=0; i<valueIdxArray.length; i++ )
+    {
+      max = Math.max( max, valueIdxArray[i] );
+    }
+    boolean[] table = new boolean[max+1];
+    for( int i=0; i<valueIdxArray.length; i++ )
+    {
+      table[valueIdxArray[i]] = true;
+    }
+    return table;
+  }
+
+  private static int[] union( int[] a1, int[] a2 )
+  {
+    int[] res = new int[a1.length + a2.length];
+    int n = 0;
+    for( int i=0; i<a1.length; i++ )
+    {
+      if ( !contains( res, n, a1[i] ) ) res[n++] = a1[i];
+    }
+    for( int i=0; i<a2.length; i++ )
+    {
+      if ( !contains( res, n, a2[i] ) ) res[n++] = a2[i];
+    }
+    return Arrays.copyOf( res, n );
+  }
+
+  private static int[] intersection( int[] a1, int[] a2 )
+  {
+    int[] res = new int[a1.length];
+    int n = 0;
+    for( int i=0; i<a1.length; i++ )
+    {
+      if ( contains( a2, a2.length, a1[i] ) && !contains( res, n, a1[i] ) ) res[n++] = a1[i];
+    }
+    return Arrays.copyOf( res, n );
+  }
+
+  private static boolean contains( int[] a, int n, int v )
+  {
+    for( int i=0; i<n; i++ )
+    {
+      if ( a[i] == v ) return true;
+    }
+    return false;
+  }
+
+  // Compile the expression, same semantics as evaluate. Leaves the
+  // result on the operand stack, except for (toplevel) assignments
+  void compile( BExpressionCompiler cc )
+  {
+    switch( typ )
+    {
+      case OR_EXP:
+      {
+        op1.compile( cc );
+        int toTrue1 = cc.jumpIfNonZero();
+        op2.compile( cc );
+        int toTrue2 = cc.jumpIfNonZero();
+        cc.pushFloat( 0.f );
+        int toEnd = cc.jumpWithValue();
+        cc.label( toTrue1 );
+        cc.label( toTrue2 );
+        cc.pushFloat( 1.f );
+        cc.label( toEnd );
+        break;
+      }
+      case AND_EXP:
+      {
+        op1.compile( cc );
+        int toFalse1 = cc.jumpIfZero();
+        op2.compile( cc );
+        int toFalse2 = cc.jumpIfZero();
+        cc.pushFloat( 1.f );
+        int toEnd = cc.jumpWithValue();
+        cc.label( toFalse1 );
+        cc.label( toFalse2 );
+        cc.pushFloat( 0.f );
+        cc.label( toEnd );
+        break;
+      }
+      case XOR_EXP:
+        op1.compile( cc );
+        cc.pushFloat( 0.f );
+        cc.compare( BExpressionCompiler.CMP_NOTEQUAL );
+        op2.compile( cc );
+        cc.pushFloat( 0.f );
+        cc.compare( BExpressionCompiler.CMP_NOTEQUAL );
+        cc.compare( BExpressionCompiler.CMP_NOTEQUAL );
+        break;
+      case ADD_EXP: op1.compile( cc ); op2.compile( cc ); cc.add(); break;
+      case SUB_EXP: op1.compile( cc ); op2.compile( cc ); cc.sub(); break;
+      case MULTIPLY_EXP: op1.compile( cc ); op2.compile( cc ); cc.multiply(); break;
+      case MAX_EXP: op1.compile( cc ); op2.compile( cc ); cc.maxOrMin( true ); break;
+      case MIN_EXP: op1.compile( cc ); op2.compile( cc ); cc.maxOrMin( false ); break;
+      case EQUAL_EXP: op1.compile( cc ); op2.compile( cc ); cc.compare( BExpressionCompiler.CMP_EQUAL ); break;
+      case GREATER_EXP: op1.compile( cc ); op2.compile( cc ); cc.compare( BExpressionCompiler.CMP_GREATER ); break;
+      case LESSER_EXP: op1.compile( cc ); op2.compile( cc ); cc.compare( BExpressionCompiler.CMP_LESSER ); break;
+      case SWITCH_EXP:
+      {
+        op1.compile( cc );
+        int toElse = cc.jumpIfZero();
+        op2.compile( cc );
+        int toEnd = cc.jumpWithValue();
+        cc.label( toElse );
+        op3.compile( cc );
+        cc.label( toEnd );
+        break;
+      }
+      case ASSIGN_EXP:
+        cc.prepareStore( variableIdx );
+        op1.compile( cc );
+        cc.storeVariable();
+        break;
+      case LOOKUP_EXP: cc.lookupMatch( lookupNameIdx, lookupValueIdxArray ); break;
+      case NUMBER_EXP: cc.pushFloat( numberValue ); break;
+      case VARIABLE_EXP: cc.loadVariable( variableIdx ); break;
+      case FOREIGN_VARIABLE_EXP: cc.loadForeignVariable( variableIdx ); break;
+      case NOT_EXP: op1.compile( cc ); cc.pushFloat( 0.f ); cc.compare( BExpressionCompiler.CMP_EQUAL ); break;
+      default: throw new IllegalArgumentException( "unknown op-code: " + typ );
+    }
+  }
+
   private float max( float v1, float v2 )
   {
     return v1 > v2 ? v1 : v2;
@@ -0,0 +1,459 @@
+package btools.expressions;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Compiler for the expression list of a context into a
+ * generated subclass of CompiledExpressions
+ *
+ * This is a minimal class-file emitter, just for the instructions
+ * needed by the expressions. It writes version 49 class files,
+ * so no stack-map frames are needed.
+ *
+ * Local variables of the generated evaluate method:
+ * 0=this, 1=context, 2=variableData, 3=lookupData, 4=lookup value
+ */
+final class BExpressionCompiler
+{
+  static final int CMP_EQUAL = 0;
+  static final int CMP_NOTEQUAL = 1;
+  static final int CMP_GREATER = 2;
+  static final int CMP_LESSER = 3;
+
+  private static final int MAX_CODE_SIZE = 32767; // keep 16 bit branch offsets valid
+
+  private static final String SUPER_CLASS = "btools/expressions/CompiledExpressions";
+  private static final String CONTEXT_CLASS = "btools/expressions/BExpressionContext";
+
+  private static int classCounter = 0;
+
+  private byte[] code = new byte[1024];
+  private int codeSize = 0;
+  private int stack = 0;
+  private int maxStack = 0;
+
+  private ByteArrayOutputStream cpBytes = new ByteArrayOutputStream();
+  private DataOutputStream cp = new DataOutputStream( cpBytes );
+  private HashMap<String,Integer> cpIndex = new HashMap<String,Integer>();
+  private int cpCount = 1;
+
+  /**
+   * compile the given expressions
+   *
+   * @return the compiled expressions, or null if compilation is
+   *         not possible here (e.g. no runtime class definition on android,
+   *         or the expressions are too big), so the caller keeps interpreting
+   */
+  static CompiledExpressions compile( List<BExpression> expressions )
+  {
+    try
+    {
+      BExpressionCompiler cc = new BExpressionCompiler();
+      for( BExpression exp : expressions )
+      {
+        exp.compile( cc );
+      }
+      cc.emit( 0xb1 ); // return
+      if ( cc.codeSize > MAX_CODE_SIZE )
+      {
+        return null;
+      }
+      String className = "btools/expressions/CompiledProfile" + nextClassId();
+      byte[] classFile = cc.toClassFile( className );
+      Loader loader = new Loader( CompiledExpressions.class.getClassLoader() );
+      Class<?> clazz = loader.define( className.replace( '/', '.' ), classFile );
+      return (CompiledExpressions)clazz.newInstance();
+    }
+    catch( Throwable t )
+    {
+      return null;
+    }
+  }
+
+  private static synchronized int nextClassId()
+  {
+    return ++classCounter;
+  }
+
+  private static final class Loader extends ClassLoader
+  {
+    Loader( ClassLoader parent )
+    {
+      super( parent );
+    }
+
+    Class<?> define( String name, byte[] b )
+    {
+      return defineClass( name, b, 0, b.length );
+    }
+  }
+
+  // instruction emitters used by BExpression.compile
+
+  void pushFloat( float value )
+  {
+    if ( Float.floatToIntBits( value ) == 0 ) emit( 0x0b ); // fconst_0
+    else if ( value == 1.f ) emit( 0x0c ); // fconst_1
+    else if ( value == 2.f ) emit( 0x0d ); // fconst_2
+    else emitLdc( floatConst( value ) );
+    push( 1 );
+  }
+
+  void loadVariable( int idx )
+  {
+    emit( 0x2c ); // aload_2
+    push( 1 );
+    pushInt( idx );
+    emit( 0x30 ); // faload
+    push( -1 );
+  }
+
+  /**
+   * prepare an assignment: the value has to be compiled
+   * after this, followed by storeVariable
+   */
+  void prepareStore( int idx )
+  {
+    emit( 0x2c ); // aload_2
+    push( 1 );
+    pushInt( idx );
+  }
+
+  void storeVariable()
+  {
+    emit( 0x51 ); // fastore
+    push( -3 );
+  }
+
+  void loadForeignVariable( int idx )
+  {
+    emit( 0x2b ); // aload_1
+    push( 1 );
+    pushInt( idx );
+    emit( 0xb6 ); // invokevirtual
+    emitShort( methodRef( CONTEXT_CLASS, "getForeignVariableValue", "(I)F" ) );
+    push( -1 );
+  }
+
+  void lookupMatch( int nameIdx, int[] valueIdxArray )
+  {
+    emit( 0x2d ); // aload_3
+    push( 1 );
+    pushInt( nameIdx );
+    emit( 0x2e ); // iaload
+    emit( 0x36 ); // istore
+    emit( 4 );
+    push( -2 );
+    int[] toMatch = new int[valueIdxArray.length];
+    for( int i=0; i<valueIdxArray.length; i++ )
+    {
+      emit( 0x15 ); // iload
+      emit( 4 );
+      push( 1 );
+      pushInt( valueIdxArray[i] );
+      toMatch[i] = branch( 0x9f, -2 ); // if_icmpeq
+    }
+    pushFloat( 0.f );
+    int toEnd = jumpWithValue();
+    for( int i=0; i<toMatch.length; i++ )
+    {
+      label( toMatch[i] );
+    }
+    pushFloat( 1.f );
+    label( toEnd );
+  }
+
+  void add()
+  {
+    emit( 0x62 ); // fadd
+    push( -1 );
+  }
+
+  void sub()
+  {
+    emit( 0x66 ); // fsub
+    push( -1 );
+  }
+
+  void multiply()
+  {
+    emit( 0x6a ); // fmul
+    push( -1 );
+  }
+
+  /**
+   * max or min of the 2 values on the stack, same as the
+   * interpreter: v1 &gt; v2 ? v1 : v2 resp. v1 &lt; v2 ? v1 : v2
+   */
+  void maxOrMin( boolean isMax )
+  {
+    emit( 0x5c ); // dup2
+    push( 2 );
+    emit( isMax ? 0x95 : 0x96 ); // fcmpl / fcmpg (NaN -> false)
+    push( -1 );
+    int toKeepFirst = branch( isMax ? 0x9d : 0x9b, -1 ); // ifgt / iflt
+    emit( 0x5f ); // swap
+    label( toKeepFirst );
+    emit( 0x57 ); // pop
+    push( -1 );
+  }
+
+  /**
+   * compare the 2 values on the stack, leaving 1 or 0
+   */
+  void compare( int cmp )
+  {
+    int toFalse;
+    switch( cmp )
+    {
+      case CMP_EQUAL:    emit( 0x95 ); push( -1 ); toFalse = branch( 0x9a, -1 ); break; // fcmpl, ifne
+      case CMP_NOTEQUAL: emit( 0x95 ); push( -1 ); toFalse = branch( 0x99, -1 ); break; // fcmpl, ifeq
+      case CMP_GREATER:  emit( 0x95 ); push( -1 ); toFalse = branch( 0x9e, -1 ); break; // fcmpl, ifle
+      case CMP_LESSER:   emit( 0x96 ); push( -1 ); toFalse = branch( 0x9c, -1 ); break; // fcmpg, ifge
+      default: throw new IllegalArgumentException( "unknown comparison: " + cmp );
+    }
+    pushFloat( 1.f );
+    int toEnd = jumpWithValue();
+    label( toFalse );
+    pushFloat( 0.f );
+    label( toEnd );
+  }
+
+  /**
+   * pop a value and jump if it is zero (NaN counts as non-zero)
+   *
+   * @return the branch to be resolved by label
+   */
+  int jumpIfZero()
+  {
+    pushFloat( 0.f );
+    emit( 0x95 ); // fcmpl
+    push( -1 );
+    return branch( 0x99, -1 ); // ifeq
+  }
+
+  int jumpIfNonZero()
+  {
+    pushFloat( 0.f );
+    emit( 0x95 ); // fcmpl
+    push( -1 );
+    return branch( 0x9a, -1 ); // ifne
+  }
+
+  /**
+   * jump with the value on the stack as the result of
+   * the current branch, the alternative branch starts without it
+   */
+  int jumpWithValue()
+  {
+    return branch( 0xa7, -1 ); // goto
+  }
+
+  void label( int branchPos )
+  {
+    int offset = codeSize - branchPos;
+    code[branchPos+1] = (byte)( offset >> 8 );
+    code[branchPos+2] = (byte)offset;
+  }
+
+  private int branch( int opcode, int stackDelta )
+  {
+    int pos = codeSize;
+    emit( opcode );
+    emitShort( 0 ); // patched by label
+    push( stackDelta );
+    return pos;
+  }
+
+  private void pushInt( int value )
+  {
+    if ( value >= -1 && value <= 5 ) emit( 0x03 + value ); // iconst_<n>
+    else if ( value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE ) { emit( 0x10 ); emit( value ); } // bipush
+    else if ( value >= Short.MIN_VALUE && value <= Short.MAX_VALUE ) { emit( 0x11 ); emitShort( value ); } // sipush
+    else throw new IllegalArgumentException( "int constant out of range: " + value );
+    push( 1 );
+  }
+
+  private void push( int delta )
+  {
+    stack += delta;
+    if ( stack > maxStack )
+    {
+      maxStack = stack;
+    }
+  }
+
+  private void emitLdc( int cpIdx )
+  {
+    if ( cpIdx < 256 )
+    {
+      emit( 0x12 ); // ldc
+      emit( cpIdx );
+    }
+    else
+    {
+      emit( 0x13 ); // ldc_w
+      emitShort( cpIdx );
+    }
+  }
+
+  private void emitShort( int v )
+  {
+    emit( v >> 8 );
+    emit( v );
+  }
+
+  private void emit( int b )
+  {
+    if ( codeSize == code.length )
+    {
+      byte[] ncode = new byte[2*codeSize];
+      System.arraycopy( code, 0, ncode, 0, codeSize );
+      code = ncode;
+    }
+    code[codeSize++] = (byte)b;
+  }
+
+  // constant pool
+
+  private int utf8( String s ) throws IOException
+  {
+    Integer idx = cpIndex.get( "U" + s );
+    if ( idx == null )
+    {
+      cp.writeByte( 1 );
+      cp.writeUTF( s );
+      idx = addConst( "U" + s, 1 );
+    }
+    return idx.intValue();
+  }
+
+  private int classRef( String name ) throws IOException
+  {
+    Integer idx = cpIndex.get( "C" + name );
+    if ( idx == null )
+    {
+      int nameIdx = utf8( name );
+      cp.writeByte( 7 );
+      cp.writeShort( nameIdx );
+      idx = addConst( "C" + name, 1 );
+    }
+    return idx.intValue();
+  }
+
+  private int methodRef( String owner, String name, String descriptor )
+  {
+    try
+    {
+      String key = "M" + owner + "." + name + descriptor;
+      Integer idx = cpIndex.get( key );
+      if ( idx == null )
+      {
+        int classIdx = classRef( owner );
+        int nameIdx = utf8( name );
+        int descIdx = utf8( descriptor );
+        cp.writeByte( 12 ); // name and type
+        cp.writeShort( nameIdx );
+        cp.writeShort( descIdx );
+        int natIdx = addConst( null, 1 ).intValue();
+        cp.writeByte( 10 );
+        cp.writeShort( classIdx );
+        cp.writeShort( natIdx );
+        idx = addConst( key, 1 );
+      }
+      return idx.intValue();
+    }
+    catch( IOException e )
+    {
+      throw new RuntimeException( e );
+    }
+  }
+
+  private int floatConst( float value )
+  {
+    try
+    {
+      String key = "F" + Float.floatToIntBits( value );
+      Integer idx = cpIndex.get( key );
+      if ( idx == null )
+      {
+        cp.writeByte( 4 );
+        cp.writeFloat( value );
+        idx = addConst( key, 1 );
+      }
+      return idx.intValue();
+    }
+    catch( IOException e )
+    {
+      throw new RuntimeException( e );
+    }
+  }
+
+  private Integer addConst( String key, int slots )
+  {
+    Integer idx = Integer.valueOf( cpCount );
+    cpCount += slots;
+    if ( key != null )
+    {
+      cpIndex.put( key, idx );
+    }
+    return idx;
+  }
+
+  private byte[] toClassFile( String className ) throws IOException
+  {
+    int thisIdx = classRef( className );
+    int superIdx = classRef( SUPER_CLASS );
+    int superInit = methodRef( SUPER_CLASS, "<init>", "()V" );
+    int initName = utf8( "<init>" );
+    int initDesc = utf8( "()V" );
+    int evalName = utf8( "evaluate" );
+    int evalDesc = utf8( "(L" + CONTEXT_CLASS + ";[F[I)V" );
+    int codeName = utf8( "Code" );
+    cp.flush();
+
+    ByteArrayOutputStream bos = new ByteArrayOutputStream( codeSize + cpBytes.size() + 256 );
+    DataOutputStream dos = new DataOutputStream( bos );
+    dos.writeInt( 0xcafebabe );
+    dos.writeShort( 0 ); // minor version
+    dos.writeShort( 49 ); // major version (java 5)
+    dos.writeShort( cpCount );
+    cpBytes.writeTo( dos );
+    dos.writeShort( 0x0031 ); // public final super
+    dos.writeShort( thisIdx );
+    dos.writeShort( superIdx );
+    dos.writeShort( 0 ); // interfaces
+    dos.writeShort( 0 ); // fields
+    dos.writeShort( 2 ); // methods
+
+    // constructor: just call the super constructor
+    byte[] initCode = new byte[] { 0x2a, (byte)0xb7, (byte)( superInit >> 8 ), (byte)superInit, (byte)0xb1 };
+    writeMethod( dos, initName, initDesc, codeName, 1, 1, initCode, initCode.length );
+
+    writeMethod( dos, evalName, evalDesc, codeName, maxStack, 5, code, codeSize );
+
+    dos.writeShort( 0 ); // class attributes
+    dos.close();
+    return bos.toByteArray();
+  }
+
+  private static void writeMethod( DataOutputStream dos, int nameIdx, int descIdx, int codeName, int maxStack, int maxLocals, byte[] code, int codeSize ) throws IOException
+  {
+    dos.writeShort( 0x0001 ); // public
+    dos.writeShort( nameIdx );
+    dos.writeShort( descIdx );
+    dos.writeShort( 1 ); // attributes
+    dos.writeShort( codeName );
+    dos.writeInt( 12 + codeSize );
+    dos.writeShort( maxStack );
+    dos.writeShort( maxLocals );
+    dos.writeInt( codeSize );
+    dos.write( code, 0, codeSize );
+    dos.writeShort( 0 ); // exception table
+    dos.writeShort( 0 ); // code attributes
+  }
+}
@@ -41,6 +41,7 @@ public abstract class BExpressionContext implements IByteArrayUnifier
   private ArrayList<String> lookupNames = new ArrayList<String>();
   private ArrayList<int[]> lookupHistograms = new ArrayList<int[]>();
   private boolean[] lookupIdxUsed;
+  private int maxLookupIdxUsed; // decoding for evaluation stops behind that
 
   private boolean lookupDataFrozen = false;
 
@@ -58,11 +59,24 @@ public abstract class BExpressionContext implements IByteArrayUnifier
   // hash-cache for function results
   private CacheNode probeCacheNode = new CacheNode();
   private LruMap cache;
+  private int hashSize;
+
+  // direct mapped by identity hash, for unified descriptions (no crc needed)
+  private CacheNode[] identityCache;
+  private int identityMask;
+  private int[] batchMisses = new int[0];
+  private int[] batchHashes = new int[0];
 
   private VarWrapper probeVarSet = new VarWrapper();
   private LruMap resultVarCache;
 
+  // optional 2nd level cache, shared with other contexts of the same profile
+  private BExpressionResultCache sharedCache;
+
   private List<BExpression> expressionList;
+  private CompiledExpressions compiledExpressions;
+  private boolean compileExpressions = Boolean.getBoolean( "compileExpressions" );
+  private boolean optimizeExpressions = !Boolean.getBoolean( "disableExpressionOptimization" );
 
   private int minWriteIdx;
 
@@ -112,12 +126,62 @@ public abstract class BExpressionContext implements IByteArrayUnifier
 
      if ( Boolean.getBoolean( "disableExpressionCache" ) ) hashSize = 1;
 
-     // create the expression cache
-     if ( hashSize > 0 )
-     {
-       cache = new LruMap( 4*hashSize, hashSize );
-       resultVarCache = new LruMap( 4096, 4096 );
-     }
+     createCache( hashSize );
+  }
+
+  /**
+   * Create an Expression-Context as a copy of an already parsed
+   * prototype. The parse results, which are not modified after parsing,
+   * are shared, while the evaluation state and the local cache are new.
+   * The foreign context has to be set again, to a copy as well.
+   */
+  protected BExpressionContext( BExpressionContext proto )
+  {
+    context = proto.context;
+    meta = proto.meta;
+    _modelClass = proto._modelClass;
+
+    lookupNumbers = proto.lookupNumbers;
+    lookupValues = proto.lookupValues;
+    lookupNames = proto.lookupNames;
+    lookupHistograms = proto.lookupHistograms;
+    lookupIdxUsed = proto.lookupIdxUsed.clone();
+    maxLookupIdxUsed = proto.maxLookupIdxUsed;
+    lookupDataFrozen = proto.lookupDataFrozen;
+    lookupData = new int[proto.lookupData.length];
+
+    variableNumbers = proto.variableNumbers;
+    variableData = proto.variableData.clone(); // includes the read-only globals
+    minWriteIdx = proto.minWriteIdx;
+
+    expressionList = proto.expressionList;
+    compiledExpressions = proto.compiledExpressions;
+
+    buildInVariableIdx = proto.buildInVariableIdx.clone();
+    nBuildInVars = proto.nBuildInVars;
+
+    sharedCache = proto.sharedCache;
+    createCache( proto.hashSize );
+  }
+
+  private void createCache( int hashSize )
+  {
+    this.hashSize = hashSize;
+
+    // create the expression cache
+    if ( hashSize > 0 )
+    {
+      cache = new LruMap( 4*hashSize, hashSize );
+      resultVarCache = new LruMap( 4096, 4096 );
+
+      int identitySize = 1;
+      while( identitySize < hashSize )
+      {
+        identitySize <<= 1;
+      }
+      identityCache = new CacheNode[identitySize];
+      identityMask = identitySize - 1;
+    }
   }
 
   /**
@@ -219,6 +283,41 @@ public abstract class BExpressionContext implements IByteArrayUnifier
     while( inum < ld.length ) ld[inum++] = 0;
   }
 
+  /**
+   * decode a byte-array into a lookup data array for evaluation:
+   * just the lookups used by the profile are materialized, decoding
+   * stops after the highest used lookup, the others are left undefined
+   */
+  private void decodeUsed( int[] ld, boolean inverseDirection, byte[] ab )
+  {
+    BitCoderContext ctx = ctxDecode;
+    ctx.reset( ab );
+
+    ld[0] = inverseDirection ? 2 : 0;
+
+    boolean[] used = lookupIdxUsed;
+    int maxIdx = maxLookupIdxUsed;
+    int inum = 1;
+    for(;;)
+    {
+      int delta = ctx.decodeVarBits();
+      if ( delta == 0) break;
+      if ( inum + delta > maxIdx + 1 ) break; // unused (or higher minor version)
+
+      while ( delta-- > 1 ) ld[inum++] = 0;
+
+      int dd = ctx.decodeVarBits();
+      if ( used[inum] )
+      {
+        int d = dd == 7 ? 1 : ( dd < 7 ? dd + 2 : dd + 1);
+        if ( d >= lookupValues.get(inum).length ) d = 1; // map out-of-range to unknown
+        ld[inum] = d;
+      }
+      inum++;
+    }
+    while( inum <= maxIdx ) ld[inum++] = 0;
+  }
+
   public String getKeyValueDescription( boolean inverseDirection, byte[] ab )
   {
 	StringBuilder sb = new StringBuilder( 200 );
@@ -290,6 +389,7 @@ public abstract class BExpressionContext implements IByteArrayUnifier
     lookupDataFrozen = true;
 
     lookupIdxUsed = new boolean[lookupValues.size()];
+    maxLookupIdxUsed = 0;
   }
 
   public final void evaluate( int[] lookupData2 )
@@ -300,6 +400,11 @@ public abstract class BExpressionContext implements IByteArrayUnifier
 
   private void evaluate()
   {
+    if ( compiledExpressions != null )
+    {
+      compiledExpressions.evaluate( this, variableData, lookupData );
+      return;
+    }
     int n = expressionList.size();
     for( int expidx = 0; expidx < n; expidx++ )
     {
@@ -310,10 +415,39 @@ public abstract class BExpressionContext implements IByteArrayUnifier
   private long requests;
   private long requests2;
   private long cachemisses;
+  private long sharedhits;
+
+  /**
+   * @return true if the expressions are evaluated by generated code
+   * (see system property "compileExpressions")
+   */
+  public boolean isCompiled()
+  {
+    return compiledExpressions != null;
+  }
+
+  /**
+   * set a result cache shared with other contexts
+   * parsed from the same profile (and keyValues)
+   */
+  public void setSharedCache( BExpressionResultCache sharedCache )
+  {
+    this.sharedCache = cache == null ? null : sharedCache;
+  }
+
+  public BExpressionResultCache getSharedCache()
+  {
+    return sharedCache;
+  }
+
+  long getCacheMisses()
+  {
+    return cachemisses;
+  }
 
   public String cacheStats()
   {
-    return "requests=" + requests + " requests2=" + requests2 + " cachemisses=" + cachemisses;
+    return "requests=" + requests + " requests2=" + requests2 + " cachemisses=" + cachemisses + " sharedhits=" + sharedhits;
   }
 
   private CacheNode lastCacheNode = new CacheNode();
@@ -358,7 +492,7 @@ public abstract class BExpressionContext implements IByteArrayUnifier
 
     if ( cache == null )
     {
-      decode( lookupData, inverseDirection, ab );
+      decodeUsed( lookupData, inverseDirection, ab );
       if ( currentVars == null || currentVars.length != nBuildInVars )
       {
         currentVars = new float[nBuildInVars];
@@ -368,71 +502,161 @@ public abstract class BExpressionContext implements IByteArrayUnifier
       return;
     }
 
-    CacheNode cn;
-    if ( lastCacheNode.ab == ab )
+    CacheNode cn = findCacheNode( ab );
+    if ( cn == null )
     {
-      cn = lastCacheNode;
+      cn = evaluateMiss( ab, probeCacheNode.hash );
     }
     else
     {
-      probeCacheNode.ab = ab;
-      probeCacheNode.hash = Crc32.crc( ab, 0, ab.length );
-      cn = (CacheNode)cache.get( probeCacheNode );
-    }
+      if ( ab == cn.ab ) requests2++;
 
-    if ( cn == null )
-    {
-      cachemisses++;
+      cache.touch( cn );
+    }
 
-      cn = (CacheNode)cache.removeLru();
-      if ( cn == null )
-      {
-        cn = new CacheNode();
-      }
-      cn.hash = probeCacheNode.hash;
-      cn.ab = ab;
-      cache.put( cn );
+    currentVars = cn.vars;
+    currentVarOffset = inverseDirection ? nBuildInVars : 0;
+  }
 
-      if ( probeVarSet.vars == null )
+  /**
+   * Evaluate a batch of descriptions, e.g. the dictionary of a tile:
+   * the cache is probed for all of them first, then the ones not
+   * yet seen are evaluated (forward and inverse) in one pass and put
+   * into the cache, so the following single evaluations are cache hits.
+   *
+   * @return the number of descriptions evaluated
+   */
+  public final int evaluateBatch( byte[][] abs, int n )
+  {
+    if ( cache == null )
+    {
+      return 0;
+    }
+    if ( batchMisses.length < n )
+    {
+      batchMisses = new int[n];
+      batchHashes = new int[n];
+    }
+    int nmisses = 0;
+    for( int i=0; i<n; i++ )
+    {
+      if ( findCacheNode( abs[i] ) == null )
       {
-        probeVarSet.vars = new float[2*nBuildInVars];
+        batchHashes[nmisses] = probeCacheNode.hash;
+        batchMisses[nmisses++] = i;
       }
+    }
+    for( int mi=0; mi<nmisses; mi++ )
+    {
+      evaluateMiss( abs[batchMisses[mi]], batchHashes[mi] );
+    }
+    requests += nmisses;
+    return nmisses;
+  }
 
-      // forward direction
-      decode( lookupData, false, ab );
-      evaluateInto( probeVarSet.vars, 0 );
+  /**
+   * Find the cache node for a description: by reference for unified
+   * descriptions, else by crc and content. On a miss, the crc is
+   * left in probeCacheNode.hash
+   */
+  private CacheNode findCacheNode( byte[] ab )
+  {
+    if ( lastCacheNode.ab == ab )
+    {
+      return lastCacheNode;
+    }
+    int idx = System.identityHashCode( ab ) & identityMask;
+    CacheNode cn = identityCache[idx];
+    if ( cn != null && cn.ab == ab )
+    {
+      return cn;
+    }
+    probeCacheNode.ab = ab;
+    probeCacheNode.hash = Crc32.crc( ab, 0, ab.length );
+    cn = (CacheNode)cache.get( probeCacheNode );
+    if ( cn != null && cn.ab == ab )
+    {
+      identityCache[idx] = cn;
+    }
+    return cn;
+  }
 
-      // inverse direction
-      lookupData[0] = 2; // inverse shortcut: reuse decoding
-      evaluateInto( probeVarSet.vars, nBuildInVars );
+  /**
+   * get the result for a description not found in the local cache,
+   * either from the shared cache or by evaluation, and put it
+   * into the local cache
+   */
+  private CacheNode evaluateMiss( byte[] ab, int hash )
+  {
+    cachemisses++;
 
-      probeVarSet.hash = Arrays.hashCode( probeVarSet.vars );
+    CacheNode cn = (CacheNode)cache.removeLru();
+    if ( cn == null )
+    {
+      cn = new CacheNode();
+    }
+    cn.hash = hash;
+    cn.ab = ab;
+    cache.put( cn );
+    identityCache[System.identityHashCode( ab ) & identityMask] = cn;
 
-      // unify the result variable set
-      VarWrapper vw = (VarWrapper)resultVarCache.get( probeVarSet );
-      if ( vw == null )
+    float[] vars = sharedCache == null ? null : sharedCache.get( ab, hash );
+    if ( vars != null && vars.length != 2*nBuildInVars )
+    {
+      vars = null; // loaded from file for a different set of variables
+    }
+    if ( vars == null )
+    {
+      vars = evaluateAndUnify( ab );
+      if ( sharedCache != null )
       {
-        vw = (VarWrapper)resultVarCache.removeLru();
-        if ( vw == null )
-        {
-          vw = new VarWrapper();
-        }
-        vw.hash = probeVarSet.hash;
-        vw.vars = probeVarSet.vars;
-        probeVarSet.vars = null;
-        resultVarCache.put( vw );
+        sharedCache.put( ab, hash, vars );
       }
-      cn.vars = vw.vars;
     }
     else
     {
-      if ( ab == cn.ab ) requests2++;
+      sharedhits++;
+    }
+    cn.vars = vars;
+    return cn;
+  }
 
-      cache.touch( cn );
+  /**
+   * evaluate the given description in both directions
+   * and unify the result with earlier results
+   */
+  private float[] evaluateAndUnify( byte[] ab )
+  {
+    if ( probeVarSet.vars == null )
+    {
+      probeVarSet.vars = new float[2*nBuildInVars];
     }
 
-    currentVars = cn.vars;
-    currentVarOffset = inverseDirection ? nBuildInVars : 0;
+    // forward direction
+    decodeUsed( lookupData, false, ab );
+    evaluateInto( probeVarSet.vars, 0 );
+
+    // inverse direction
+    lookupData[0] = 2; // inverse shortcut: reuse decoding
+    evaluateInto( probeVarSet.vars, nBuildInVars );
+
+    probeVarSet.hash = Arrays.hashCode( probeVarSet.vars );
+
+    // unify the result variable set
+    VarWrapper vw = (VarWrapper)resultVarCache.get( probeVarSet );
+    if ( vw == null )
+    {
+      vw = (VarWrapper)resultVarCache.removeLru();
+      if ( vw == null )
+      {
+        vw = new VarWrapper();
+      }
+      vw.hash = probeVarSet.hash;
+      vw.vars = probeVarSet.vars;
+      probeVarSet.vars = null;
+      resultVarCache.put( vw );
+    }
+    return vw.vars;
   }
 
   private void evaluateInto( float[] vars, int offset )
@@ -532,7 +756,7 @@ public abstract class BExpressionContext implements IByteArrayUnifier
     }
   }
 
-  private String variableName( int idx )
+  String variableName( int idx )
   {
     for( Map.Entry<String,Integer> e : variableNumbers.entrySet() )
     {
@@ -736,6 +960,7 @@ public abstract class BExpressionContext implements IByteArrayUnifier
     }
     try
     {
+      compiledExpressions = null;
       if ( readOnlyContext != null )
       {
         linenr = 1;
@@ -766,6 +991,15 @@ public abstract class BExpressionContext implements IByteArrayUnifier
       {
         variableData[i] = readOnlyData[i];
       }
+
+      if ( optimizeExpressions )
+      {
+        BExpression.optimize( expressionList, this );
+      }
+      if ( compileExpressions )
+      {
+        compiledExpressions = BExpressionCompiler.compile( expressionList );
+      }
     }
     catch( Exception e )
     {
@@ -828,21 +1062,49 @@ public abstract class BExpressionContext implements IByteArrayUnifier
     return num.intValue();
   }
 
+  List<BExpression> getExpressionList()
+  {
+    return expressionList;
+  }
+
+  /**
+   * decode a description into the lookup data the way
+   * evaluate( boolean, byte[] ) does (for profile analysis)
+   */
+  void decodeForEvaluation( boolean inverseDirection, byte[] ab )
+  {
+    decodeUsed( lookupData, inverseDirection, ab );
+  }
+
+  String getLookupName( int idx )
+  {
+    return lookupNames.get( idx );
+  }
+
+  int getLookupCount()
+  {
+    return lookupNames.size();
+  }
+
+  int getLookupValue( int idx )
+  {
+    return lookupData[idx];
+  }
+
+  int getVariableCount()
+  {
+    return variableNumbers.size();
+  }
+
   int getMinWriteIdx()
   {
     return minWriteIdx;
   }
 
-  float getLookupMatch( int nameIdx, int[] valueIdxArray )
+  float getLookupMatch( int nameIdx, boolean[] valueMatch )
   {
-    for( int i=0; i<valueIdxArray.length; i++ )
-    {
-      if ( lookupData[nameIdx] == valueIdxArray[i] )
-      {
-        return 1.0f;
-      }
-    }
-    return 0.0f;
+    int valueIdx = lookupData[nameIdx];
+    return valueIdx < valueMatch.length && valueMatch[valueIdx] ? 1.0f : 0.0f;
   }
 
   public int getLookupNameIdx( String name )
@@ -854,6 +1116,10 @@ public abstract class BExpressionContext implements IByteArrayUnifier
   public final void markLookupIdxUsed( int idx )
   {
     lookupIdxUsed[ idx ] = true;
+    if ( idx > maxLookupIdxUsed )
+    {
+      maxLookupIdxUsed = idx;
+    }
   }
 
   public final boolean isLookupIdxUsed( int idx )
@@ -867,6 +1133,7 @@ public abstract class BExpressionContext implements IByteArrayUnifier
     {
       lookupIdxUsed[i] = true;
     }
+    maxLookupIdxUsed = lookupIdxUsed.length - 1;
   }
 
   int getLookupValueIdx( int nameIdx, String value )
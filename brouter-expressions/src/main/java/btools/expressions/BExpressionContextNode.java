@@ -35,4 +35,12 @@ public final class BExpressionContextNode extends BExpressionContext
   {
     super( "node", hashSize, meta );
   }
+
+  /**
+   * Create a node-context as a copy of a parsed prototype
+   */
+  public BExpressionContextNode( BExpressionContextNode proto )
+  {
+    super( proto );
+  }
 }
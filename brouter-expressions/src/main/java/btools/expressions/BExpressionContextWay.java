@@ -48,6 +48,14 @@ public final class BExpressionContextWay extends BExpressionContext implements T
     super( "way", hashSize, meta );
   }
 
+  /**
+   * Create a way-context as a copy of a parsed prototype
+   */
+  public BExpressionContextWay( BExpressionContextWay proto )
+  {
+    super( proto );
+  }
+
   @Override
   public int accessType( byte[] description )
   {
@@ -65,6 +73,16 @@ public final class BExpressionContextWay extends BExpressionContext implements T
     return minCostFactor < 9999.f ? 2 : decodeForbidden ? (minCostFactor < 10000.f ? 1 : 0) : 0;
   }
   
+  @Override
+  public void accessTypes( byte[][] descriptions, int[] accessTypes, int n )
+  {
+    evaluateBatch( descriptions, n );
+    for( int i=0; i<n; i++ )
+    {
+      accessTypes[i] = accessType( descriptions[i] );
+    }
+  }
+
   @Override
   public void setDecodeForbidden( boolean decodeForbidden )
   {
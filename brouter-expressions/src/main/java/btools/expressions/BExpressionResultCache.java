@@ -0,0 +1,183 @@
+package btools.expressions;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import btools.util.Crc32;
+
+/**
+ * Result cache (description -&gt; evaluated build-in variables) to be
+ * shared by all contexts parsed from the same profile (and keyValues),
+ * used as a second level behind the context-local LruMap.
+ *
+ * The cache is read-mostly and lock-free. It is not evicting: it just
+ * stops growing when full. The result arrays must not be modified
+ * after being put into the cache.
+ *
+ * The cache can be saved to and loaded from a file, tagged
+ * with a hash of the profile, so results from an earlier run
+ * can be used for cold regions without evaluating them again.
+ */
+public final class BExpressionResultCache
+{
+  private ConcurrentHashMap<Key,float[]> map;
+  private AtomicInteger size = new AtomicInteger();
+  private int maxSize;
+  private volatile int savedSize; // read by needsSave without the lock
+
+  private static final int FILE_MAGIC = 0x62726331; // "brc1"
+
+  private static final class Key
+  {
+    final byte[] ab;
+    final int hash;
+
+    Key( byte[] ab, int hash )
+    {
+      this.ab = ab;
+      this.hash = hash;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return hash;
+    }
+
+    @Override
+    public boolean equals( Object o )
+    {
+      Key k = (Key) o;
+      return hash == k.hash && Arrays.equals( ab, k.ab );
+    }
+  }
+
+  public BExpressionResultCache( int maxSize )
+  {
+    this.maxSize = maxSize;
+    map = new ConcurrentHashMap<Key,float[]>( 1024, 0.75f, 16 );
+  }
+
+  /**
+   * @param ab the description
+   * @param hash the (crc-) hash of the description
+   * @return the cached result or null if not found
+   */
+  public float[] get( byte[] ab, int hash )
+  {
+    return map.get( new Key( ab, hash ) );
+  }
+
+  public void put( byte[] ab, int hash, float[] vars )
+  {
+    if ( size.get() >= maxSize )
+    {
+      return;
+    }
+    if ( map.putIfAbsent( new Key( ab, hash ), vars ) == null )
+    {
+      size.incrementAndGet();
+    }
+  }
+
+  public int size()
+  {
+    return size.get();
+  }
+
+  /**
+   * save the cache to the given file (via a temp-file)
+   */
+  public synchronized void save( File file, long profileHash ) throws IOException
+  {
+    File tmp = new File( file.getPath() + ".tmp" );
+    DataOutputStream dos = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmp ) ) );
+    try
+    {
+      dos.writeInt( FILE_MAGIC );
+      dos.writeLong( profileHash );
+      for( Map.Entry<Key,float[]> e : map.entrySet() )
+      {
+        byte[] ab = e.getKey().ab;
+        float[] vars = e.getValue();
+        dos.writeBoolean( true );
+        dos.writeShort( ab.length );
+        dos.write( ab );
+        dos.writeShort( vars.length );
+        for( int i=0; i<vars.length; i++ )
+        {
+          dos.writeFloat( vars[i] );
+        }
+      }
+      dos.writeBoolean( false );
+    }
+    finally
+    {
+      dos.close();
+    }
+    file.delete();
+    if ( !tmp.renameTo( file ) )
+    {
+      throw new IOException( "cannot rename " + tmp + " to " + file );
+    }
+    savedSize = size.get();
+  }
+
+  /**
+   * load the cache from the given file, if it exists
+   * and was saved for the same profile hash
+   *
+   * @return true if loaded
+   */
+  public synchronized boolean load( File file, long profileHash ) throws IOException
+  {
+    if ( !file.exists() )
+    {
+      return false;
+    }
+    DataInputStream dis = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) );
+    try
+    {
+      if ( dis.readInt() != FILE_MAGIC || dis.readLong() != profileHash )
+      {
+        return false;
+      }
+      while( dis.readBoolean() )
+      {
+        byte[] ab = new byte[dis.readShort()];
+        dis.readFully( ab );
+        float[] vars = new float[dis.readShort()];
+        for( int i=0; i<vars.length; i++ )
+        {
+          vars[i] = dis.readFloat();
+        }
+        put( ab, Crc32.crc( ab, 0, ab.length ), vars );
+      }
+    }
+    finally
+    {
+      dis.close();
+    }
+    savedSize = size.get();
+    return true;
+  }
+
+  /**
+   * @return true if the cache grew significantly since loaded or saved
+   */
+  public boolean needsSave()
+  {
+    int sz = size.get();
+    return sz > savedSize + 1000 && sz > savedSize + ( savedSize >> 2 );
+  }
+}
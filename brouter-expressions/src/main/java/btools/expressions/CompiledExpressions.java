@@ -0,0 +1,16 @@
+package btools.expressions;
+
+/**
+ * Base class for the classes generated by the BExpressionCompiler.
+ *
+ * The generated evaluate method does the same as evaluating
+ * the expression list of a context one-by-one, but as straight-line
+ * bytecode instead of walking the expression trees.
+ *
+ * Must be public (as well as all members accessed from generated
+ * code), because the generated class lives in another class loader.
+ */
+public abstract class CompiledExpressions
+{
+  public abstract void evaluate( BExpressionContext ctx, float[] variableData, int[] lookupData );
+}
@@ -0,0 +1,369 @@
+package btools.expressions;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import btools.codec.DataBuffers;
+import btools.codec.MicroCache2;
+import btools.codec.StatCoderContext;
+import btools.codec.TagValueValidator;
+import btools.util.Crc32;
+
+/**
+ * Analyze the evaluation cost of the way context of a profile
+ * on a sample of way descriptions, either taken from rd5 files
+ * (the tag-value dictionaries of the tiles, in file order) or
+ * generated at random.
+ *
+ * Reports the time spent per (toplevel) statement and the lookups
+ * it touches, the number of distinct descriptions and results,
+ * the usage of the lookups and the hit rate of the way cache
+ * for several hash sizes.
+ */
+public final class ProfileAnalyzer implements TagValueValidator
+{
+  private static final int[] HASH_SIZES = { 1024, 4096, 16384, 65536, 262144 };
+
+  private File lookupFile;
+  private File profileFile;
+  private BExpressionContextWay expctx;
+  private int maxSamples;
+
+  private List<byte[]> samples = new ArrayList<byte[]>();
+  private HashMap<DescriptionKey,byte[]> distinctDescriptions = new HashMap<DescriptionKey,byte[]>();
+
+  private static final class DescriptionKey
+  {
+    final byte[] ab;
+    final int hash;
+
+    DescriptionKey( byte[] ab )
+    {
+      this.ab = ab;
+      hash = Crc32.crc( ab, 0, ab.length );
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return hash;
+    }
+
+    @Override
+    public boolean equals( Object o )
+    {
+      return Arrays.equals( ab, ((DescriptionKey)o).ab );
+    }
+  }
+
+  public static void main( String[] args ) throws Exception
+  {
+    if ( args.length < 3 )
+    {
+      System.out.println( "usage: java ProfileAnalyzer <lookup-file> <profile> <nsamples> [<rd5-file> ...]" );
+      System.out.println( "  (without rd5-files, nsamples random descriptions are analyzed)" );
+      return;
+    }
+
+    ProfileAnalyzer pa = new ProfileAnalyzer( new File( args[0] ), new File( args[1] ), Integer.parseInt( args[2] ) );
+    if ( args.length == 3 )
+    {
+      pa.generateRandomSamples( new Random( 4711 ) );
+    }
+    for( int i=3; i<args.length; i++ )
+    {
+      pa.readSamples( new File( args[i] ) );
+    }
+    pa.analyze( System.out );
+  }
+
+  public ProfileAnalyzer( File lookupFile, File profileFile, int maxSamples )
+  {
+    this.lookupFile = lookupFile;
+    this.profileFile = profileFile;
+    this.maxSamples = maxSamples;
+    expctx = createContext( 0 );
+  }
+
+  private BExpressionContextWay createContext( int hashSize )
+  {
+    BExpressionMetaData meta = new BExpressionMetaData();
+    BExpressionContextWay ctx = new BExpressionContextWay( hashSize, meta );
+    meta.readMetaData( lookupFile );
+    ctx.parseFile( profileFile, "global" );
+    return ctx;
+  }
+
+  public void generateRandomSamples( Random rnd )
+  {
+    while( samples.size() < maxSamples )
+    {
+      byte[] ab = expctx.encode( expctx.generateRandomValues( rnd ) );
+      if ( ab != null )
+      {
+        samples.add( unify( ab, 0, ab.length ) );
+      }
+    }
+  }
+
+  /**
+   * read the way descriptions from the tiles of an rd5 file
+   * (new format, divisor 32)
+   */
+  public void readSamples( File rd5File ) throws Exception
+  {
+    DataInputStream dis = new DataInputStream( new BufferedInputStream( new FileInputStream( rd5File ) ) );
+    try
+    {
+      long[] fileIndex = new long[25];
+      for( int i=0; i<25; i++ )
+      {
+        fileIndex[i] = dis.readLong() & 0xffffffffffffL;
+      }
+      DataBuffers dataBuffers = new DataBuffers();
+      for ( int subFileIdx = 0; subFileIdx < 25 && samples.size() < maxSamples; subFileIdx++ )
+      {
+        long tileStart = subFileIdx > 0 ? fileIndex[subFileIdx - 1] : 200L;
+        if ( tileStart >= fileIndex[subFileIdx] )
+        {
+          continue;
+        }
+        int[] posIdx = new int[1024];
+        for( int i=0; i<1024; i++ )
+        {
+          posIdx[i] = dis.readInt();
+        }
+        for ( int tileIdx = 0; tileIdx < 1024; tileIdx++ )
+        {
+          int size = posIdx[tileIdx] - ( tileIdx > 0 ? posIdx[tileIdx-1] : 4096 );
+          if ( size == 0 )
+          {
+            continue;
+          }
+          byte[] ab = new byte[size];
+          dis.readFully( ab );
+          if ( samples.size() < maxSamples )
+          {
+            new MicroCache2( new StatCoderContext( ab ), dataBuffers, 0, 0, 32, this, null );
+          }
+        }
+      }
+    }
+    finally
+    {
+      dis.close();
+    }
+  }
+
+  @Override
+  public int accessType( byte[] tagValueSet )
+  {
+    if ( samples.size() < maxSamples )
+    {
+      samples.add( tagValueSet );
+    }
+    return 2;
+  }
+
+  @Override
+  public void accessTypes( byte[][] tagValueSets, int[] accessTypes, int n )
+  {
+    for( int i=0; i<n; i++ )
+    {
+      accessTypes[i] = accessType( tagValueSets[i] );
+    }
+  }
+
+  @Override
+  public byte[] unify( byte[] tagValueSet, int offset, int len )
+  {
+    byte[] ab = new byte[len];
+    System.arraycopy( tagValueSet, offset, ab, 0, len );
+    DescriptionKey key = new DescriptionKey( ab );
+    byte[] cab = distinctDescriptions.get( key );
+    if ( cab == null )
+    {
+      distinctDescriptions.put( key, ab );
+      cab = ab;
+    }
+    return cab;
+  }
+
+  @Override
+  public boolean isLookupIdxUsed( int idx )
+  {
+    return expctx.isLookupIdxUsed( idx );
+  }
+
+  @Override
+  public void setDecodeForbidden( boolean decodeForbidden )
+  {
+  }
+
+  public void analyze( PrintStream out )
+  {
+    int nsamples = samples.size();
+    out.println( "profile: " + profileFile + " samples=" + nsamples + " distinct descriptions=" + distinctDescriptions.size() );
+    if ( nsamples == 0 )
+    {
+      return;
+    }
+
+    List<BExpression> expressions = expctx.getExpressionList();
+    int nexp = expressions.size();
+    long[] expTime = new long[nexp];
+    List<HashSet<Float>> expValues = new ArrayList<HashSet<Float>>();
+    for( int i=0; i<nexp; i++ )
+    {
+      expValues.add( new HashSet<Float>() );
+    }
+    int nlookups = expctx.getLookupCount();
+    int[] lookupSetCount = new int[nlookups];
+    String[] buildInNames = expctx.getBuildInVariableNames();
+    int[] buildInIdx = new int[buildInNames.length];
+    for( int vi=0; vi<buildInNames.length; vi++ )
+    {
+      buildInIdx[vi] = expctx.getVariableIdx( buildInNames[vi], false );
+    }
+    HashSet<String> distinctResults = new HashSet<String>();
+    float[] result = new float[2*buildInNames.length];
+
+    // first pass is warmup and statistics, timing from the second,
+    // repeated for small samples to get a stable measurement
+    int npasses = 1 + Math.min( 100, Math.max( 1, 1000000 / ( 2*nsamples ) ) );
+    for( int pass = 0; pass < npasses; pass++ )
+    {
+      if ( pass == 1 )
+      {
+        Arrays.fill( expTime, 0L );
+      }
+      for( int n=0; n<nsamples; n++ )
+      {
+        byte[] ab = samples.get( n );
+        for( int dir = 0; dir < 2; dir++ )
+        {
+          expctx.decodeForEvaluation( dir == 1, ab );
+          for( int i=0; i<nexp; i++ )
+          {
+            long t0 = System.nanoTime();
+            float value = expressions.get( i ).evaluate( expctx );
+            expTime[i] += System.nanoTime() - t0;
+            if ( pass == 0 )
+            {
+              expValues.get( i ).add( Float.valueOf( value ) );
+            }
+          }
+          if ( pass == 0 )
+          {
+            for( int vi=0; vi<buildInIdx.length; vi++ )
+            {
+              result[dir*buildInIdx.length + vi] = buildInIdx[vi] < 0 ? 0.f : expctx.getVariableValue( buildInIdx[vi] );
+            }
+          }
+        }
+        if ( pass == 0 )
+        {
+          distinctResults.add( Arrays.toString( result ) );
+          for( int inum = 1; inum < nlookups; inum++ )
+          {
+            if ( expctx.isLookupIdxUsed( inum ) && expctx.getLookupValue( inum ) != 0 )
+            {
+              lookupSetCount[inum]++;
+            }
+          }
+        }
+      }
+    }
+
+    out.println( "distinct results=" + distinctResults.size() );
+
+    // subtract the overhead of the time measurement
+    long nevals = 2L * nsamples * ( npasses-1 );
+    long overhead = timerOverhead();
+    long totalTime = 0L;
+    for( int i=0; i<nexp; i++ )
+    {
+      expTime[i] = Math.max( 0L, expTime[i] - overhead * nevals );
+      totalTime += expTime[i];
+    }
+    out.println();
+    out.println( "evaluation: " + ( totalTime / nevals ) + " ns per description and direction" );
+    out.println( "  #  variable                  share  ns/eval  values  lookups" );
+    for( int i=0; i<nexp; i++ )
+    {
+      BExpression exp = expressions.get( i );
+      int varIdx = exp.getAssignedVariableIdx();
+      boolean[] touched = new boolean[nlookups];
+      exp.markLookups( touched );
+      StringBuilder sb = new StringBuilder();
+      for( int inum = 0; inum < nlookups; inum++ )
+      {
+        if ( touched[inum] )
+        {
+          sb.append( sb.length() > 0 ? "," : "" ).append( expctx.getLookupName( inum ) );
+        }
+      }
+      out.println( pad( "" + i, 3 ) + "  " + pad( varIdx < 0 ? "-" : expctx.variableName( varIdx ), -24 )
+                 + pad( ( expTime[i] * 1000L / Math.max( totalTime, 1L ) ) / 10. + "%", 7 )
+                 + pad( "" + expTime[i] / nevals, 9 )
+                 + pad( "" + expValues.get( i ).size(), 8 ) + "  " + sb );
+    }
+
+    out.println();
+    out.println( "lookups used by the profile (share of samples with a value):" );
+    for( int inum = 1; inum < nlookups; inum++ )
+    {
+      if ( expctx.isLookupIdxUsed( inum ) )
+      {
+        out.println( "  " + pad( expctx.getLookupName( inum ), -24 ) + pad( ( lookupSetCount[inum] * 1000L / nsamples ) / 10. + "%", 7 ) );
+      }
+    }
+
+    out.println();
+    out.println( "way cache hit rate by hashSize:" );
+    for( int hashSize : HASH_SIZES )
+    {
+      BExpressionContextWay ctx = createContext( hashSize );
+      for( int n=0; n<nsamples; n++ )
+      {
+        ctx.evaluate( false, samples.get( n ) );
+      }
+      long hits = nsamples - ctx.getCacheMisses();
+      out.println( "  " + pad( "" + hashSize, 7 ) + pad( ( hits * 1000L / nsamples ) / 10. + "%", 8 ) );
+    }
+  }
+
+  private static long timerOverhead()
+  {
+    long best = Long.MAX_VALUE;
+    for( int i=0; i<100000; i++ )
+    {
+      long t0 = System.nanoTime();
+      long dt = System.nanoTime() - t0;
+      best = Math.min( best, dt );
+    }
+    return best;
+  }
+
+  // pad to the left for positive, to the right for negative width
+  private static String pad( String s, int width )
+  {
+    StringBuilder sb = new StringBuilder( s );
+    int w = Math.abs( width );
+    while( sb.length() < w )
+    {
+      if ( width < 0 ) sb.append( ' ' );
+      else sb.insert( 0, ' ' );
+    }
+    return sb.toString();
+  }
+}
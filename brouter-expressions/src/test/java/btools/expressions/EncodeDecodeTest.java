@@ -44,4 +44,243 @@ public class EncodeDecodeTest
     float costfactor = expctxWay.getCostfactor();
     Assert.assertTrue( "costfactor mismatch", Math.abs( costfactor - 5.15 ) < 0.00001 );
   }
+
+  @Test
+  public void compiledExpressionsTest()
+  {
+    compareToReference( null, "compileExpressions" );
+  }
+
+  @Test
+  public void optimizedExpressionsTest()
+  {
+    compareToReference( "disableExpressionOptimization", null );
+  }
+
+  @Test
+  public void sharedResultCacheTest()
+  {
+    URL testpurl = this.getClass().getResource( "/dummy.txt" );
+    File workingDir = new File(testpurl.getFile()).getParentFile();
+    File profileDir = new File( workingDir, "/../../../misc/profiles2" );
+    File lookupFile = new File( profileDir, "lookups.dat" );
+
+    BExpressionResultCache sharedCache = new BExpressionResultCache( 100000 );
+    BExpressionContextWay[] wayCtx = new BExpressionContextWay[3];
+    for( int i=0; i<3; i++ )
+    {
+      BExpressionMetaData meta = new BExpressionMetaData();
+      wayCtx[i] = new BExpressionContextWay( meta );
+      meta.readMetaData( lookupFile );
+      wayCtx[i].parseFile( new File( profileDir, "trekking.brf" ), "global" );
+    }
+    wayCtx[0].setSharedCache( sharedCache );
+    wayCtx[1].setSharedCache( sharedCache );
+    wayCtx[2].setAllTagsUsed(); // reference decodes all lookups
+    int nBuildIn = wayCtx[2].getBuildInVariableNames().length;
+
+    Random rnd = new Random( 4711 );
+    for( int n=0; n<5000; n++ )
+    {
+      int[] wayData = wayCtx[2].generateRandomValues( rnd );
+      byte[] description = wayCtx[2].encode( wayData );
+      if ( description == null )
+      {
+        continue;
+      }
+      boolean inverse = rnd.nextBoolean();
+      for( int i=0; i<3; i++ )
+      {
+        wayCtx[i].evaluate( inverse, description );
+      }
+      Assert.assertEquals( "costfactor mismatch", wayCtx[2].getCostfactor(), wayCtx[0].getCostfactor(), 0.f );
+      Assert.assertEquals( "costfactor mismatch", wayCtx[2].getCostfactor(), wayCtx[1].getCostfactor(), 0.f );
+      Assert.assertEquals( "turncost mismatch", wayCtx[2].getTurncost(), wayCtx[1].getTurncost(), 0.f );
+      for( int vi=0; vi<nBuildIn; vi++ )
+      {
+        Assert.assertEquals( "mismatch to full decoding", wayCtx[2].getBuildInVariable( vi ), wayCtx[0].getBuildInVariable( vi ), 0.f );
+      }
+    }
+    Assert.assertTrue( "shared cache not filled", sharedCache.size() > 0 );
+    Assert.assertTrue( "no shared hits: " + wayCtx[1].cacheStats(), wayCtx[1].cacheStats().indexOf( "sharedhits=0" ) < 0 );
+
+    // save/load roundtrip, and no load for a different profile hash
+    File cacheFile = new File( workingDir, "trekking.rescache" );
+    try
+    {
+      sharedCache.save( cacheFile, 4711L );
+      BExpressionResultCache loaded = new BExpressionResultCache( 100000 );
+      Assert.assertFalse( "loaded with hash mismatch", loaded.load( cacheFile, 4712L ) );
+      Assert.assertTrue( "not loaded", loaded.load( cacheFile, 4711L ) );
+      Assert.assertEquals( "size mismatch after load", sharedCache.size(), loaded.size() );
+      Assert.assertFalse( "needs save after load", loaded.needsSave() );
+    }
+    catch( IOException e )
+    {
+      throw new RuntimeException( e );
+    }
+    finally
+    {
+      cacheFile.delete();
+    }
+  }
+
+  @Test
+  public void batchEvaluationTest()
+  {
+    URL testpurl = this.getClass().getResource( "/dummy.txt" );
+    File workingDir = new File(testpurl.getFile()).getParentFile();
+    File profileDir = new File( workingDir, "/../../../misc/profiles2" );
+    File lookupFile = new File( profileDir, "lookups.dat" );
+
+    BExpressionContextWay[] wayCtx = new BExpressionContextWay[2];
+    for( int i=0; i<2; i++ )
+    {
+      BExpressionMetaData meta = new BExpressionMetaData();
+      wayCtx[i] = new BExpressionContextWay( meta );
+      meta.readMetaData( lookupFile );
+      wayCtx[i].parseFile( new File( profileDir, "trekking.brf" ), "global" );
+    }
+
+    // a dictionary of distinct descriptions
+    Random rnd = new Random( 4711 );
+    HashSet<String> seen = new HashSet<String>();
+    byte[][] descriptions = new byte[500][];
+    int n = 0;
+    while( n < descriptions.length )
+    {
+      byte[] description = wayCtx[0].encode( wayCtx[0].generateRandomValues( rnd ) );
+      if ( description != null && seen.add( Arrays.toString( description ) ) )
+      {
+        descriptions[n++] = description;
+      }
+    }
+
+    int[] accessTypes = new int[n];
+    wayCtx[1].accessTypes( descriptions, accessTypes, n );
+    Assert.assertEquals( "all seen after batch", 0, wayCtx[1].evaluateBatch( descriptions, n ) );
+
+    for( int i=0; i<n; i++ )
+    {
+      Assert.assertEquals( "accessType mismatch", wayCtx[0].accessType( descriptions[i] ), accessTypes[i] );
+      boolean inverse = rnd.nextBoolean();
+      wayCtx[0].evaluate( inverse, descriptions[i] );
+      wayCtx[1].evaluate( inverse, descriptions[i] );
+      Assert.assertEquals( "costfactor mismatch", wayCtx[0].getCostfactor(), wayCtx[1].getCostfactor(), 0.f );
+    }
+  }
+
+  @Test
+  public void contextCopyTest()
+  {
+    URL testpurl = this.getClass().getResource( "/dummy.txt" );
+    File workingDir = new File(testpurl.getFile()).getParentFile();
+    File profileDir = new File( workingDir, "/../../../misc/profiles2" );
+    File lookupFile = new File( profileDir, "lookups.dat" );
+
+    BExpressionMetaData meta = new BExpressionMetaData();
+    BExpressionContextWay protoWay = new BExpressionContextWay( meta );
+    BExpressionContextNode protoNode = new BExpressionContextNode( 0, meta );
+    meta.readMetaData( lookupFile );
+    protoNode.setForeignContext( protoWay );
+    protoWay.parseFile( new File( profileDir, "car-vario.brf" ), "global" );
+    protoNode.parseFile( new File( profileDir, "car-vario.brf" ), "global" );
+
+    BExpressionContextWay wayCopy = new BExpressionContextWay( protoWay );
+    BExpressionContextNode nodeCopy = new BExpressionContextNode( protoNode );
+    nodeCopy.setForeignContext( wayCopy );
+
+    Random rnd = new Random( 4711 );
+    for( int n=0; n<5000; n++ )
+    {
+      int[] wayData = protoWay.generateRandomValues( rnd );
+      protoWay.evaluate( wayData );
+      wayCopy.evaluate( wayData );
+      protoWay.assertAllVariablesEqual( wayCopy );
+
+      byte[] description = protoWay.encode( wayData );
+      if ( description == null )
+      {
+        continue;
+      }
+      protoWay.evaluate( false, description ); // as input for the node context
+      wayCopy.evaluate( false, description );
+
+      int[] nodeData = protoNode.generateRandomValues( rnd );
+      protoNode.evaluate( nodeData );
+      nodeCopy.evaluate( nodeData );
+      protoNode.assertAllVariablesEqual( nodeCopy );
+    }
+  }
+
+  /**
+   * parse some profiles twice, with the given system property set
+   * (if not null) for the reference and for the tested instance,
+   * and compare the results using random lookup data
+   */
+  private void compareToReference( String referenceProperty, String testProperty )
+  {
+    URL testpurl = this.getClass().getResource( "/dummy.txt" );
+    File workingDir = new File(testpurl.getFile()).getParentFile();
+    File profileDir = new File( workingDir, "/../../../misc/profiles2" );
+    File lookupFile = new File( profileDir, "lookups.dat" );
+
+    String[] profiles = { "trekking.brf", "car-vario.brf", "fastbike.brf", "shortest.brf", "hiking-beta.brf", "moped.brf" };
+    for( String profile : profiles )
+    {
+      File profileFile = new File( profileDir, profile );
+
+      BExpressionContextWay[] wayCtx = new BExpressionContextWay[2];
+      BExpressionContextNode[] nodeCtx = new BExpressionContextNode[2];
+      for( int i=0; i<2; i++ )
+      {
+        String property = i == 0 ? referenceProperty : testProperty;
+        if ( property != null ) System.setProperty( property, "true" );
+        try
+        {
+          BExpressionMetaData meta = new BExpressionMetaData();
+          wayCtx[i] = new BExpressionContextWay( meta );
+          nodeCtx[i] = new BExpressionContextNode( 0, meta );
+          meta.readMetaData( lookupFile );
+          nodeCtx[i].setForeignContext( wayCtx[i] );
+          wayCtx[i].parseFile( profileFile, "global" );
+          nodeCtx[i].parseFile( profileFile, "global" );
+        }
+        finally
+        {
+          if ( property != null ) System.clearProperty( property );
+        }
+      }
+      if ( "compileExpressions".equals( testProperty ) )
+      {
+        Assert.assertFalse( "interpreter expected", wayCtx[0].isCompiled() );
+        Assert.assertTrue( "compiled way-context expected for " + profile, wayCtx[1].isCompiled() );
+        Assert.assertTrue( "compiled node-context expected for " + profile, nodeCtx[1].isCompiled() );
+      }
+
+      Random rnd = new Random( 4711 );
+      for( int n=0; n<20000; n++ )
+      {
+        int[] wayData = wayCtx[0].generateRandomValues( rnd );
+        wayCtx[0].evaluate( wayData );
+        wayCtx[1].evaluate( wayData );
+        wayCtx[0].assertAllVariablesEqual( wayCtx[1] );
+
+        byte[] description = wayCtx[0].encode( wayData );
+        if ( description == null )
+        {
+          continue;
+        }
+        boolean inverse = rnd.nextBoolean();
+        wayCtx[0].evaluate( inverse, description );
+        wayCtx[1].evaluate( inverse, description );
+        Assert.assertEquals( "costfactor mismatch", wayCtx[0].getCostfactor(), wayCtx[1].getCostfactor(), 0.f );
+
+        int[] nodeData = nodeCtx[0].generateRandomValues( rnd );
+        nodeCtx[0].evaluate( nodeData );
+        nodeCtx[1].evaluate( nodeData );
+        nodeCtx[0].assertAllVariablesEqual( nodeCtx[1] );
+      }
+    }
+  }
 }
@@ -13,15 +13,15 @@ import java.util.zip.ZipInputStream;
 
 public class ConvertLidarTile
 {
-  public static int NROWS;
-  public static int NCOLS;
+  private int NROWS;
+  private int NCOLS;
 
   public static final short NODATA2 = -32767; // hgt-formats nodata
   public static final short NODATA = Short.MIN_VALUE;
 
-  static short[] imagePixels;
+  private short[] imagePixels;
 
-  private static void readHgtZip( String filename, int rowOffset, int colOffset ) throws Exception
+  private void readHgtZip( String filename, int rowOffset, int colOffset ) throws Exception
   {
     ZipInputStream zis = new ZipInputStream( new BufferedInputStream( new FileInputStream( filename ) ) );
     try
@@ -42,7 +42,7 @@ public class ConvertLidarTile
     }
   }
 
-  private static void readHgtFromStream( InputStream is, int rowOffset, int colOffset )
+  private void readHgtFromStream( InputStream is, int rowOffset, int colOffset )
       throws Exception
   {
     DataInputStream dis = new DataInputStream( new BufferedInputStream( is ) );
@@ -73,7 +73,7 @@ public class ConvertLidarTile
   }
 
 
-  private static void setPixel( int row, int col, short val )
+  private void setPixel( int row, int col, short val )
   {
     if ( row >= 0 && row < NROWS && col >= 0 && col < NCOLS )
     {
@@ -81,7 +81,7 @@ public class ConvertLidarTile
     }
   }
 
-  private static short getPixel( int row, int col )
+  private short getPixel( int row, int col )
   {
     if ( row >= 0 && row < NROWS && col >= 0 && col < NCOLS )
     {
@@ -92,6 +92,12 @@ public class ConvertLidarTile
 
 
   public static void doConvert( String inputDir, int lonDegreeStart, int latDegreeStart, String outputFile ) throws Exception
+  {
+    new ConvertLidarTile().convert( inputDir, lonDegreeStart, latDegreeStart, outputFile );
+  }
+
+  // the conversion state is per instance, so tiles can be converted in parallel
+  public void convert( String inputDir, int lonDegreeStart, int latDegreeStart, String outputFile ) throws Exception
   {
     int extraBorder = 0;
 
@@ -5,18 +5,18 @@ import java.util.zip.*;
 
 public class ConvertSrtmTile
 {
-  public static int NROWS;
-  public static int NCOLS;
+  private int NROWS;
+  private int NCOLS;
 
   public static final short SKIPDATA = -32766; // >50 degree skipped pixel
   public static final short NODATA2 = -32767; // bil-formats nodata
   public static final short NODATA = Short.MIN_VALUE;
 
-  static short[] imagePixels;
+  private short[] imagePixels;
 
-  public static int[] diffs = new int[100];
+  private int[] diffs = new int[100];
 
-  private static void readBilZip( String filename, int rowOffset, int colOffset, boolean halfCols ) throws Exception
+  private void readBilZip( String filename, int rowOffset, int colOffset, boolean halfCols ) throws Exception
   {
     ZipInputStream zis = new ZipInputStream( new BufferedInputStream( new FileInputStream( filename ) ) );
     try
@@ -37,7 +37,7 @@ public class ConvertSrtmTile
     }
   }
 
-  private static void readBilFromStream( InputStream is, int rowOffset, int colOffset, boolean halfCols )
+  private void readBilFromStream( InputStream is, int rowOffset, int colOffset, boolean halfCols )
       throws Exception
   {
     DataInputStream dis = new DataInputStream( new BufferedInputStream( is ) );
@@ -77,7 +77,7 @@ public class ConvertSrtmTile
   }
 
 
-  private static void setPixel( int row, int col, short val )
+  private void setPixel( int row, int col, short val )
   {
     if ( row >= 0 && row < NROWS && col >= 0 && col < NCOLS )
     {
@@ -85,7 +85,7 @@ public class ConvertSrtmTile
     }
   }
 
-  private static short getPixel( int row, int col )
+  private short getPixel( int row, int col )
   {
     if ( row >= 0 && row < NROWS && col >= 0 && col < NCOLS )
     {
@@ -96,6 +96,12 @@ public class ConvertSrtmTile
 
 
   public static void doConvert( String inputDir, String v1Dir, int lonDegreeStart, int latDegreeStart, String outputFile, SrtmRaster raster90 ) throws Exception
+  {
+    new ConvertSrtmTile().convert( inputDir, v1Dir, lonDegreeStart, latDegreeStart, outputFile, raster90 );
+  }
+
+  // the conversion state is per instance, so tiles can be converted in parallel
+  public void convert( String inputDir, String v1Dir, int lonDegreeStart, int latDegreeStart, String outputFile, SrtmRaster raster90 ) throws Exception
   {
     int extraBorder = 10;
     int datacells = 0;
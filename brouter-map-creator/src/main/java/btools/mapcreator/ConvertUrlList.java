@@ -3,58 +3,129 @@ package btools.mapcreator;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+/**
+ * Converts all srtm tiles of a url list into the .bef format,
+ * either from the srtm 1arc (+ srtm90) data, or from lidar data.
+ *
+ * The tiles are converted in parallel (-DconvertThreads=n), the
+ * default is the number of processors, limited by the heap as each
+ * conversion needs about 1.4 GB.
+ */
 public class ConvertUrlList
 {
   public static final short NODATA = -32767;
 
-  public static void main( String[] args ) throws Exception
+  private static final long BYTES_PER_CONVERSION = 1400L * 1024 * 1024;
+
+  public static void main( final String[] args ) throws Exception
   {
-    BufferedReader br = new BufferedReader( new FileReader( args[0] ) );
+    if ( args.length != 4 && args.length != 2 )
+    {
+      System.out.println( "usage: java ConvertUrlList <url-list> <srtm90-dir> <srtm30-dir> <v1-dir>" );
+      System.out.println( "or   : java ConvertUrlList <url-list> <lidar-dir>" );
+      return;
+    }
+    final boolean lidar = args.length == 2;
+
+    int defaultThreads = (int)Math.max( 1L, Math.min( Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().maxMemory() / BYTES_PER_CONVERSION ) );
+    int nThreads = Integer.getInteger( "convertThreads", defaultThreads ).intValue();
+    ExecutorService pool = Executors.newFixedThreadPool( Math.max( 1, nThreads ) );
+    List<Future<?>> results = new ArrayList<Future<?>>();
 
-    for ( ;; )
+    BufferedReader br = new BufferedReader( new FileReader( args[0] ) );
+    try
     {
-      String line = br.readLine();
-      if ( line == null )
+      for ( ;; )
       {
-        break;
-      }
-      int idx1 = line.indexOf( "srtm_" );
-      if ( idx1 < 0 )
-      {
-        continue;
-      }
+        String line = br.readLine();
+        if ( line == null )
+        {
+          break;
+        }
+        int idx1 = line.indexOf( "srtm_" );
+        if ( idx1 < 0 )
+        {
+          continue;
+        }
 
-      String filename90 = line.substring( idx1 );
-      String filename30 = filename90.substring( 0, filename90.length() - 3 ) + "bef";
+        final String filename90 = line.substring( idx1 );
+        final String filename30 = filename90.substring( 0, filename90.length() - 3 ) + "bef";
 
-      if ( new File( filename30 ).exists() )
-      {
-        continue;
-      }
+        if ( new File( filename30 ).exists() )
+        {
+          continue;
+        }
 
-      // int srtmLonIdx = (ilon+5000000)/5000000; -> ilon = (srtmLonIdx-1)*5
-      // int srtmLatIdx = (154999999-ilat)/5000000; -> ilat = 155 - srtmLatIdx*5
+        // int srtmLonIdx = (ilon+5000000)/5000000; -> ilon = (srtmLonIdx-1)*5
+        // int srtmLatIdx = (154999999-ilat)/5000000; -> ilat = 155 - srtmLatIdx*5
 
-      int srtmLonIdx = Integer.parseInt( filename90.substring( 5, 7 ).toLowerCase() );
-      int srtmLatIdx = Integer.parseInt( filename90.substring( 8, 10 ).toLowerCase() );
+        int srtmLonIdx = Integer.parseInt( filename90.substring( 5, 7 ).toLowerCase() );
+        int srtmLatIdx = Integer.parseInt( filename90.substring( 8, 10 ).toLowerCase() );
 
-      int ilon_base = ( srtmLonIdx - 1 ) * 5 - 180;
-      int ilat_base = 150 - srtmLatIdx * 5 - 90;
+        final int ilon_base = ( srtmLonIdx - 1 ) * 5 - 180;
+        final int ilat_base = 150 - srtmLatIdx * 5 - 90;
 
-      SrtmRaster raster90 = null;
+        results.add( pool.submit( new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            try
+            {
+              if ( lidar )
+              {
+                new ConvertLidarTile().convert( args[1], ilon_base, ilat_base, filename30 );
+                return;
+              }
+              SrtmRaster raster90 = null;
 
-      File file90 = new File( new File( args[1] ), filename90 );
-      if ( file90.exists() )
+              File file90 = new File( new File( args[1] ), filename90 );
+              if ( file90.exists() )
+              {
+                System.out.println( "reading " + file90 );
+                raster90 = new SrtmData( file90 ).getRaster();
+              }
+
+              new ConvertSrtmTile().convert( args[2], args[3], ilon_base, ilat_base, filename30, raster90 );
+            }
+            catch( Exception e )
+            {
+              throw new RuntimeException( "error converting " + filename90, e );
+            }
+          }
+        } ) );
+      }
+    }
+    finally
+    {
+      br.close();
+      pool.shutdown();
+    }
+
+    // wait for all conversions, report the first error
+    for( Future<?> f : results )
+    {
+      try
       {
-        System.out.println( "reading " + file90 );
-        raster90 = new SrtmData( file90 ).getRaster();
+        f.get();
+      }
+      catch( ExecutionException e )
+      {
+        pool.shutdownNow();
+        Throwable cause = e.getCause();
+        if ( cause instanceof Error )
+        {
+          throw (Error)cause;
+        }
+        throw (RuntimeException)cause;
       }
-      
-      ConvertSrtmTile.doConvert( args[2], args[3], ilon_base, ilat_base, filename30, raster90 );
     }
-    br.close();
   }
-  
-
 }
@@ -0,0 +1,119 @@
+package btools.mapcreator;
+
+import java.io.File;
+
+/**
+ * MapCreator runs the complete map processing in a single process:
+ *
+ * - OsmFastCutter (OsmCutter, NodeFilter, WayCutter, RelationMerger,
+ *   WayCutter5, NodeCutter and the restriction cutters)
+ * - PosUnifier
+ * - WayLinker
+ *
+ * The intermediate tiles are the only data written to disk. They are
+ * deleted as soon as they are consumed (unless -Ddeletetmpfiles=false),
+ * and the temporary directories are removed after each stage.
+ * With -DkeepLinkerInput=true the input of the WayLinker (and the
+ * relation file) is kept, for a second linking run (e.g. with traffic
+ * data) or for incremental updates with the OscUpdater.
+ *
+ * @author ab
+ */
+public class MapCreator
+{
+  public static void main( String[] args ) throws Exception
+  {
+    System.out.println( "*** MapCreator: create rd5 data tiles from an osm map in a single process" );
+    if ( args.length != 8 )
+    {
+      System.out.println( "usage: java MapCreator <lookup-file> <filter-profile> <report-profile> <check-profile> <srtm-data-dir> <tmp-dir> <data-tiles-out> <map-file>" );
+      return;
+    }
+    new MapCreator().process( new File( args[0] ), new File( args[1] ), new File( args[2] ), new File( args[3] ), args[4], new File( args[5] ),
+        new File( args[6] ), new File( args[7] ) );
+  }
+
+  public void process( File lookupFile, File profileAll, File profileReport, File profileCheck, String srtmDir, File tmpDir, File dataTilesOut,
+      File mapFile ) throws Exception
+  {
+    if ( System.getProperty( "deletetmpfiles" ) == null )
+    {
+      System.setProperty( "deletetmpfiles", "true" );
+    }
+    boolean deleteTmp = "true".equals( System.getProperty( "deletetmpfiles" ) );
+    boolean keepLinkerInput = Boolean.getBoolean( "keepLinkerInput" );
+
+    tmpDir.mkdirs();
+    dataTilesOut.mkdirs();
+    File nodes = createDir( tmpDir, "nodetiles" );
+    File ways = createDir( tmpDir, "waytiles" );
+    File nodes55 = createDir( tmpDir, "nodes55" );
+    File ways55 = createDir( tmpDir, "waytiles55" );
+    File unodes55 = createDir( tmpDir, "unodes55" );
+    File relFile = new File( tmpDir, "cycleways.dat" );
+    File resFile = new File( tmpDir, "restrictions.dat" );
+    File borderNids = new File( tmpDir, "bordernids.dat" );
+    File borderNodes = new File( tmpDir, "bordernodes.dat" );
+    new File( tmpDir, OscUpdater.WAY_INDEX ).delete(); // belongs to the previous state
+
+    long t0 = System.currentTimeMillis();
+    OsmFastCutter.doCut( lookupFile, nodes, ways, nodes55, ways55, borderNids, relFile, resFile, profileAll, profileReport, profileCheck, mapFile );
+    if ( deleteTmp )
+    {
+      deleteTmp( nodes );
+      deleteTmp( ways );
+      deleteTmp( new File( tmpDir, "restrictions" ) );
+      if ( !keepLinkerInput )
+      {
+        deleteTmp( relFile );
+      }
+    }
+
+    long t1 = System.currentTimeMillis();
+    new PosUnifier().process( nodes55, unodes55, borderNids, borderNodes, srtmDir );
+    if ( deleteTmp )
+    {
+      deleteTmp( nodes55 );
+      deleteTmp( borderNids );
+    }
+
+    long t2 = System.currentTimeMillis();
+    if ( keepLinkerInput )
+    {
+      System.setProperty( "deletetmpfiles", "false" );
+    }
+    new WayLinker().process( unodes55, ways55, borderNodes, resFile, lookupFile, profileAll, dataTilesOut, "rd5" );
+    if ( deleteTmp && !keepLinkerInput )
+    {
+      deleteTmp( unodes55 );
+      deleteTmp( ways55 );
+      deleteTmp( new File( tmpDir, "restrictions55" ) );
+      deleteTmp( borderNodes );
+      deleteTmp( resFile );
+    }
+    long t3 = System.currentTimeMillis();
+
+    System.out.println( "*** MapCreator done, time (ms) cutting=" + ( t1 - t0 ) + " unifying=" + ( t2 - t1 ) + " linking=" + ( t3 - t2 ) );
+  }
+
+  private static File createDir( File parent, String name )
+  {
+    File dir = new File( parent, name );
+    dir.mkdir();
+    return dir;
+  }
+
+  // delete a temp file or a directory of temp files
+  private static void deleteTmp( File f )
+  {
+    if ( f.isDirectory() )
+    {
+      File[] files = f.listFiles();
+      for( int i=0; i<files.length; i++ )
+      {
+        files[i].delete();
+      }
+    }
+    f.delete();
+  }
+}
@@ -13,12 +13,19 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.HashMap;
 
+import btools.util.BlockCompressedInputStream;
+import btools.util.BlockCompressedOutputStream;
 import btools.util.DiffCoderDataOutputStream;
+import btools.util.NodePositionStore;
 
 public abstract class MapCreatorBase implements WayListener, NodeListener, RelationListener
 {
+  private static NodePositionStore positionStore;
+
   private DiffCoderDataOutputStream[] tileOutStreams;
   protected File outTileDir;
 
@@ -101,14 +108,81 @@ public abstract class MapCreatorBase implements WayListener, NodeListener, Relat
 
  protected DataInputStream createInStream( File inFile ) throws IOException
  {
-   return new DataInputStream( new BufferedInputStream ( new FileInputStream( inFile ) ) );
+   return new DataInputStream( openInStream( inFile ) );
  }
 
+ /**
+  * open a temp file for reading, block compressed or plain
+  */
+ protected static InputStream openInStream( File inFile ) throws IOException
+ {
+   if ( BlockCompressedInputStream.isBlockCompressed( inFile ) )
+   {
+     return BlockCompressedInputStream.open( inFile );
+   }
+   return new BufferedInputStream ( new FileInputStream( inFile ) );
+ }
+
+ /**
+  * create a temp file, block compressed unless -DcompressTmpFiles=false
+  */
  protected DiffCoderDataOutputStream createOutStream( File outFile ) throws IOException
  {
-   return new DiffCoderDataOutputStream( new BufferedOutputStream( new FileOutputStream( outFile ) ) );
+   OutputStream os = new BufferedOutputStream( new FileOutputStream( outFile ) );
+   if ( !"false".equals( System.getProperty( "compressTmpFiles" ) ) )
+   {
+     os = new BlockCompressedOutputStream( os );
+   }
+   return new DiffCoderDataOutputStream( os );
  }
 
+  /**
+   * The off-heap node position store given by -DnodePositionStore=<file>,
+   * shared by all stages of the process, or null if not configured
+   */
+  protected static synchronized NodePositionStore getPositionStore() throws IOException
+  {
+    String path = System.getProperty( "nodePositionStore" );
+    if ( path == null )
+    {
+      return null;
+    }
+    if ( positionStore == null )
+    {
+      positionStore = new NodePositionStore( new File( path ) );
+    }
+    return positionStore;
+  }
+
+  /**
+   * Same as getPositionStore, but starts with an empty store.
+   * To be called by the first stage writing positions.
+   */
+  protected static synchronized NodePositionStore createPositionStore() throws IOException
+  {
+    String path = System.getProperty( "nodePositionStore" );
+    if ( path == null )
+    {
+      return null;
+    }
+    closePositionStore();
+    positionStore = new NodePositionStore( new File( path ), 24, true );
+    return positionStore;
+  }
+
+  /**
+   * Close the position store at the end of a stage, a later
+   * stage re-opens it with getPositionStore
+   */
+  protected static synchronized void closePositionStore() throws IOException
+  {
+    if ( positionStore != null )
+    {
+      positionStore.close();
+      positionStore = null;
+    }
+  }
+
   protected DiffCoderDataOutputStream getOutStreamForTile( int tileIndex ) throws Exception
   {
     if ( tileOutStreams == null )
@@ -9,7 +9,7 @@ import java.io.File;
  *
  * @author ab
  */
-public class NodeCutter extends MapCreatorBase
+public class NodeCutter extends MapCreatorBase implements TileScheduler.Worker
 {
   private int lonoffset;
   private int latoffset;
@@ -34,7 +34,22 @@ public class NodeCutter extends MapCreatorBase
   {
     init( nodeTilesOut );
 
-    new NodeIterator( this, true ).processDir( nodeTilesIn, ".tlf" );
+    new TileScheduler().processDir( nodeTilesIn, ".tlf", new TileScheduler.WorkerFactory()
+    {
+      @Override
+      public TileScheduler.Worker createWorker()
+      {
+        NodeCutter worker = new NodeCutter();
+        worker.init( outTileDir );
+        return worker;
+      }
+    } );
+  }
+
+  @Override
+  public void processTile( File nodefile ) throws Exception
+  {
+    new NodeIterator( this, true ).processFile( nodefile );
   }
 
   @Override
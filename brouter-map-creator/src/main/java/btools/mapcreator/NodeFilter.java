@@ -1,8 +1,6 @@
 package btools.mapcreator;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 
 import btools.util.DenseLongMap;
 import btools.util.DiffCoderDataOutputStream;
@@ -15,7 +13,7 @@ import btools.util.TinyDenseLongMap;
  *
  * @author ab
  */
-public class NodeFilter extends MapCreatorBase
+public class NodeFilter extends MapCreatorBase implements TileScheduler.Worker
 {
   private DiffCoderDataOutputStream nodesOutStream;
   private File nodeTilesOut;
@@ -47,8 +45,24 @@ public class NodeFilter extends MapCreatorBase
     // read the wayfile into a bitmap of used nodes
     new WayIterator( this, false ).processFile( wayFileIn );
 
-    // finally filter all node files
-    new NodeIterator( this, true ).processDir( nodeTilesIn, ".tls" );
+    // finally filter all node files, the workers share the (read-only) bitmap
+    new TileScheduler().processDir( nodeTilesIn, ".tls", new TileScheduler.WorkerFactory()
+    {
+      @Override
+      public TileScheduler.Worker createWorker()
+      {
+        NodeFilter worker = new NodeFilter();
+        worker.nodebitmap = nodebitmap;
+        worker.nodeTilesOut = NodeFilter.this.nodeTilesOut;
+        return worker;
+      }
+    } );
+  }
+
+  @Override
+  public void processTile( File nodefile ) throws Exception
+  {
+    new NodeIterator( this, true ).processFile( nodefile );
   }
 
   @Override
@@ -66,7 +80,7 @@ public class NodeFilter extends MapCreatorBase
   {
     String filename = nodefile.getName();
     File outfile = new File( nodeTilesOut, filename );
-    nodesOutStream = new DiffCoderDataOutputStream( new BufferedOutputStream ( new FileOutputStream( outfile ) ) );
+    nodesOutStream = createOutStream( outfile );
   }
 
   @Override
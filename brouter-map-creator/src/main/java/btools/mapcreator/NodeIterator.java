@@ -1,9 +1,7 @@
 package btools.mapcreator;
 
-import java.io.BufferedInputStream;
 import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
 
 import btools.util.DiffCoderDataInputStream;
 
@@ -49,7 +47,7 @@ public class NodeIterator extends MapCreatorBase
 
     listener.nodeFileStart( nodefile );
 
-    DiffCoderDataInputStream di = new DiffCoderDataInputStream( new BufferedInputStream ( new FileInputStream( nodefile ) ) );
+    DiffCoderDataInputStream di = new DiffCoderDataInputStream( openInStream( nodefile ) );
     try
     {
       for(;;)
@@ -0,0 +1,689 @@
+package btools.mapcreator;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TreeSet;
+
+import btools.util.CompactLongMap;
+import btools.util.CompactLongSet;
+import btools.util.DiffCoderDataOutputStream;
+import btools.util.LongList;
+import btools.util.NodePositionStore;
+
+/**
+ * OscUpdater applies an osm change file (.osc) to the map state
+ * kept by a MapCreator run with -DkeepLinkerInput=true and
+ * re-creates only the rd5 data tiles affected by the changes:
+ *
+ * - parse the changes (created, modified and deleted nodes and ways)
+ * - find the tiles containing changed ways, changed nodes or ways using changed nodes
+ * - rewrite these unified node- and way-tiles and the border nodes
+ * - run the WayLinker on the affected tiles only
+ *
+ * Limitations: changed relations (route bits) and turn-restrictions are
+ * not applied, they are picked up by the next full run. If changed ways
+ * use nodes that are unknown to the (filtered) state and not contained in
+ * the change file, the update fails before writing anything and the map
+ * needs a full run.
+ *
+ * If the position store of the MapCreator run is given (-DnodePositionStore),
+ * the tiles to scan are indexed from the change set: the old tiles of the
+ * changed nodes (from the store) and of the changed ways (from a way index
+ * in the state, see WAY_INDEX). Otherwise all tiles are scanned. The store
+ * and the way index are updated with the rewritten nodes and ways.
+ * The way index is created by the first update of a state, with a full scan.
+ *
+ * @author ab
+ */
+public class OscUpdater extends MapCreatorBase
+{
+  /**
+   * The way index: a NodePositionStore keyed by the way id, holding up to two
+   * 5*5 tile numbers (instead of lon/lat) and the number of tiles (3 = more)
+   */
+  public static final String WAY_INDEX = "wayindex.dat";
+
+  private static final int PARSE_CHANGES = 0;
+  private static final int SCAN_WAYS = 1;
+  private static final int SCAN_NODES = 2;
+  private static final int KEEP_NODES = 3;
+  private static final int COPY_NODES = 4;
+  private static final int COPY_WAYS = 5;
+  private static final int COPY_BORDER = 6;
+
+  private int phase;
+  private OsmParser parser;
+  private OsmCutter encoder;
+  private RelationMerger relMerger;
+  private PosUnifier unifier;
+  private NodePositionStore positionStore;
+  private NodePositionStore wayIndex;
+  private boolean buildWayIndex;
+
+  // changed nodes and ways, a null value is a deletion
+  private CompactLongMap<NodeData> changedNodes = new CompactLongMap<NodeData>();
+  private LongList changedNodeIds = new LongList( 1024 );
+  private CompactLongMap<WayData> changedWays = new CompactLongMap<WayData>();
+  private LongList changedWayIds = new LongList( 1024 );
+
+  private CompactLongSet neededNids = new CompactLongSet();
+  private CompactLongMap<NodeData> knownNodes = new CompactLongMap<NodeData>();
+  private CompactLongSet oldNodes = new CompactLongSet();
+  private CompactLongSet placedNodes = new CompactLongSet();
+  private CompactLongSet borderNids = new CompactLongSet();
+  private LongList borderNidList = new LongList( 1024 );
+  private CompactLongSet borderWritten = new CompactLongSet();
+
+  private TreeSet<String> affectedTiles = new TreeSet<String>();
+  private CompactLongSet tileIds; // the changes placed in the current tile
+  private CompactLongSet tileWritten;
+  private HashMap<String,List<NodeData>> addedNodes = new HashMap<String,List<NodeData>>();
+  private HashMap<String,List<WayData>> addedWays = new HashMap<String,List<WayData>>();
+
+  private String currentTile;
+  private int currentTileCode;
+  private DiffCoderDataOutputStream nodesOutStream;
+  private DataOutputStream waysOutStream;
+  private int relationsIgnored;
+
+  public static void main( String[] args ) throws Exception
+  {
+    System.out.println( "*** OscUpdater: apply an osm change file and re-create the affected rd5 data tiles" );
+    if ( args.length != 8 )
+    {
+      System.out.println( "usage: java OscUpdater <lookup-file> <filter-profile> <report-profile> <check-profile> <srtm-data-dir> <state-dir> <data-tiles-out> <osc-file>" );
+      return;
+    }
+    new OscUpdater().process( new File( args[0] ), new File( args[1] ), new File( args[2] ), new File( args[3] ), args[4], new File( args[5] ),
+        new File( args[6] ), new File( args[7] ) );
+  }
+
+  public void process( File lookupFile, File profileAll, File profileReport, File profileCheck, String srtmDir, File stateDir, File dataTilesOut,
+      File oscFile ) throws Exception
+  {
+    File nodeTiles = new File( stateDir, "unodes55" );
+    File wayTiles = new File( stateDir, "waytiles55" );
+    File borderFile = new File( stateDir, "bordernodes.dat" );
+    File relFile = new File( stateDir, "cycleways.dat" );
+    File resFile = new File( stateDir, "restrictions.dat" );
+    if ( !nodeTiles.isDirectory() || !wayTiles.isDirectory() || !borderFile.exists() )
+    {
+      throw new IllegalArgumentException( "not a map state kept by MapCreator -DkeepLinkerInput=true: " + stateDir );
+    }
+
+    // the state is updated in place and must survive the linking
+    System.setProperty( "deletetmpfiles", "false" );
+
+    encoder = new OsmCutter();
+    encoder.init( lookupFile, profileAll );
+    if ( relFile.exists() )
+    {
+      relMerger = new RelationMerger();
+      relMerger.init( relFile, lookupFile, profileReport, profileCheck );
+    }
+
+    // *** read the changes
+    phase = PARSE_CHANGES;
+    parser = new OsmParser();
+    parser.readMap( oscFile, this, this, this );
+    System.out.println( "changed nodes=" + changedNodeIds.size() + " ways=" + changedWayIds.size() + " relations ignored=" + relationsIgnored );
+
+    // *** the tiles to scan, null for all
+    positionStore = getPositionStore();
+    TreeSet<String> scanTiles = null;
+    File wayIndexFile = new File( stateDir, WAY_INDEX );
+    File wayIndexTmp = new File( stateDir, WAY_INDEX + ".tmp" );
+    if ( positionStore != null )
+    {
+      // a missing index is built by the full scan, and valid not before it is complete
+      buildWayIndex = !wayIndexFile.exists();
+      wayIndex = buildWayIndex ? new NodePositionStore( wayIndexTmp, 24, true ) : new NodePositionStore( wayIndexFile );
+      scanTiles = buildWayIndex ? null : indexTiles();
+    }
+    else
+    {
+      wayIndexFile.delete(); // not maintained without the store
+    }
+
+    // *** find the tiles of changed ways and of ways using changed nodes (which are re-tiled as well)
+    phase = SCAN_WAYS;
+    if ( scanTiles == null )
+    {
+      new WayIterator( this, false ).processDir( wayTiles, ".wt5" );
+    }
+    else
+    {
+      for( String tile : scanTiles )
+      {
+        File wayFile = new File( wayTiles, tile + ".wt5" );
+        if ( wayFile.exists() )
+        {
+          new WayIterator( this, false ).processFile( wayFile );
+        }
+      }
+    }
+
+    // *** find the old tiles of the changed nodes and the other nodes of the changed ways
+    for( int i=0; i<changedWayIds.size(); i++ )
+    {
+      WayData w = changedWays.get( changedWayIds.get( i ) );
+      for( int ni=0; w != null && ni<w.nodes.size(); ni++ )
+      {
+        long nid = w.nodes.get( ni );
+        if ( !changedNodes.contains( nid ) && !neededNids.contains( nid ) )
+        {
+          neededNids.fastAdd( nid );
+          addStoredTile( scanTiles, nid );
+        }
+      }
+    }
+    phase = SCAN_NODES;
+    if ( scanTiles == null )
+    {
+      new NodeIterator( this, false ).processDir( nodeTiles, ".u5d" );
+    }
+    else
+    {
+      System.out.println( "scanned tiles: " + scanTiles );
+      for( String tile : scanTiles )
+      {
+        File nodeFile = new File( nodeTiles, tile + ".u5d" );
+        if ( nodeFile.exists() )
+        {
+          new NodeIterator( this, false ).processFile( nodeFile );
+        }
+      }
+    }
+
+    placeChanges();
+
+    // *** rewrite the affected tiles and the border nodes
+    unifier = new PosUnifier( srtmDir, stateDir );
+    List<File> linkTiles = new ArrayList<File>();
+    for( String tile : affectedTiles )
+    {
+      rewriteTile( new File( nodeTiles, tile + ".u5d" ), new File( wayTiles, tile + ".wt5" ), tile );
+      linkTiles.add( new File( wayTiles, tile + ".wt5" ) );
+    }
+    rewriteBorderNodes( borderFile );
+    unifier.close();
+    closePositionStore();
+    if ( wayIndex != null )
+    {
+      updateWayIndex();
+      wayIndex.close();
+      if ( buildWayIndex )
+      {
+        replace( wayIndexFile, wayIndexTmp );
+      }
+    }
+
+    // *** and link the affected tiles
+    System.out.println( "affected tiles: " + affectedTiles );
+    new WayLinker().processTiles( nodeTiles, wayTiles, borderFile, resFile, lookupFile, profileAll, dataTilesOut, "rd5", linkTiles );
+  }
+
+  @Override
+  public void nodeFileStart( File nodefile ) throws Exception
+  {
+    currentTile = tileOf( nodefile );
+  }
+
+  @Override
+  public void nextNode( NodeData n ) throws Exception
+  {
+    switch( phase )
+    {
+      case PARSE_CHANGES:
+        if ( parser.getChangeAction() == null )
+        {
+          return;
+        }
+        long nid = n.nid;
+        if ( "delete".equals( parser.getChangeAction() ) )
+        {
+          n = null;
+        }
+        else
+        {
+          encoder.encodeNode( n );
+        }
+        if ( !changedNodes.put( nid, n ) )
+        {
+          changedNodeIds.add( nid );
+        }
+        break;
+      case SCAN_NODES:
+        if ( changedNodes.contains( n.nid ) )
+        {
+          affectedTiles.add( currentTile );
+          oldNodes.fastAdd( n.nid );
+        }
+        else if ( neededNids.contains( n.nid ) )
+        {
+          knownNodes.fastPut( n.nid, n );
+        }
+        break;
+      case KEEP_NODES:
+        if ( !changedNodes.contains( n.nid ) )
+        {
+          unifier.keepPosition( n );
+        }
+        break;
+      case COPY_NODES:
+        if ( !changedNodes.contains( n.nid ) )
+        {
+          n.writeTo( nodesOutStream );
+        }
+        else if ( tileIds.contains( n.nid ) )
+        {
+          changedNodes.get( n.nid ).writeTo( nodesOutStream );
+          tileWritten.fastAdd( n.nid );
+        }
+        break;
+      case COPY_BORDER:
+        if ( changedNodes.contains( n.nid ) )
+        {
+          // replaced by the new version, if still in place
+          n = placedNodes.contains( n.nid ) ? changedNodes.get( n.nid ) : null;
+        }
+        if ( n != null )
+        {
+          n.writeTo( nodesOutStream );
+          if ( borderNids.contains( n.nid ) && !borderWritten.contains( n.nid ) )
+          {
+            borderWritten.fastAdd( n.nid );
+          }
+        }
+        break;
+    }
+  }
+
+  @Override
+  public boolean wayFileStart( File wayfile ) throws Exception
+  {
+    currentTile = tileOf( wayfile );
+    currentTileCode = tileCode( currentTile );
+    return true;
+  }
+
+  @Override
+  public void nextWay( WayData w ) throws Exception
+  {
+    switch( phase )
+    {
+      case PARSE_CHANGES:
+        if ( parser.getChangeAction() == null )
+        {
+          return;
+        }
+        long wid = w.wid;
+        if ( "delete".equals( parser.getChangeAction() ) || !encoder.encodeWay( w ) )
+        {
+          w = null; // deleted or no longer routable
+        }
+        else if ( relMerger != null )
+        {
+          relMerger.nextWay( w );
+        }
+        if ( !changedWays.put( wid, w ) )
+        {
+          changedWayIds.add( wid );
+        }
+        break;
+      case SCAN_WAYS:
+        if ( buildWayIndex )
+        {
+          addIndexTile( w.wid, currentTileCode );
+        }
+        if ( changedWays.contains( w.wid ) )
+        {
+          affectedTiles.add( currentTile );
+          return;
+        }
+        for( int i=0; i<w.nodes.size(); i++ )
+        {
+          if ( changedNodes.contains( w.nodes.get( i ) ) )
+          {
+            affectedTiles.add( currentTile );
+            changedWays.put( w.wid, w );
+            changedWayIds.add( w.wid );
+            break;
+          }
+        }
+        break;
+      case COPY_WAYS:
+        if ( !changedWays.contains( w.wid ) )
+        {
+          w.writeTo( waysOutStream );
+        }
+        else if ( tileIds.contains( w.wid ) )
+        {
+          changedWays.get( w.wid ).writeTo( waysOutStream );
+          tileWritten.fastAdd( w.wid );
+        }
+        break;
+    }
+  }
+
+  @Override
+  public void nextRelation( RelationData r ) throws Exception
+  {
+    if ( parser.getChangeAction() != null )
+    {
+      relationsIgnored++;
+    }
+  }
+
+  // the old tiles of the changed nodes and ways, or null if a way is in too many tiles for the index
+  private TreeSet<String> indexTiles() throws IOException
+  {
+    TreeSet<String> tiles = new TreeSet<String>();
+    for( int i=0; i<changedNodeIds.size(); i++ )
+    {
+      addStoredTile( tiles, changedNodeIds.get( i ) );
+    }
+    for( int i=0; i<changedWayIds.size(); i++ )
+    {
+      long wid = changedWayIds.get( i );
+      if ( !wayIndex.contains( wid ) )
+      {
+        continue; // new or not routable before
+      }
+      if ( wayIndex.getSElev( wid ) > 2 )
+      {
+        System.out.println( "way " + wid + " in more than 2 tiles, scanning all tiles" );
+        return null;
+      }
+      tiles.add( tileName( wayIndex.getILon( wid ) ) );
+      if ( wayIndex.getILat( wid ) != -1 )
+      {
+        tiles.add( tileName( wayIndex.getILat( wid ) ) );
+      }
+    }
+    return tiles;
+  }
+
+  private void addIndexTile( long wid, int tile ) throws IOException
+  {
+    if ( !wayIndex.contains( wid ) )
+    {
+      wayIndex.put( wid, tile, -1, (short)1 );
+      return;
+    }
+    int tile1 = wayIndex.getILon( wid );
+    int tile2 = wayIndex.getILat( wid );
+    if ( tile != tile1 && tile != tile2 )
+    {
+      wayIndex.put( wid, tile1, tile, (short)( tile2 == -1 ? 2 : 3 ) );
+    }
+  }
+
+  // the changed ways are in the tiles of their (new) nodes, or nowhere
+  private void updateWayIndex() throws IOException
+  {
+    for( int i=0; i<changedWayIds.size(); i++ )
+    {
+      long wid = changedWayIds.get( i );
+      WayData w = changedWays.get( wid );
+      wayIndex.remove( wid );
+      for( int ni=0; w != null && ni<w.nodes.size(); ni++ )
+      {
+        NodeData n = nodeFor( w.nodes.get( ni ) );
+        addIndexTile( wid, tileCode( n.ilon, n.ilat ) );
+      }
+    }
+  }
+
+  private void addStoredTile( TreeSet<String> tiles, long nid ) throws IOException
+  {
+    if ( tiles != null && positionStore.contains( nid ) )
+    {
+      tiles.add( tileFor( positionStore.getILon( nid ), positionStore.getILat( nid ) ) );
+    }
+  }
+
+  // assign the changed ways and nodes to the tiles of their (new) positions
+  private void placeChanges()
+  {
+    // dropping unknown nodes would create shortcuts, so better leave the state untouched
+    int unknownNodes = 0;
+    String example = null;
+    for( int i=0; i<changedWayIds.size(); i++ )
+    {
+      WayData w = changedWays.get( changedWayIds.get( i ) );
+      for( int ni=0; w != null && ni<w.nodes.size(); ni++ )
+      {
+        if ( nodeFor( w.nodes.get( ni ) ) == null )
+        {
+          if ( unknownNodes++ == 0 )
+          {
+            example = "node " + w.nodes.get( ni ) + " of way " + w.wid;
+          }
+        }
+      }
+    }
+    if ( unknownNodes > 0 )
+    {
+      throw new IllegalArgumentException( "changed ways use " + unknownNodes + " nodes unknown to the map state (" + example
+          + "), the map needs a full run" );
+    }
+
+    for( int i=0; i<changedWayIds.size(); i++ )
+    {
+      WayData w = changedWays.get( changedWayIds.get( i ) );
+      if ( w == null )
+      {
+        continue;
+      }
+      LongList nodes = w.nodes;
+      HashSet<String> wayTiles = new HashSet<String>();
+      String lastTile = null;
+      for( int ni=0; ni<nodes.size(); ni++ )
+      {
+        long nid = nodes.get( ni );
+        String tile = tileFor( nodeFor( nid ) );
+        if ( wayTiles.add( tile ) )
+        {
+          listFor( addedWays, tile ).add( w );
+          affectedTiles.add( tile );
+        }
+        if ( lastTile != null && !lastTile.equals( tile ) )
+        {
+          addBorderNid( nodes.get( ni-1 ) );
+          addBorderNid( nid );
+        }
+        if ( changedNodes.contains( nid ) && !placedNodes.contains( nid ) )
+        {
+          placeNode( changedNodes.get( nid ) );
+        }
+        lastTile = tile;
+      }
+    }
+
+    // changed nodes not used by changed ways stay if they were there before
+    for( int i=0; i<changedNodeIds.size(); i++ )
+    {
+      long nid = changedNodeIds.get( i );
+      NodeData n = changedNodes.get( nid );
+      if ( n != null && oldNodes.contains( nid ) && !placedNodes.contains( nid ) )
+      {
+        placeNode( n );
+      }
+    }
+  }
+
+  private void placeNode( NodeData n )
+  {
+    placedNodes.fastAdd( n.nid );
+    String tile = tileFor( n );
+    listFor( addedNodes, tile ).add( n );
+    affectedTiles.add( tile );
+  }
+
+  private void addBorderNid( long nid )
+  {
+    if ( !borderNids.contains( nid ) )
+    {
+      borderNids.fastAdd( nid );
+      borderNidList.add( nid );
+    }
+  }
+
+  private NodeData nodeFor( long nid )
+  {
+    return changedNodes.contains( nid ) ? changedNodes.get( nid ) : knownNodes.get( nid );
+  }
+
+  private void rewriteTile( File nodeFile, File wayFile, String tile ) throws Exception
+  {
+    System.out.println( "*** OscUpdater rewriting tile: " + tile );
+
+    // the unchanged nodes keep their unified positions, the changed ones are unified around them.
+    // Changed nodes and ways still in the tile replace the old versions (keeping the order
+    // of a full run), the others are appended
+    List<NodeData> nodes = listFor( addedNodes, tile );
+    unifier.resetTile();
+    if ( nodeFile.exists() )
+    {
+      phase = KEEP_NODES;
+      new NodeIterator( this, false ).processFile( nodeFile );
+    }
+    tileIds = new CompactLongSet();
+    for( NodeData n : nodes )
+    {
+      unifier.unify( n );
+      tileIds.fastAdd( n.nid );
+      if ( positionStore != null )
+      {
+        positionStore.put( n.nid, n.ilon, n.ilat, n.selev );
+      }
+    }
+    File tmpFile = new File( nodeFile.getParentFile(), tile + ".tmp" );
+    nodesOutStream = createOutStream( tmpFile );
+    tileWritten = new CompactLongSet();
+    if ( nodeFile.exists() )
+    {
+      phase = COPY_NODES;
+      new NodeIterator( this, false ).processFile( nodeFile );
+    }
+    for( NodeData n : nodes )
+    {
+      if ( !tileWritten.contains( n.nid ) )
+      {
+        n.writeTo( nodesOutStream );
+      }
+    }
+    nodesOutStream.close();
+    replace( nodeFile, tmpFile );
+
+    List<WayData> ways = listFor( addedWays, tile );
+    tileIds = new CompactLongSet();
+    for( WayData w : ways )
+    {
+      tileIds.fastAdd( w.wid );
+    }
+    tmpFile = new File( wayFile.getParentFile(), tile + ".tmp" );
+    waysOutStream = createOutStream( tmpFile );
+    tileWritten = new CompactLongSet();
+    if ( wayFile.exists() )
+    {
+      phase = COPY_WAYS;
+      new WayIterator( this, false ).processFile( wayFile );
+    }
+    for( WayData w : ways )
+    {
+      if ( !tileWritten.contains( w.wid ) )
+      {
+        w.writeTo( waysOutStream );
+      }
+    }
+    waysOutStream.close();
+    replace( wayFile, tmpFile );
+  }
+
+  private void rewriteBorderNodes( File borderFile ) throws Exception
+  {
+    File tmpFile = new File( borderFile.getParentFile(), "bordernodes.tmp" );
+    nodesOutStream = createOutStream( tmpFile );
+    phase = COPY_BORDER;
+    new NodeIterator( this, false ).processFile( borderFile );
+    for( int i=0; i<borderNidList.size(); i++ )
+    {
+      long nid = borderNidList.get( i );
+      if ( !borderWritten.contains( nid ) )
+      {
+        nodeFor( nid ).writeTo( nodesOutStream );
+      }
+    }
+    nodesOutStream.close();
+    replace( borderFile, tmpFile );
+  }
+
+  private static void replace( File file, File tmpFile )
+  {
+    file.delete();
+    if ( !tmpFile.renameTo( file ) )
+    {
+      throw new RuntimeException( "cannot rename " + tmpFile + " to " + file );
+    }
+  }
+
+  private static <T> List<T> listFor( HashMap<String,List<T>> map, String tile )
+  {
+    List<T> list = map.get( tile );
+    if ( list == null )
+    {
+      list = new ArrayList<T>();
+      map.put( tile, list );
+    }
+    return list;
+  }
+
+  private static String tileOf( File f )
+  {
+    String name = f.getName();
+    return name.substring( 0, name.lastIndexOf( '.' ) );
+  }
+
+  // the name of the 5*5 degree tile as used for the unified node- and way-tiles
+  private static String tileFor( NodeData n )
+  {
+    return tileFor( n.ilon, n.ilat );
+  }
+
+  private static String tileFor( int ilon, int ilat )
+  {
+    return tileName( tileCode( ilon, ilat ) );
+  }
+
+  // the number of a 5*5 degree tile, as kept in the way index
+  private static int tileCode( int ilon, int ilat )
+  {
+    return ( ilon / 5000000 ) * 36 + ilat / 5000000;
+  }
+
+  private static int tileCode( String tile )
+  {
+    int idx = tile.indexOf( '_' );
+    int lon = Integer.parseInt( tile.substring( 1, idx ) );
+    int lat = Integer.parseInt( tile.substring( idx + 2 ) );
+    lon = tile.charAt( 0 ) == 'W' ? -lon : lon;
+    lat = tile.charAt( idx + 1 ) == 'S' ? -lat : lat;
+    return ( ( lon + 180 ) / 5 ) * 36 + ( lat + 90 ) / 5;
+  }
+
+  private static String tileName( int tileCode )
+  {
+    int lon = ( tileCode / 36 ) * 5 - 180;
+    int lat = ( tileCode % 36 ) * 5 - 90;
+    String slon = lon < 0 ? "W" + ( -lon ) : "E" + lon;
+    String slat = lat < 0 ? "S" + ( -lat ) : "N" + lat;
+    return slon + "_" + slat;
+  }
+}
@@ -1,16 +1,14 @@
 /**
  * This program
- * - reads an *.osm from stdin
+ * - reads an *.osm from stdin (or an *.osm, *.osm.gz or *.osm.pbf file)
  * - writes 45*30 degree node tiles + a way file + a rel file
  *
  * @author ab
  */
 package btools.mapcreator;
 
-import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -30,7 +28,7 @@ public class OsmCutter extends MapCreatorBase
   private DataOutputStream cyclewayDos;
   private DataOutputStream restrictionsDos;
 
-  public WayCutter wayCutter;
+  public WayCutterBase wayCutter;
   public RestrictionCutter restrictionCutter;
   public NodeFilter nodeFilter;
   
@@ -68,12 +66,7 @@ public class OsmCutter extends MapCreatorBase
       throw new IllegalArgumentException( "lookup-file: " +  lookupFile + " does not exist" );
     }
 
-    BExpressionMetaData meta = new BExpressionMetaData();
-
-    _expctxWay = new BExpressionContextWay( meta );
-    _expctxNode = new BExpressionContextNode( meta );
-    meta.readMetaData( lookupFile );
-    _expctxWay.parseFile( profileFile, "global" );
+    init( lookupFile, profileFile );
 
     
    // _expctxWayStat = new BExpressionContextWay( null );
@@ -82,16 +75,23 @@ public class OsmCutter extends MapCreatorBase
     this.outTileDir = outTileDir;
     if ( !outTileDir.isDirectory() ) throw new RuntimeException( "out tile directory " + outTileDir + " does not exist" );
 
-    wayDos = wayFile == null ? null : new DataOutputStream( new BufferedOutputStream( new FileOutputStream( wayFile ) ) );
-    cyclewayDos = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( relFile ) ) );
+    wayDos = wayFile == null ? null : createOutStream( wayFile );
+    cyclewayDos = createOutStream( relFile );
     if ( resFile != null )
     {
-      restrictionsDos = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( resFile ) ) );
+      restrictionsDos = createOutStream( resFile );
     }
 
     // read the osm map into memory
     long t0 = System.currentTimeMillis();
-    new OsmParser().readMap( mapFile, this, this, this );
+    if ( mapFile != null && mapFile.getName().endsWith( ".pbf" ) )
+    {
+      new PbfParser().readMap( mapFile, this, this, this );
+    }
+    else
+    {
+      new OsmParser().readMap( mapFile, this, this, this );
+    }
     long t1 = System.currentTimeMillis();
     
     System.out.println( "parsing time (ms) =" + (t1-t0) );
@@ -116,6 +116,19 @@ public class OsmCutter extends MapCreatorBase
     System.out.println( statsLine() );
   }
 
+  /**
+   * setup the contexts for encoding and filtering
+   */
+  public void init( File lookupFile, File profileFile )
+  {
+    BExpressionMetaData meta = new BExpressionMetaData();
+
+    _expctxWay = new BExpressionContextWay( meta );
+    _expctxNode = new BExpressionContextNode( meta );
+    meta.readMetaData( lookupFile );
+    _expctxWay.parseFile( profileFile, "global" );
+  }
+
   private void checkStats()
   {
     if ( (++recordCnt % 100000) == 0 ) System.out.println( statsLine() );
@@ -133,16 +146,7 @@ public class OsmCutter extends MapCreatorBase
     nodesParsed++;
     checkStats();
 
-    if ( n.getTagsOrNull() != null )
-    {
-      int[] lookupData = _expctxNode.createNewLookupData();
-      for( Map.Entry<String,String> e : n.getTagsOrNull().entrySet() )
-      {
-        _expctxNode.addLookupValue( e.getKey(), e.getValue(), lookupData );
-        // _expctxNodeStat.addLookupValue( key, value, null );
-      }
-      n.description = _expctxNode.encode(lookupData);
-    }
+    encodeNode( n );
     // write node to file
     int tileIndex = getTileIndex( n.ilon, n.ilat );
     if ( tileIndex >= 0 )
@@ -156,6 +160,23 @@ public class OsmCutter extends MapCreatorBase
   }
 
 
+  /**
+   * encode the tags of a node into its description
+   */
+  public void encodeNode( NodeData n )
+  {
+    if ( n.getTagsOrNull() != null )
+    {
+      int[] lookupData = _expctxNode.createNewLookupData();
+      for( Map.Entry<String,String> e : n.getTagsOrNull().entrySet() )
+      {
+        _expctxNode.addLookupValue( e.getKey(), e.getValue(), lookupData );
+        // _expctxNodeStat.addLookupValue( key, value, null );
+      }
+      n.description = _expctxNode.encode(lookupData);
+    }
+  }
+
   private void generatePseudoTags( HashMap<String,String> map )
   {
     // add pseudo.tags for concrete:lanes and concrete:plates
@@ -191,8 +212,31 @@ public class OsmCutter extends MapCreatorBase
     waysParsed++;
     checkStats();
 
+    if ( !encodeWay( w ) ) return;
+
+    if ( wayDos != null )
+    {
+      w.writeTo( wayDos );
+    }
+    if ( wayCutter != null )
+    {
+      wayCutter.nextWay( w );
+    }
+    if ( nodeFilter != null )
+    {
+      nodeFilter.nextWay( w );
+    }
+  }
+
+  /**
+   * encode the tags of a way into its description
+   *
+   * @return false if the way is not accessible for the filter profile
+   */
+  public boolean encodeWay( WayData w )
+  {
     // encode tags
-    if ( w.getTagsOrNull() == null ) return;
+    if ( w.getTagsOrNull() == null ) return false;
 
     generatePseudoTags( w.getTagsOrNull() );
 
@@ -205,27 +249,14 @@ public class OsmCutter extends MapCreatorBase
     }
     w.description = _expctxWay.encode(lookupData);
     
-    if ( w.description == null ) return;
+    if ( w.description == null ) return false;
 
     // filter according to profile
     _expctxWay.evaluate( false, w.description );
     boolean ok = _expctxWay.getCostfactor() < 10000.; 
     _expctxWay.evaluate( true, w.description );
     ok |= _expctxWay.getCostfactor() < 10000.;
-    if ( !ok ) return;
-    
-    if ( wayDos != null )
-    {
-      w.writeTo( wayDos );
-    }
-    if ( wayCutter != null )
-    {
-      wayCutter.nextWay( w );
-    }
-    if ( nodeFilter != null )
-    {
-      nodeFilter.nextWay( w );
-    }
+    return ok;
   }
 
   @Override
@@ -44,8 +44,8 @@ public class OsmFastCutter extends MapCreatorBase
     // **** run OsmCutter ****
     OsmCutter cutter = new OsmCutter();
 
-    // ... inject WayCutter
-    cutter.wayCutter = new WayCutter();
+    // ... inject WayCutter (or the disk-sorting variant)
+    cutter.wayCutter = Boolean.getBoolean( "sortedWayCutter" ) ? new SortedWayCutter() : new WayCutter();
     cutter.wayCutter.init( wayDir );
 
     // ... inject RestrictionCutter
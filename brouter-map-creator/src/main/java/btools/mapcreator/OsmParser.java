@@ -19,6 +19,12 @@ public class OsmParser extends MapCreatorBase
   private WayListener wListener;
   private RelationListener rListener;
 
+  private String changeAction;
+
+  private static final String[] CHANGE_ACTIONS = { "create", "modify", "delete" };
+  private static final String[] CHANGE_START_TAGS = { "<create", "<modify", "<delete" };
+  private static final String[] CHANGE_END_TAGS = { "</create>", "</modify>", "</delete>" };
+
   public void readMap( File mapFile,
                         NodeListener nListener,
                         WayListener wListener,
@@ -45,11 +51,25 @@ public class OsmParser extends MapCreatorBase
       }
     }
 
+    // the root element tells whether this is an osmChange file
+    boolean rootSeen = false;
+    boolean changeFile = false;
+
     for(;;)
     {
       String line = _br.readLine();
       if ( line == null ) break;
 
+      if ( !rootSeen )
+      {
+        int idx = line.indexOf( "<osm" );
+        if ( idx >= 0 )
+        {
+          rootSeen = true;
+          changeFile = line.startsWith( "<osmChange", idx );
+        }
+      }
+      if ( changeFile && checkChangeAction( line ) ) continue;
       if ( checkNode( line ) ) continue;
       if ( checkWay( line ) ) continue;
       if ( checkRelation( line ) ) continue;
@@ -63,6 +83,33 @@ public class OsmParser extends MapCreatorBase
   }
 
 
+  /**
+   * @return the action of the current section of an osmChange
+   * file (create, modify or delete), or null outside such sections
+   */
+  public String getChangeAction()
+  {
+    return changeAction;
+  }
+
+  private boolean checkChangeAction( String line )
+  {
+    for( int i=0; i<CHANGE_ACTIONS.length; i++ )
+    {
+      if ( line.indexOf( CHANGE_START_TAGS[i] ) >= 0 )
+      {
+        changeAction = CHANGE_ACTIONS[i];
+        return true;
+      }
+      if ( line.indexOf( CHANGE_END_TAGS[i] ) >= 0 )
+      {
+        changeAction = null;
+        return true;
+      }
+    }
+    return false;
+  }
+
   private boolean checkNode( String line ) throws Exception
   {
     int idx0 = line.indexOf( "<node id=\"" );
@@ -73,15 +120,24 @@ public class OsmParser extends MapCreatorBase
     long nodeId = Long.parseLong( line.substring( idx0, idx1 ) );
 
     int idx2 = line.indexOf( " lat=\"" );
-    if ( idx2 < 0 ) return false;
-    idx2 += 6;
-    int idx3 = line.indexOf( '"', idx2 );
-    double lat = Double.parseDouble( line.substring( idx2, idx3 ) );
     int idx4 = line.indexOf( " lon=\"" );
-    if ( idx4 < 0 ) return false;
-    idx4 += 6;
-    int idx5 = line.indexOf( '"', idx4 );
-    double lon = Double.parseDouble( line.substring( idx4, idx5 ) );
+    if ( idx2 < 0 || idx4 < 0 )
+    {
+      // deleted nodes in change files may come without position
+      if ( !"delete".equals( changeAction ) ) return false;
+      idx2 = idx4 = -1;
+    }
+    double lat = 0.;
+    double lon = 0.;
+    if ( idx2 >= 0 )
+    {
+      idx2 += 6;
+      int idx3 = line.indexOf( '"', idx2 );
+      lat = Double.parseDouble( line.substring( idx2, idx3 ) );
+      idx4 += 6;
+      int idx5 = line.indexOf( '"', idx4 );
+      lon = Double.parseDouble( line.substring( idx4, idx5 ) );
+    }
 
     NodeData n = new NodeData( nodeId, lon, lat );
 
@@ -132,7 +188,7 @@ public class OsmParser extends MapCreatorBase
     WayData w = new WayData( id );
 
     // read the nodes
-    for(;;)
+    while( !line.endsWith( "/>" ) )
     {
       String l2 = _br.readLine();
       if ( l2 == null ) return false;
@@ -197,7 +253,7 @@ public class OsmParser extends MapCreatorBase
     RelationData r = new RelationData( rid );
 
     // read the nodes
-    for(;;)
+    while( !line.endsWith( "/>" ) )
     {
       String l2 = _br.readLine();
       if ( l2 == null ) return false;
@@ -5,25 +5,26 @@
  */
 package btools.mapcreator;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
-import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
 import btools.expressions.BExpressionContextWay;
 import btools.util.CheapRuler;
-import btools.util.CompactLongMap;
-import btools.util.FrozenLongMap;
+import btools.util.LongPairIntMap;
 
 
 public class OsmTrafficMap
 {
+  private static final int RECORD_SIZE = 20; // node1, node2, traffic
+  private static final int NO_TRAFFIC = Integer.MIN_VALUE;
+
   int minLon;
   int minLat;
   int maxLon;
@@ -48,14 +49,8 @@ public class OsmTrafficMap
     debug = Boolean.getBoolean( "debugTrafficMap" );
   }
 
-  public static class OsmTrafficElement
-  {
-    public long node2;
-    public int traffic;
-    public OsmTrafficElement next;
-  }
-  
-  private CompactLongMap<OsmTrafficElement> map = new CompactLongMap<OsmTrafficElement>();
+  // traffic per (node1,node2) pair
+  private LongPairIntMap map = new LongPairIntMap();
 
   public void loadAll( File file, int minLon, int minLat, int maxLon, int maxLat, boolean includeMotorways ) throws Exception
   {
@@ -95,66 +90,68 @@ public class OsmTrafficMap
     this.maxLat = maxLat;
 
       int trafficElements = 0;
-      DataInputStream is = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) );
+      map = new LongPairIntMap( (int)Math.min( file.length() / RECORD_SIZE / 4, 1L << 24 ) );
+
+      // bulk read: decode the records straight from a large buffer
+      byte[] buf = new byte[RECORD_SIZE * 8192];
+      ByteBuffer bb = ByteBuffer.wrap( buf );
+      InputStream is = new FileInputStream( file );
       try
       {
+        int fill = 0;
         for(;;)
         {
-          long n1 = is.readLong();
-          long n2 = is.readLong();
-          int traffic = is.readInt();
-          if ( traffic == -1 && !includeMotorways )
+          int n = is.read( buf, fill, buf.length - fill );
+          if ( n < 0 )
           {
-            continue;
+            break; // a truncated last record is ignored
           }
-          if ( isInsideBounds( n1 ) || isInsideBounds( n2 ) )
+          fill += n;
+          int records = fill / RECORD_SIZE;
+          for( int i=0; i<records; i++ )
           {
-            if ( addElement( n1, n2, traffic ) )
+            int pos = i * RECORD_SIZE;
+            long n1 = bb.getLong( pos );
+            long n2 = bb.getLong( pos + 8 );
+            int traffic = bb.getInt( pos + 16 );
+            if ( traffic == -1 && !includeMotorways )
             {
-              trafficElements++;
+              continue;
+            }
+            if ( isInsideBounds( n1 ) || isInsideBounds( n2 ) )
+            {
+              if ( addElement( n1, n2, traffic ) )
+              {
+                trafficElements++;
+              }
             }
           }
+          int used = records * RECORD_SIZE;
+          System.arraycopy( buf, used, buf, 0, fill - used );
+          fill -= used;
         }
       }
-      catch( EOFException eof ) {}
       finally{ is.close(); }
-      
-      map = new FrozenLongMap<OsmTrafficElement>( map );
+
       System.out.println( "read traffic-elements: " + trafficElements );
   }
 
 
   public boolean addElement( long n1, long n2, int traffic )
   {
-    OsmTrafficElement e = getElement( n1, n2 );
-    if ( e == null )
+    int oldTraffic = map.get( n1, n2, NO_TRAFFIC );
+    if ( oldTraffic == NO_TRAFFIC )
     {
-      e = new OsmTrafficElement();
-      e.node2 = n2;
-      e.traffic = traffic;
-
-      OsmTrafficElement e0 = map.get( n1 );
-      if ( e0 != null )
-      {
-        while( e0.next != null )
-        {
-          e0 = e0.next;
-        }
-        e0.next = e;
-      }
-      else
-      {
-        map.fastPut( n1, e );
-      }
+      map.put( n1, n2, traffic );
       return true;
     }
     if ( doNotAdd )
     {
-      e.traffic = Math.max( e.traffic, traffic );
+      map.put( n1, n2, Math.max( oldTraffic, traffic ) );
     }
     else
     {
-      e.traffic = e.traffic == -1 || traffic == -1 ? -1 : e.traffic + traffic;
+      map.put( n1, n2, oldTraffic == -1 || traffic == -1 ? -1 : oldTraffic + traffic );
     }
     return false;
   }
@@ -170,8 +167,7 @@ public class OsmTrafficMap
   public int getTrafficClass( long n1, long n2 )
   {
     // used for the old data, where we stpre traffic-classes, not volumes
-    OsmTrafficElement e = getElement( n1, n2 );
-    return e == null ? 0 : e.traffic;
+    return map.get( n1, n2, 0 );
   }
 
   public int getTrafficClassForTraffic( int traffic )
@@ -188,35 +184,14 @@ public class OsmTrafficMap
 
   private int getTraffic( long n1, long n2 )
   {
-    OsmTrafficElement e1 = getElement( n1, n2 );
-    int traffic1 = e1 == null ? 0 : e1.traffic;
-    OsmTrafficElement e2 = getElement( n2, n1 );
-    int traffic2 = e2 == null ? 0 : e2.traffic;
+    int traffic1 = map.get( n1, n2, 0 );
+    int traffic2 = map.get( n2, n1, 0 );
     return traffic1 == -1 || traffic2 == -1 ? -1 : traffic1 > traffic2 ? traffic1 : traffic2;
   }
 
   public void freeze()
   {
   }
-	
-  private OsmTrafficElement getElement( long n1, long n2 )
-  {
-    OsmTrafficElement e = map.get( n1 );
-    while( e != null )
-    {
-	  if ( e.node2 == n2 )
-	  {
-        return e;
-	  }
-	  e = e.next;
-    }
-    return null;
-  }
-  
-  public OsmTrafficElement getElement( long n )
-  {
-    return map.get( n );
-  }
 
   public byte[] addTrafficClass( ArrayList<OsmNodeP> linkNodes, byte[] description ) throws IOException
   {
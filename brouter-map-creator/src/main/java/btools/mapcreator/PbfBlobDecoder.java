@@ -0,0 +1,424 @@
+package btools.mapcreator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import btools.util.LongList;
+
+/**
+ * Decodes a single PBF blob (header or primitive block) into
+ * the preprocessor entities (NodeData, WayData, RelationData),
+ * without any dependency to protobuf or osmosis.
+ *
+ * Designed to run on a pool of worker threads: call() does
+ * the inflating and decoding, the result list is then handed
+ * to the listeners by the PbfParser in file order.
+ *
+ * @author ab
+ */
+final class PbfBlobDecoder implements Callable<List<MapCreatorBase>>
+{
+  private static final String[] SUPPORTED_FEATURES = { "OsmSchema-V0.6", "DenseNodes" };
+
+  private String blobType;
+  private byte[] rawBlob;
+
+  private String[] strings;
+  private long granularity;
+  private long latOffset;
+  private long lonOffset;
+
+  private List<MapCreatorBase> entities = new ArrayList<MapCreatorBase>();
+
+  /**
+   * A turn-restriction as found in a relation, delivered
+   * right after that relation
+   */
+  static final class Restriction extends MapCreatorBase
+  {
+    RelationData relation;
+    LongList fromWid;
+    LongList toWid;
+    long viaNid;
+  }
+
+  PbfBlobDecoder( String blobType, byte[] rawBlob )
+  {
+    this.blobType = blobType;
+    this.rawBlob = rawBlob;
+  }
+
+  @Override
+  public List<MapCreatorBase> call() throws Exception
+  {
+    if ( "OSMHeader".equals( blobType ) )
+    {
+      processOsmHeader( readBlobContent() );
+    }
+    else if ( "OSMData".equals( blobType ) )
+    {
+      processOsmPrimitives( readBlobContent() );
+    }
+    else
+    {
+      System.out.println( "Skipping unrecognised blob type " + blobType );
+    }
+    return entities;
+  }
+
+  private byte[] readBlobContent() throws IOException
+  {
+    byte[] raw = null;
+    byte[] zlibData = null;
+    int rawSize = 0;
+    PbfReader r = new PbfReader( rawBlob );
+    while( r.hasMore() )
+    {
+      switch( r.readField() )
+      {
+        case 1: raw = r.readBytes(); break;
+        case 2: rawSize = r.readInt(); break;
+        case 3: zlibData = r.readBytes(); break;
+        default: r.skip();
+      }
+    }
+    rawBlob = null;
+
+    if ( raw != null )
+    {
+      return raw;
+    }
+    if ( zlibData == null )
+    {
+      throw new IOException( "PBF blob uses unsupported compression, only raw or zlib may be used." );
+    }
+    Inflater inflater = new Inflater();
+    try
+    {
+      inflater.setInput( zlibData );
+      byte[] blobData = new byte[rawSize];
+      inflater.inflate( blobData );
+      if ( !inflater.finished() )
+      {
+        throw new IOException( "PBF blob contains incomplete compressed data." );
+      }
+      return blobData;
+    }
+    catch( DataFormatException e )
+    {
+      throw new IOException( "Unable to decompress PBF blob: " + e );
+    }
+    finally
+    {
+      inflater.end();
+    }
+  }
+
+  private void processOsmHeader( byte[] data ) throws IOException
+  {
+    List<String> unsupportedFeatures = new ArrayList<String>();
+    PbfReader r = new PbfReader( data );
+    while( r.hasMore() )
+    {
+      if ( r.readField() == 4 ) // required_features
+      {
+        String feature = r.readString();
+        boolean supported = false;
+        for( String f : SUPPORTED_FEATURES )
+        {
+          supported |= f.equals( feature );
+        }
+        if ( !supported )
+        {
+          unsupportedFeatures.add( feature );
+        }
+      }
+      else
+      {
+        r.skip();
+      }
+    }
+    if ( unsupportedFeatures.size() > 0 )
+    {
+      throw new IOException( "PBF file contains unsupported features " + unsupportedFeatures );
+    }
+  }
+
+  private void processOsmPrimitives( byte[] data ) throws IOException
+  {
+    // first pass: string table and coordinate scaling
+    granularity = 100;
+    List<PbfReader> groups = new ArrayList<PbfReader>();
+    PbfReader r = new PbfReader( data );
+    while( r.hasMore() )
+    {
+      switch( r.readField() )
+      {
+        case 1: readStringTable( r.readMessage() ); break;
+        case 2: groups.add( r.readMessage() ); break;
+        case 17: granularity = r.readInt(); break;
+        case 19: latOffset = r.readVarint(); break;
+        case 20: lonOffset = r.readVarint(); break;
+        default: r.skip();
+      }
+    }
+
+    for( PbfReader g : groups )
+    {
+      while( g.hasMore() )
+      {
+        switch( g.readField() )
+        {
+          case 1: processNode( g.readMessage() ); break;
+          case 2: processDenseNodes( g.readMessage() ); break;
+          case 3: processWay( g.readMessage() ); break;
+          case 4: processRelation( g.readMessage() ); break;
+          default: g.skip();
+        }
+      }
+    }
+  }
+
+  private void readStringTable( PbfReader r ) throws IOException
+  {
+    List<String> list = new ArrayList<String>();
+    while( r.hasMore() )
+    {
+      if ( r.readField() == 1 )
+      {
+        list.add( r.readString() );
+      }
+      else
+      {
+        r.skip();
+      }
+    }
+    strings = list.toArray( new String[list.size()] );
+  }
+
+  private String decodeString( long idx ) throws IOException
+  {
+    if ( strings == null || idx < 0 || idx >= strings.length )
+    {
+      throw new IOException( "invalid string index: " + idx );
+    }
+    return strings[(int)idx];
+  }
+
+  private double decodeLatitude( long raw )
+  {
+    return ( latOffset + granularity * raw ) / 1000000000.;
+  }
+
+  private double decodeLongitude( long raw )
+  {
+    return ( lonOffset + granularity * raw ) / 1000000000.;
+  }
+
+  private HashMap<String,String> buildTags( LongList keys, LongList vals ) throws IOException
+  {
+    if ( keys.size() == 0 )
+    {
+      return null;
+    }
+    HashMap<String,String> tags = new HashMap<String,String>();
+    for( int i=0; i<keys.size(); i++ )
+    {
+      tags.put( decodeString( keys.get( i ) ), decodeString( vals.get( i ) ) );
+    }
+    return tags;
+  }
+
+  private void processNode( PbfReader r ) throws IOException
+  {
+    long id = 0L;
+    long lat = 0L;
+    long lon = 0L;
+    LongList keys = new LongList( 4 );
+    LongList vals = new LongList( 4 );
+    while( r.hasMore() )
+    {
+      switch( r.readField() )
+      {
+        case 1: id = r.readSInt(); break;
+        case 2: r.readRepeated( keys, false ); break;
+        case 3: r.readRepeated( vals, false ); break;
+        case 8: lat = r.readSInt(); break;
+        case 9: lon = r.readSInt(); break;
+        default: r.skip();
+      }
+    }
+    NodeData n = new NodeData( id, decodeLongitude( lon ), decodeLatitude( lat ) );
+    n.setTags( buildTags( keys, vals ) );
+    entities.add( n );
+  }
+
+  private void processDenseNodes( PbfReader r ) throws IOException
+  {
+    LongList ids = new LongList( 8000 );
+    LongList lats = new LongList( 8000 );
+    LongList lons = new LongList( 8000 );
+    LongList keysVals = new LongList( 8000 );
+    while( r.hasMore() )
+    {
+      switch( r.readField() )
+      {
+        case 1: r.readRepeated( ids, true ); break;
+        case 8: r.readRepeated( lats, true ); break;
+        case 9: r.readRepeated( lons, true ); break;
+        case 10: r.readRepeated( keysVals, false ); break;
+        default: r.skip();
+      }
+    }
+    if ( lats.size() != ids.size() || lons.size() != ids.size() )
+    {
+      throw new IOException( "inconsistent dense nodes" );
+    }
+
+    long id = 0L;
+    long lat = 0L;
+    long lon = 0L;
+    int kvIdx = 0;
+    int kvSize = keysVals.size();
+    for( int i=0; i<ids.size(); i++ )
+    {
+      // delta decoding
+      id += ids.get( i );
+      lat += lats.get( i );
+      lon += lons.get( i );
+
+      // the key and value string indexes are sequential, the
+      // tags of each node are delimited by an index of 0
+      HashMap<String,String> tags = null;
+      while( kvIdx < kvSize )
+      {
+        long keyIdx = keysVals.get( kvIdx++ );
+        if ( keyIdx == 0 )
+        {
+          break;
+        }
+        if ( tags == null )
+        {
+          tags = new HashMap<String,String>();
+        }
+        tags.put( decodeString( keyIdx ), decodeString( keysVals.get( kvIdx++ ) ) );
+      }
+
+      NodeData n = new NodeData( id, decodeLongitude( lon ), decodeLatitude( lat ) );
+      n.setTags( tags );
+      entities.add( n );
+    }
+  }
+
+  private void processWay( PbfReader r ) throws IOException
+  {
+    long id = 0L;
+    LongList keys = new LongList( 4 );
+    LongList vals = new LongList( 4 );
+    LongList refs = new LongList( 16 );
+    while( r.hasMore() )
+    {
+      switch( r.readField() )
+      {
+        case 1: id = r.readVarint(); break;
+        case 2: r.readRepeated( keys, false ); break;
+        case 3: r.readRepeated( vals, false ); break;
+        case 8: r.readRepeated( refs, true ); break;
+        default: r.skip();
+      }
+    }
+
+    // the node ids are delta encoded
+    LongList wayNodes = new LongList( refs.size() );
+    long nodeId = 0L;
+    for( int i=0; i<refs.size(); i++ )
+    {
+      nodeId += refs.get( i );
+      wayNodes.add( nodeId );
+    }
+
+    WayData w = new WayData( id, wayNodes );
+    w.setTags( buildTags( keys, vals ) );
+    entities.add( w );
+  }
+
+  private void processRelation( PbfReader r ) throws IOException
+  {
+    long id = 0L;
+    LongList keys = new LongList( 4 );
+    LongList vals = new LongList( 4 );
+    LongList roles = new LongList( 16 );
+    LongList memids = new LongList( 16 );
+    LongList types = new LongList( 16 );
+    while( r.hasMore() )
+    {
+      switch( r.readField() )
+      {
+        case 1: id = r.readVarint(); break;
+        case 2: r.readRepeated( keys, false ); break;
+        case 3: r.readRepeated( vals, false ); break;
+        case 8: r.readRepeated( roles, false ); break;
+        case 9: r.readRepeated( memids, true ); break;
+        case 10: r.readRepeated( types, false ); break;
+        default: r.skip();
+      }
+    }
+    if ( roles.size() != memids.size() || types.size() != memids.size() )
+    {
+      throw new IOException( "inconsistent relation members, rid=" + id );
+    }
+
+    // collect the way members and the from/to/via members
+    // of restrictions, the member ids are delta encoded
+    LongList wayIds = new LongList( 16 );
+    LongList fromWid = null;
+    LongList toWid = null;
+    LongList viaNid = null;
+    long refId = 0L;
+    for( int i=0; i<memids.size(); i++ )
+    {
+      refId += memids.get( i );
+      long type = types.get( i );
+      String role = decodeString( roles.get( i ) );
+      if ( type == 1 ) // way
+      {
+        wayIds.add( refId );
+        if ( "from".equals( role ) ) fromWid = addLong( fromWid, refId );
+        if ( "to".equals( role ) ) toWid = addLong( toWid, refId );
+      }
+      else if ( type == 0 ) // node
+      {
+        if ( "via".equals( role ) ) viaNid = addLong( viaNid, refId );
+      }
+    }
+
+    RelationData rel = new RelationData( id, wayIds );
+    rel.setTags( buildTags( keys, vals ) );
+    entities.add( rel );
+
+    if ( fromWid != null && toWid != null && viaNid != null && viaNid.size() == 1 )
+    {
+      Restriction res = new Restriction();
+      res.relation = rel;
+      res.fromWid = fromWid;
+      res.toWid = toWid;
+      res.viaNid = viaNid.get( 0 );
+      entities.add( res );
+    }
+  }
+
+  private static LongList addLong( LongList ll, long l )
+  {
+    if ( ll == null )
+    {
+      ll = new LongList( 1 );
+    }
+    ll.add( l );
+    return ll;
+  }
+}
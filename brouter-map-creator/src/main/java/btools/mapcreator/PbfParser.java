@@ -0,0 +1,186 @@
+package btools.mapcreator;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Parser for OSM data in the PBF format
+ *
+ * The blobs are read sequentially, but inflated and decoded
+ * on a pool of worker threads (-DpbfThreads=n, default is the
+ * number of processors). The decoded blocks are handed to the
+ * listeners in file order from the calling thread, so the
+ * listeners need not be thread-safe.
+ *
+ * @author ab
+ */
+public class PbfParser extends MapCreatorBase
+{
+  private NodeListener nListener;
+  private WayListener wListener;
+  private RelationListener rListener;
+
+  private int nThreads;
+
+  public PbfParser()
+  {
+    this( Integer.getInteger( "pbfThreads", Runtime.getRuntime().availableProcessors() ).intValue() );
+  }
+
+  public PbfParser( int nThreads )
+  {
+    this.nThreads = Math.max( 1, nThreads );
+  }
+
+  public void readMap( File mapFile,
+                        NodeListener nListener,
+                        WayListener wListener,
+                        RelationListener rListener ) throws Exception
+  {
+    this.nListener = nListener;
+    this.wListener = wListener;
+    this.rListener = rListener;
+
+    System.out.println( "*** PBF Parsing: " + mapFile + " threads=" + nThreads );
+
+    ExecutorService pool = Executors.newFixedThreadPool( nThreads, new ThreadFactory()
+    {
+      @Override
+      public Thread newThread( Runnable r )
+      {
+        Thread t = new Thread( r, "pbf-decoder" );
+        t.setDaemon( true );
+        return t;
+      }
+    } );
+
+    // limit the number of blobs in flight to bound the memory
+    int maxPending = 2*nThreads;
+    LinkedList<Future<List<MapCreatorBase>>> pending = new LinkedList<Future<List<MapCreatorBase>>>();
+
+    DataInputStream dis = new DataInputStream( new BufferedInputStream( new FileInputStream( mapFile ), 65536 ) );
+    int rawBlobCount = 0;
+    try
+    {
+      boolean eof = false;
+      for(;;)
+      {
+        while( !eof && pending.size() < maxPending )
+        {
+          PbfBlobDecoder decoder = readBlob( dis );
+          if ( decoder == null )
+          {
+            eof = true;
+            break;
+          }
+          pending.add( pool.submit( decoder ) );
+          rawBlobCount++;
+        }
+        if ( pending.isEmpty() )
+        {
+          break;
+        }
+        deliver( waitFor( pending.removeFirst() ) );
+      }
+    }
+    finally
+    {
+      pool.shutdownNow();
+      dis.close();
+    }
+    System.out.println( "read raw blobs: " + rawBlobCount );
+  }
+
+  private PbfBlobDecoder readBlob( DataInputStream dis ) throws IOException
+  {
+    int headerLength;
+    try
+    {
+      headerLength = dis.readInt();
+    }
+    catch( EOFException e )
+    {
+      return null;
+    }
+    byte[] headerBuffer = new byte[headerLength];
+    dis.readFully( headerBuffer );
+
+    String type = null;
+    int dataSize = -1;
+    PbfReader r = new PbfReader( headerBuffer );
+    while( r.hasMore() )
+    {
+      switch( r.readField() )
+      {
+        case 1: type = r.readString(); break;
+        case 3: dataSize = r.readInt(); break;
+        default: r.skip();
+      }
+    }
+    if ( type == null || dataSize < 0 )
+    {
+      throw new IOException( "invalid blob header" );
+    }
+    byte[] blobData = new byte[dataSize];
+    dis.readFully( blobData );
+    return new PbfBlobDecoder( type, blobData );
+  }
+
+  private static List<MapCreatorBase> waitFor( Future<List<MapCreatorBase>> f ) throws Exception
+  {
+    try
+    {
+      return f.get();
+    }
+    catch( ExecutionException e )
+    {
+      Throwable cause = e.getCause();
+      if ( cause instanceof Exception )
+      {
+        throw (Exception)cause;
+      }
+      throw e;
+    }
+  }
+
+  private void deliver( List<MapCreatorBase> entities ) throws Exception
+  {
+    for( MapCreatorBase e : entities )
+    {
+      if ( e instanceof NodeData )
+      {
+        nListener.nextNode( (NodeData)e );
+      }
+      else if ( e instanceof WayData )
+      {
+        wListener.nextWay( (WayData)e );
+      }
+      else if ( e instanceof RelationData )
+      {
+        rListener.nextRelation( (RelationData)e );
+      }
+      else
+      {
+        PbfBlobDecoder.Restriction res = (PbfBlobDecoder.Restriction)e;
+        for( int fi = 0; fi < res.fromWid.size(); fi++ )
+        {
+          for( int ti = 0; ti < res.toWid.size(); ti++ )
+          {
+            rListener.nextRestriction( res.relation, res.fromWid.get( fi ), res.toWid.get( ti ), res.viaNid );
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,177 @@
+package btools.mapcreator;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+import btools.util.LongList;
+
+/**
+ * Minimal reader for the protobuf wire format on a byte array,
+ * just what is needed to decode the PBF messages
+ *
+ * @author ab
+ */
+final class PbfReader
+{
+  static final int VARINT = 0;
+  static final int FIXED64 = 1;
+  static final int LENGTH_DELIMITED = 2;
+  static final int FIXED32 = 5;
+
+  private byte[] buf;
+  private int pos;
+  private int end;
+
+  private int wireType;
+
+  PbfReader( byte[] buf )
+  {
+    this( buf, 0, buf.length );
+  }
+
+  PbfReader( byte[] buf, int pos, int end )
+  {
+    this.buf = buf;
+    this.pos = pos;
+    this.end = end;
+  }
+
+  boolean hasMore()
+  {
+    return pos < end;
+  }
+
+  /**
+   * read the next field key
+   *
+   * @return the field number, the wire type is available via wireType()
+   */
+  int readField() throws IOException
+  {
+    int key = (int)readVarint();
+    wireType = key & 7;
+    return key >>> 3;
+  }
+
+  int wireType()
+  {
+    return wireType;
+  }
+
+  long readVarint() throws IOException
+  {
+    long v = 0L;
+    for( int shift = 0; shift < 64; shift += 7 )
+    {
+      if ( pos >= end )
+      {
+        throw new IOException( "truncated varint" );
+      }
+      byte b = buf[pos++];
+      v |= (long)( b & 0x7f ) << shift;
+      if ( b >= 0 )
+      {
+        return v;
+      }
+    }
+    throw new IOException( "malformed varint" );
+  }
+
+  int readInt() throws IOException
+  {
+    return (int)readVarint();
+  }
+
+  long readSInt() throws IOException
+  {
+    long v = readVarint();
+    return ( v >>> 1 ) ^ -( v & 1 );
+  }
+
+  /**
+   * @return a reader on the embedded message or packed field
+   */
+  PbfReader readMessage() throws IOException
+  {
+    int len = readLength();
+    PbfReader r = new PbfReader( buf, pos, pos + len );
+    pos += len;
+    return r;
+  }
+
+  byte[] readBytes() throws IOException
+  {
+    int len = readLength();
+    byte[] ab = new byte[len];
+    System.arraycopy( buf, pos, ab, 0, len );
+    pos += len;
+    return ab;
+  }
+
+  String readString() throws IOException
+  {
+    int len = readLength();
+    try
+    {
+      return new String( buf, pos, len, "UTF-8" );
+    }
+    catch( UnsupportedEncodingException e )
+    {
+      throw new RuntimeException( e );
+    }
+    finally
+    {
+      pos += len;
+    }
+  }
+
+  /**
+   * read a repeated varint field, either packed or as single value
+   */
+  void readRepeated( LongList target, boolean signed ) throws IOException
+  {
+    if ( wireType == LENGTH_DELIMITED )
+    {
+      PbfReader r = readMessage();
+      while( r.hasMore() )
+      {
+        target.add( signed ? r.readSInt() : r.readVarint() );
+      }
+    }
+    else
+    {
+      target.add( signed ? readSInt() : readVarint() );
+    }
+  }
+
+  void skip() throws IOException
+  {
+    switch( wireType )
+    {
+      case VARINT: readVarint(); break;
+      case FIXED64: skipBytes( 8 ); break;
+      case LENGTH_DELIMITED: skipBytes( readLength() ); break;
+      case FIXED32: skipBytes( 4 ); break;
+      default: throw new IOException( "unsupported wire type: " + wireType );
+    }
+  }
+
+  private void skipBytes( int n ) throws IOException
+  {
+    if ( n > end - pos )
+    {
+      throw new IOException( "truncated field" );
+    }
+    pos += n;
+  }
+
+  private int readLength() throws IOException
+  {
+    long len = readVarint();
+    if ( len < 0 || len > end - pos )
+    {
+      throw new IOException( "invalid length: " + len );
+    }
+    return (int)len;
+  }
+}
@@ -1,16 +1,13 @@
 package btools.mapcreator;
 
-import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.InputStream;
-import java.util.HashMap;
 
 import btools.util.CompactLongSet;
 import btools.util.DiffCoderDataOutputStream;
 import btools.util.FrozenLongSet;
+import btools.util.NodePositionStore;
 
 /**
  * PosUnifier does 3 steps in map-processing:
@@ -18,22 +15,27 @@ import btools.util.FrozenLongSet;
  * - unify positions - add srtm elevation data - make a bordernodes file
  * containing net data from the bordernids-file just containing ids
  *
+ * The srtm rasters are shared by the workers through the SrtmCache
+ *
+ * With -DnodePositionStore the unified positions and elevations
+ * are also written to the position store, for later stages
+ *
  * @author ab
  */
-public class PosUnifier extends MapCreatorBase
+public class PosUnifier extends MapCreatorBase implements TileScheduler.Worker
 {
   private DiffCoderDataOutputStream nodesOutStream;
   private DiffCoderDataOutputStream borderNodesOut;
   private File nodeTilesOut;
   private CompactLongSet[] positionSets;
 
-  private HashMap<String, SrtmRaster> srtmmap;
+  private SrtmCache srtmCache;
   private int lastSrtmLonIdx;
   private int lastSrtmLatIdx;
   private SrtmRaster lastSrtmRaster;
-  private String srtmdir;
 
   private CompactLongSet borderNids;
+  private NodePositionStore positionStore;
 
   public static void main( String[] args ) throws Exception
   {
@@ -46,10 +48,31 @@ public class PosUnifier extends MapCreatorBase
     new PosUnifier().process( new File( args[0] ), new File( args[1] ), new File( args[2] ), new File( args[3] ), args[4] );
   }
 
+  public PosUnifier()
+  {
+  }
+
+  // standalone instance for unifying single tiles
+  PosUnifier( String srtmdir, File tmpDir )
+  {
+    srtmCache = new SrtmCache( srtmdir, tmpDir );
+  }
+
+  // worker instance sharing the settings, the border nids and the border nodes stream
+  private PosUnifier( PosUnifier shared )
+  {
+    nodeTilesOut = shared.nodeTilesOut;
+    srtmCache = shared.srtmCache;
+    borderNids = shared.borderNids;
+    borderNodesOut = shared.borderNodesOut;
+    positionStore = shared.positionStore;
+  }
+
   public void process( File nodeTilesIn, File nodeTilesOut, File bordernidsinfile, File bordernodesoutfile, String srtmdir ) throws Exception
   {
     this.nodeTilesOut = nodeTilesOut;
-    this.srtmdir = srtmdir;
+    srtmCache = new SrtmCache( srtmdir, nodeTilesOut.getAbsoluteFile().getParentFile() );
+    positionStore = getPositionStore();
 
     // read border nids set
     DataInputStream dis = createInStream( bordernidsinfile );
@@ -71,32 +94,63 @@ public class PosUnifier extends MapCreatorBase
 
     // process all files
     borderNodesOut = createOutStream( bordernodesoutfile );
-    new NodeIterator( this, true ).processDir( nodeTilesIn, ".n5d" );
+    new TileScheduler().processDir( nodeTilesIn, ".n5d", new TileScheduler.WorkerFactory()
+    {
+      @Override
+      public TileScheduler.Worker createWorker()
+      {
+        return new PosUnifier( PosUnifier.this );
+      }
+    } );
     borderNodesOut.close();
+    closePositionStore();
+    close();
+  }
+
+  /**
+   * release the srtm cache
+   */
+  void close() throws Exception
+  {
+    srtmCache.close();
+  }
+
+  @Override
+  public void processTile( File nodefile ) throws Exception
+  {
+    new NodeIterator( this, true ).processFile( nodefile );
   }
 
   @Override
   public void nodeFileStart( File nodefile ) throws Exception
   {
-    resetSrtm();
+    resetTile();
 
     nodesOutStream = createOutStream( fileFromTemplate( nodefile, nodeTilesOut, "u5d" ) );
+  }
 
+  void resetTile()
+  {
+    resetSrtm();
     positionSets = new CompactLongSet[2500];
   }
 
   @Override
   public void nextNode( NodeData n ) throws Exception
   {
-    SrtmRaster srtm = srtmForNode( n.ilon, n.ilat );
-    n.selev = srtm == null ? Short.MIN_VALUE : srtm.getElevation( n.ilon, n.ilat );
-
-    findUniquePos( n );
+    unify( n );
 
     n.writeTo( nodesOutStream );
+    if ( positionStore != null )
+    {
+      positionStore.put( n.nid, n.ilon, n.ilat, n.selev );
+    }
     if ( borderNids.contains( n.nid ) )
     {
-      n.writeTo( borderNodesOut );
+      synchronized( borderNodesOut )
+      {
+        n.writeTo( borderNodesOut );
+      }
     }
   }
 
@@ -106,6 +160,25 @@ public class PosUnifier extends MapCreatorBase
     nodesOutStream.close();
   }
 
+  /**
+   * add the elevation and make the position unique within the tile
+   */
+  void unify( NodeData n ) throws Exception
+  {
+    SrtmRaster srtm = srtmForNode( n.ilon, n.ilat );
+    n.selev = srtm == null ? Short.MIN_VALUE : srtm.getElevation( n.ilon, n.ilat );
+
+    findUniquePos( n );
+  }
+
+  /**
+   * register the position of an already unified node
+   */
+  void keepPosition( NodeData n )
+  {
+    checkAdd( n.ilon, n.ilat );
+  }
+
   private boolean checkAdd( int lon, int lat )
   {
     int slot = ((lon%5000000)/100000)*50 + ((lat%5000000)/100000);    
@@ -178,49 +251,12 @@ public class PosUnifier extends MapCreatorBase
     String slatidx = "0" + srtmLatIdx;
     String filename = "srtm_" + slonidx.substring( slonidx.length()-2 ) + "_" + slatidx.substring( slatidx.length()-2 );
 
-    lastSrtmRaster = srtmmap.get( filename );
-    if ( lastSrtmRaster == null && !srtmmap.containsKey( filename ) )
-    {
-      File f = new File( new File( srtmdir ), filename + ".bef" );
-      System.out.println( "checking: " + f + " ilon=" + ilon + " ilat=" + ilat );
-      if ( f.exists() )
-      {
-        System.out.println( "*** reading: " + f );
-        try
-        {
-          InputStream isc = new BufferedInputStream( new FileInputStream( f ) );
-          lastSrtmRaster = new RasterCoder().decodeRaster( isc );
-          isc.close();
-        }
-        catch (Exception e)
-        {
-          System.out.println( "**** ERROR reading " + f + " ****" );
-        }
-        srtmmap.put( filename, lastSrtmRaster );
-        return lastSrtmRaster;
-      }
-
-      f = new File( new File( srtmdir ), filename + ".zip" );
-      System.out.println( "reading: " + f + " ilon=" + ilon + " ilat=" + ilat );
-      if ( f.exists() )
-      {
-        try
-        {
-          lastSrtmRaster = new SrtmData( f ).getRaster();
-        }
-        catch (Exception e)
-        {
-          System.out.println( "**** ERROR reading " + f + " ****" );
-        }
-      }
-      srtmmap.put( filename, lastSrtmRaster );
-    }
+    lastSrtmRaster = srtmCache.getRaster( filename );
     return lastSrtmRaster;
   }
 
   private void resetSrtm()
   {
-    srtmmap = new HashMap<String, SrtmRaster>();
     lastSrtmLonIdx = -1;
     lastSrtmLatIdx = -1;
     lastSrtmRaster = null;
@@ -12,9 +12,9 @@ import java.io.File;
  */
 public class RestrictionCutter extends MapCreatorBase
 {
-  private WayCutter wayCutter;
+  private WayCutterBase wayCutter;
 
-  public void init( File outTileDir, WayCutter wayCutter ) throws Exception
+  public void init( File outTileDir, WayCutterBase wayCutter ) throws Exception
   {
     outTileDir.mkdir();
     this.outTileDir = outTileDir;
@@ -28,11 +28,12 @@ public class RestrictionCutter extends MapCreatorBase
 
   public void nextRestriction( RestrictionData data ) throws Exception
   {
-    int tileIndex = wayCutter.getTileIndexForNid( data.viaNid );
-    if ( tileIndex != -1 )
-    {
-      data.writeTo( getOutStreamForTile( tileIndex ) );
-    }
+    wayCutter.cutRestriction( data, this );
+  }
+
+  public void writeToTile( RestrictionData data, int tileIndex ) throws Exception
+  {
+    data.writeTo( getOutStreamForTile( tileIndex ) );
   }
 
   protected String getNameForTile( int tileIndex )
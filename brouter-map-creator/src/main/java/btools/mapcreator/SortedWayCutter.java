@@ -0,0 +1,240 @@
+package btools.mapcreator;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+
+import btools.util.ExternalLongSorter;
+
+/**
+ * SortedWayCutter is an alternative to the WayCutter that
+ * needs no in-memory map of all nodes:
+ *
+ * - the (node-id, tile) pairs of the nodes and the (node-id, way)
+ *   references of the ways are sorted on disk by node-id
+ * - joining them gives (way, tile) pairs, sorted again by way
+ * - streaming the ways along these pairs cuts them into the tiles
+ *
+ * The ways are numbered by their position in the way file, the
+ * order of the output is the same as that of the WayCutter.
+ * Restrictions are handled the same way by their via node.
+ * The memory usage is limited by -DsortChunkSize (pairs per
+ * sort chunk, default 4M = 64MB per sorter).
+ *
+ * @author ab
+ */
+public class SortedWayCutter extends WayCutterBase
+{
+  private int chunkSize;
+  private ExternalLongSorter nodeTiles;
+  private ExternalLongSorter nodeRefs;
+
+  private File wayFile;
+  private boolean spoolWays;
+  private DataOutputStream wayDos;
+  private long wayCount;
+
+  private File resFile;
+  private DataOutputStream resDos;
+  private long resCount;
+  private RestrictionCutter restrictionCutter;
+
+  public static void main(String[] args) throws Exception
+  {
+    System.out.println("*** SortedWayCutter: Soft-Cut way-data into tiles");
+    if (args.length != 3)
+    {
+      System.out.println("usage: java SortedWayCutter <node-tiles-in> <way-file-in> <way-tiles-out>" );
+
+      return;
+    }
+    new SortedWayCutter().process( new File( args[0] ), new File( args[1] ), new File( args[2] ) );
+  }
+
+  @Override
+  public void process( File nodeTilesIn, File wayFileIn, File wayTilesOut ) throws Exception
+  {
+    init( wayTilesOut );
+
+    // the way file is read twice, so no need to spool it
+    wayFile = wayFileIn;
+    spoolWays = false;
+
+    new NodeIterator( this, false ).processDir( nodeTilesIn, ".tlf" );
+    new WayIterator( this, false ).processFile( wayFileIn );
+    finish();
+
+    if ( "true".equals( System.getProperty( "deletetmpfiles" ) ) )
+    {
+      wayFileIn.delete();
+    }
+  }
+
+  @Override
+  public void init( File wayTilesOut ) throws Exception
+  {
+    this.outTileDir = wayTilesOut;
+    chunkSize = Integer.getInteger( "sortChunkSize", 4*1024*1024 ).intValue();
+    nodeTiles = new ExternalLongSorter( wayTilesOut, chunkSize );
+    nodeRefs = new ExternalLongSorter( wayTilesOut, chunkSize );
+
+    wayFile = new File( wayTilesOut, "ways.spool" );
+    spoolWays = true;
+  }
+
+  @Override
+  public void nextNode( NodeData n ) throws Exception
+  {
+    nodeTiles.add( n.nid, getTileIndex( n.ilon, n.ilat ) );
+  }
+
+  @Override
+  public void nextWay( WayData data ) throws Exception
+  {
+    if ( spoolWays )
+    {
+      if ( wayDos == null )
+      {
+        wayDos = createOutStream( wayFile );
+      }
+      data.writeTo( wayDos );
+    }
+    int nnodes = data.nodes.size();
+    for (int i=0; i<nnodes; i++ )
+    {
+      nodeRefs.add( data.nodes.get(i), wayCount );
+    }
+    wayCount++;
+  }
+
+  @Override
+  public void cutRestriction( RestrictionData data, RestrictionCutter restrictionCutter ) throws Exception
+  {
+    // the via node's tile is known only after the join, so spool the restriction
+    if ( resDos == null )
+    {
+      this.restrictionCutter = restrictionCutter;
+      resFile = new File( outTileDir, "restrictions.spool" );
+      resDos = createOutStream( resFile );
+    }
+    data.writeTo( resDos );
+    nodeRefs.add( data.viaNid, -1 - resCount ); // restrictions as negative references
+    resCount++;
+  }
+
+  @Override
+  public void finish() throws Exception
+  {
+    if ( wayDos != null )
+    {
+      wayDos.close();
+    }
+    if ( resDos != null )
+    {
+      resDos.close();
+    }
+    System.out.println( "*** SortedWayCutter: sorting " + nodeTiles.size() + " nodes and " + nodeRefs.size() + " references" );
+
+    // join node tiles and references on the node-id
+    ExternalLongSorter wayTiles = new ExternalLongSorter( outTileDir, chunkSize );
+    ExternalLongSorter resTiles = new ExternalLongSorter( outTileDir, chunkSize );
+    nodeTiles.finish();
+    nodeRefs.finish();
+    boolean hasNode = nodeTiles.next();
+    while( nodeRefs.next() )
+    {
+      long nid = nodeRefs.getKey();
+      while( hasNode && nodeTiles.getKey() < nid )
+      {
+        hasNode = nodeTiles.next();
+      }
+      if ( hasNode && nodeTiles.getKey() == nid )
+      {
+        long ref = nodeRefs.getValue();
+        if ( ref >= 0 )
+        {
+          wayTiles.add( ref, nodeTiles.getValue() );
+        }
+        else
+        {
+          resTiles.add( -1 - ref, nodeTiles.getValue() );
+        }
+      }
+    }
+    nodeTiles.close();
+    nodeRefs.close();
+    nodeTiles = null;
+    nodeRefs = null;
+
+    writeWays( wayTiles );
+    wayTiles.close();
+
+    if ( resFile != null )
+    {
+      writeRestrictions( resTiles );
+      resFile.delete();
+    }
+    resTiles.close();
+
+    closeTileOutStreams();
+  }
+
+  // stream the ways along the sorted (way, tile) pairs
+  private void writeWays( ExternalLongSorter wayTiles ) throws Exception
+  {
+    wayTiles.finish();
+    boolean hasTile = wayTiles.next();
+    if ( wayCount > 0 )
+    {
+      DataInputStream di = createInStream( wayFile );
+      for( long seq = 0; seq < wayCount; seq++ )
+      {
+        WayData data = new WayData( di );
+        long waytileset = 0;
+        while( hasTile && wayTiles.getKey() == seq )
+        {
+          waytileset |= ( 1L << wayTiles.getValue() );
+          hasTile = wayTiles.next();
+        }
+        for( int tileIndex=0; tileIndex<54; tileIndex++ )
+        {
+          if ( ( waytileset & ( 1L << tileIndex ) ) != 0 )
+          {
+            data.writeTo( getOutStreamForTile( tileIndex ) );
+          }
+        }
+      }
+      di.close();
+    }
+    if ( spoolWays )
+    {
+      wayFile.delete();
+    }
+  }
+
+  private void writeRestrictions( ExternalLongSorter resTiles ) throws Exception
+  {
+    resTiles.finish();
+    boolean hasTile = resTiles.next();
+    DataInputStream di = createInStream( resFile );
+    try
+    {
+      for( long seq = 0; seq < resCount; seq++ )
+      {
+        RestrictionData data = new RestrictionData( di );
+        if ( hasTile && resTiles.getKey() == seq )
+        {
+          restrictionCutter.writeToTile( data, (int)resTiles.getValue() );
+        }
+        while( hasTile && resTiles.getKey() == seq )
+        {
+          hasTile = resTiles.next();
+        }
+      }
+    }
+    finally
+    {
+      di.close();
+    }
+  }
+}
@@ -0,0 +1,242 @@
+package btools.mapcreator;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Cache for the srtm rasters, shared by the PosUnifier workers
+ *
+ * Every raster is decoded only once per run. At most -DsrtmCacheSize
+ * decoded rasters (default: tile threads + 1) are kept in the heap,
+ * the least recently used ones are then copied to a single, memory
+ * mapped spill file, so accessing them again needs no decoding.
+ *
+ * The spill file is limited to -DsrtmSpillSize megabytes (default: 4096),
+ * rasters evicted when it is full are dropped and decoded again on demand.
+ * It is created in -DsrtmSpillDir (default: the given tmp directory of the
+ * map creation, not java.io.tmpdir, which is often a small tmpfs).
+ *
+ * @author ab
+ */
+final class SrtmCache
+{
+  private String srtmdir;
+  private int maxHeapRasters;
+  private int heapRasters;
+
+  private long maxSpillBytes;
+  private long spillBytes;
+  private File spillDir;
+  private File spillFile;
+  private RandomAccessFile spillRaf;
+
+  // access-ordered, so the first entries are the least recently used
+  private LinkedHashMap<String,Entry> entries = new LinkedHashMap<String,Entry>( 16, 0.75f, true );
+
+  private static final class Entry
+  {
+    SrtmRaster raster;
+    boolean loaded;
+    boolean onHeap;
+  }
+
+  private static final class Victim
+  {
+    Entry entry;
+    SrtmRaster raster;
+    long offset = -1L; // -1 = no spill space left, drop the raster
+  }
+
+  SrtmCache( String srtmdir, File tmpDir )
+  {
+    this.srtmdir = srtmdir;
+    String dir = System.getProperty( "srtmSpillDir" );
+    spillDir = dir != null ? new File( dir ) : tmpDir;
+    maxHeapRasters = Math.max( 1, Integer.getInteger( "srtmCacheSize", Integer.getInteger( "tileThreads", 1 ).intValue() + 1 ).intValue() );
+    maxSpillBytes = Long.getLong( "srtmSpillSize", 4096L ).longValue() << 20;
+  }
+
+  /**
+   * @return the raster for the given srtm filename (without suffix), or null if not available
+   */
+  SrtmRaster getRaster( String filename ) throws Exception
+  {
+    Entry e;
+    synchronized( this )
+    {
+      e = entries.get( filename );
+      if ( e == null )
+      {
+        e = new Entry();
+        entries.put( filename, e );
+      }
+    }
+
+    // concurrent requests for the same raster wait for a single decoding
+    SrtmRaster raster;
+    List<Victim> victims = null;
+    synchronized( e )
+    {
+      if ( !e.loaded )
+      {
+        e.raster = load( filename );
+        e.loaded = true;
+        if ( e.raster != null )
+        {
+          synchronized( this )
+          {
+            e.onHeap = true;
+            heapRasters++;
+            victims = pickVictims( e );
+          }
+        }
+      }
+      raster = e.raster;
+    }
+
+    // copying the victims needs neither the cache lock nor the lock of the new entry
+    if ( victims != null )
+    {
+      for( Victim v : victims )
+      {
+        spill( v );
+      }
+    }
+    return raster;
+  }
+
+  private SrtmRaster load( String filename )
+  {
+    SrtmRaster raster = null;
+    File f = new File( new File( srtmdir ), filename + ".bef" );
+    System.out.println( "checking: " + f );
+    if ( f.exists() )
+    {
+      System.out.println( "*** reading: " + f );
+      try
+      {
+        InputStream isc = new BufferedInputStream( new FileInputStream( f ) );
+        raster = new RasterCoder().decodeRaster( isc );
+        isc.close();
+      }
+      catch (Exception e)
+      {
+        System.out.println( "**** ERROR reading " + f + " ****" );
+      }
+      return raster;
+    }
+
+    f = new File( new File( srtmdir ), filename + ".zip" );
+    System.out.println( "reading: " + f );
+    if ( f.exists() )
+    {
+      try
+      {
+        raster = new SrtmData( f ).getRaster();
+      }
+      catch (Exception e)
+      {
+        System.out.println( "**** ERROR reading " + f + " ****" );
+      }
+    }
+    return raster;
+  }
+
+  // choose the least recently used rasters to move out of the heap and reserve their spill space
+  private List<Victim> pickVictims( Entry keep ) throws Exception
+  {
+    List<Victim> victims = null;
+    for( Entry e : entries.values() )
+    {
+      if ( heapRasters <= maxHeapRasters )
+      {
+        break;
+      }
+      if ( e.onHeap && e != keep )
+      {
+        Victim v = new Victim();
+        v.entry = e;
+        v.raster = e.raster;
+        long size = 2L * v.raster.eval_array.length;
+        if ( spillBytes + size <= maxSpillBytes )
+        {
+          if ( spillRaf == null )
+          {
+            spillFile = File.createTempFile( "srtm", ".raw", spillDir );
+            spillFile.deleteOnExit();
+            spillRaf = new RandomAccessFile( spillFile, "rw" );
+          }
+          v.offset = spillBytes;
+          spillBytes += size;
+        }
+        e.onHeap = false;
+        heapRasters--;
+        if ( victims == null )
+        {
+          victims = new ArrayList<Victim>();
+        }
+        victims.add( v );
+      }
+    }
+    return victims;
+  }
+
+  // replace the victim's raster by a mapped copy (workers still using the old one keep it until their next lookup)
+  private void spill( Victim v ) throws Exception
+  {
+    SrtmRaster mapped = null;
+    if ( v.offset >= 0L )
+    {
+      short[] pixels = v.raster.eval_array;
+      MappedByteBuffer buffer = spillRaf.getChannel().map( FileChannel.MapMode.READ_WRITE, v.offset, 2L * pixels.length );
+      buffer.order( ByteOrder.nativeOrder() );
+      mapped = copyHeader( v.raster );
+      mapped.eval_buffer = buffer.asShortBuffer();
+      mapped.eval_buffer.put( pixels );
+    }
+    synchronized( v.entry )
+    {
+      v.entry.raster = mapped;
+      v.entry.loaded = mapped != null;
+    }
+    System.out.println( mapped != null ? "*** mapped raster to: " + spillFile + " at " + v.offset : "*** spill file full, dropped raster" );
+  }
+
+  private static SrtmRaster copyHeader( SrtmRaster r )
+  {
+    SrtmRaster c = new SrtmRaster();
+    c.ncols = r.ncols;
+    c.nrows = r.nrows;
+    c.halfcol = r.halfcol;
+    c.xllcorner = r.xllcorner;
+    c.yllcorner = r.yllcorner;
+    c.cellsize = r.cellsize;
+    c.noDataValue = r.noDataValue;
+    c.usingWeights = r.usingWeights;
+    return c;
+  }
+
+  /**
+   * Close and delete the spill file. Mapped rasters must not be accessed afterwards.
+   */
+  synchronized void close() throws Exception
+  {
+    if ( spillRaf != null )
+    {
+      spillRaf.close(); // the mappings stay valid until they are collected
+      spillRaf = null;
+      spillFile.delete(); // may fail while mapped on some platforms, deleteOnExit then takes care
+    }
+    entries.clear();
+    heapRasters = 0;
+  }
+}
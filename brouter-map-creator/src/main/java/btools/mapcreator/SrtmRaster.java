@@ -1,5 +1,8 @@
 package btools.mapcreator;
 
+import java.nio.ShortBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
 import btools.util.ReducedMedianFilter;
 
 /**
@@ -16,12 +19,12 @@ public class SrtmRaster
   public double yllcorner;
   public double cellsize;
   public short[] eval_array;
+  public ShortBuffer eval_buffer; // used instead of eval_array if mapped by the SrtmCache
   public short noDataValue;
 
   public boolean usingWeights = false;
 
-  private boolean missingData = false;
-
+  // no per-call state in the instance, as the rasters are shared by the PosUnifier workers
   public short getElevation( int ilon, int ilat )
   {
     double lon = ilon / 1000000. - 180.;
@@ -43,22 +46,28 @@ public class SrtmRaster
     if ( row >= nrows-1 ) row = nrows - 2;
     double wrow = drow-row;
     double wcol = dcol-col;
-    missingData = false;
 
 // System.out.println( "wrow=" + wrow + " wcol=" + wcol + " row=" + row + " col=" + col );
-    double eval = (1.-wrow)*(1.-wcol)*get(row  ,col  )
-             + (   wrow)*(1.-wcol)*get(row+1,col  )
-             + (1.-wrow)*(   wcol)*get(row  ,col+1)
-             + (   wrow)*(   wcol)*get(row+1,col+1);
+    short e00 = get(row  ,col  );
+    short e10 = get(row+1,col  );
+    short e01 = get(row  ,col+1);
+    short e11 = get(row+1,col+1);
+    if ( e00 == Short.MIN_VALUE || e10 == Short.MIN_VALUE || e01 == Short.MIN_VALUE || e11 == Short.MIN_VALUE )
+    {
+      return Short.MIN_VALUE; // missing data
+    }
+    double eval = (1.-wrow)*(1.-wcol)*e00
+             + (   wrow)*(1.-wcol)*e10
+             + (1.-wrow)*(   wcol)*e01
+             + (   wrow)*(   wcol)*e11;
 // System.out.println( "eval=" + eval );
-    return missingData ? Short.MIN_VALUE : (short)(eval*4);
+    return (short)(eval*4);
   }
 
   private short get( int r, int c )
   {
-    short e = eval_array[ (nrows-1-r)*ncols + c ];
-    if ( e == Short.MIN_VALUE ) missingData = true;
-    return e;
+    int idx = (nrows-1-r)*ncols + c;
+    return eval_array != null ? eval_array[idx] : eval_buffer.get( idx );
   }
 
   private short getElevationFromShiftWeights( double lon, double lat )
@@ -93,30 +102,25 @@ public class SrtmRaster
     Weights[][] w0 = getWeights( latIdx   );
     Weights[][] w1 = getWeights( latIdx+1 );
 
-    missingData = false;
+    ReducedMedianFilter rmf = new ReducedMedianFilter( 256 );
 
-    double m0 = w00*getElevation( w0[gx  ][gy  ], row, col )
-              + w01*getElevation( w0[gx  ][gy+1], row, col )
-              + w10*getElevation( w0[gx+1][gy  ], row, col )
-              + w11*getElevation( w0[gx+1][gy+1], row, col );
-    double m1 = w00*getElevation( w1[gx  ][gy  ], row, col )
-              + w01*getElevation( w1[gx  ][gy+1], row, col )
-              + w10*getElevation( w1[gx+1][gy  ], row, col )
-              + w11*getElevation( w1[gx+1][gy+1], row, col );
+    double m0 = w00*getElevation( w0[gx  ][gy  ], row, col, rmf )
+              + w01*getElevation( w0[gx  ][gy+1], row, col, rmf )
+              + w10*getElevation( w0[gx+1][gy  ], row, col, rmf )
+              + w11*getElevation( w0[gx+1][gy+1], row, col, rmf );
+    double m1 = w00*getElevation( w1[gx  ][gy  ], row, col, rmf )
+              + w01*getElevation( w1[gx  ][gy+1], row, col, rmf )
+              + w10*getElevation( w1[gx+1][gy  ], row, col, rmf )
+              + w11*getElevation( w1[gx+1][gy+1], row, col, rmf );
 
-    if ( missingData ) return Short.MIN_VALUE;
+    if ( Double.isNaN( m0 ) || Double.isNaN( m1 ) ) return Short.MIN_VALUE; // missing data
     double m = (1.-wlat) * m0 + wlat * m1;
     return (short)(m * 2);
   }
 
-  private ReducedMedianFilter rmf = new ReducedMedianFilter( 256 );
-
-  private double getElevation( Weights w, int row, int col )
+  // returns NaN for missing data
+  private double getElevation( Weights w, int row, int col, ReducedMedianFilter rmf )
   {
-    if ( missingData )
-    {
-      return 0.;
-    }
     int nx = w.nx;
     int ny = w.ny;
     int mx = nx / 2; // mean pixels
@@ -131,10 +135,14 @@ public class SrtmRaster
       for( int iy = 0; iy < ny; iy ++ )
       {
         short val = get( row + iy - my, col + ix - mx );
+        if ( val == Short.MIN_VALUE )
+        {
+          return Double.NaN;
+        }
         rmf.addSample( w.getWeight( ix, iy ), val );
       }
     }
-    return missingData ?  0. : rmf.calcEdgeReducedMedian( filterCenterFraction );
+    return rmf.calcEdgeReducedMedian( filterCenterFraction );
   }
 
 
@@ -188,7 +196,7 @@ public class SrtmRaster
   }
 
   private static int gridSteps = 10;
-  private static Weights[][][] allShiftWeights = new Weights[17][][];
+  private static AtomicReferenceArray<Weights[][]> allShiftWeights = new AtomicReferenceArray<Weights[][]>( 17 );
 
   private static double filterCenterFraction = 0.2;
   private static double filterDiscRadius = 4.999; // in pixels
@@ -217,11 +225,11 @@ public class SrtmRaster
   {
     int idx = latIndex < 16 ? latIndex : 16;
 
-    Weights[][] res = allShiftWeights[idx];
-    if ( res == null )
+    Weights[][] res = allShiftWeights.get( idx );
+    if ( res == null ) // concurrent workers may calculate the same weights, the first one wins
     {
-      res = calcWeights( idx );
-      allShiftWeights[idx] = res;
+      allShiftWeights.compareAndSet( idx, null, calcWeights( idx ) );
+      res = allShiftWeights.get( idx );
     }
     return res;
   }
@@ -0,0 +1,214 @@
+package btools.mapcreator;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Scheduler to process the tile files of a directory
+ * on a number of worker threads.
+ *
+ * Tiles are processed largest first, and a tile is only started
+ * if the total size of the tiles in process stays within a memory
+ * budget (measured in bytes of input), otherwise the largest tile
+ * that fits is taken, or the worker waits. A tile larger than the
+ * budget is processed when no other tile is in process.
+ *
+ * The number of workers is taken from -DtileThreads (default: 1 or
+ * the default of the stage), the budget from -DtileMemoryBudget
+ * (default: the size of the largest tile, so the memory footprint
+ * stays about that of a single thread processing that tile).
+ *
+ * Every worker thread gets its own Worker instance from the factory,
+ * so the workers need not be thread-safe, except for state they share.
+ *
+ * @author ab
+ */
+public final class TileScheduler
+{
+  public interface Worker
+  {
+    void processTile( File tile ) throws Exception;
+  }
+
+  public interface WorkerFactory
+  {
+    Worker createWorker() throws Exception;
+  }
+
+  private int nThreads;
+  private long memoryBudget;
+
+  private List<File> pending;
+  private HashMap<File,Long> tileSizes;
+  private long budget;
+  private long sizeInProcess;
+  private int tilesInProcess;
+  private Exception error;
+
+  public TileScheduler()
+  {
+    this( 1 );
+  }
+
+  /**
+   * @param defaultThreads the number of workers if not given by -DtileThreads
+   */
+  public TileScheduler( int defaultThreads )
+  {
+    this( Integer.getInteger( "tileThreads", defaultThreads ).intValue(), Long.getLong( "tileMemoryBudget", 0L ).longValue() );
+  }
+
+  /**
+   * @param memoryBudget the budget in bytes of input, 0 for the size of the largest tile
+   */
+  public TileScheduler( int nThreads, long memoryBudget )
+  {
+    this.nThreads = Math.max( 1, nThreads );
+    this.memoryBudget = memoryBudget;
+  }
+
+  public int getThreadCount()
+  {
+    return nThreads;
+  }
+
+  public void processDir( File indir, String inSuffix, WorkerFactory factory ) throws Exception
+  {
+    if ( !indir.isDirectory() )
+    {
+      throw new IllegalArgumentException( "not a directory: " + indir );
+    }
+
+    List<File> tiles = new ArrayList<File>();
+    File[] af = indir.listFiles();
+    for( int i=0; i<af.length; i++ )
+    {
+      if ( af[i].getName().endsWith( inSuffix ) )
+      {
+        tiles.add( af[i] );
+      }
+    }
+    System.out.println( "*** TileScheduler: processing " + indir );
+    processFiles( tiles, factory );
+  }
+
+  public void processFiles( List<File> tiles, WorkerFactory factory ) throws Exception
+  {
+    // largest first
+    File[] af = MapCreatorBase.sortBySizeAsc( tiles.toArray( new File[tiles.size()] ) );
+    pending = new ArrayList<File>();
+    tileSizes = new HashMap<File,Long>();
+    for( int i=af.length-1; i>=0; i-- )
+    {
+      pending.add( af[i] );
+      tileSizes.put( af[i], Long.valueOf( af[i].length() ) );
+    }
+    budget = memoryBudget;
+    if ( budget <= 0L )
+    {
+      budget = pending.isEmpty() ? 0L : tileSizes.get( pending.get( 0 ) ).longValue();
+    }
+    error = null;
+    int nWorkers = Math.min( nThreads, pending.size() );
+    System.out.println( "*** TileScheduler: " + pending.size() + " tiles, workers=" + nWorkers + " budget=" + budget );
+
+    if ( nWorkers <= 1 )
+    {
+      runWorker( factory.createWorker() );
+    }
+    else
+    {
+      Thread[] threads = new Thread[nWorkers];
+      for( int i=0; i<nWorkers; i++ )
+      {
+        final Worker worker = factory.createWorker();
+        threads[i] = new Thread( "tile-worker-" + i )
+        {
+          @Override
+          public void run()
+          {
+            try
+            {
+              runWorker( worker );
+            }
+            catch( Throwable t )
+            {
+              setError( t instanceof Exception ? (Exception)t : new RuntimeException( t ) );
+            }
+          }
+        };
+        threads[i].start();
+      }
+      for( int i=0; i<nWorkers; i++ )
+      {
+        threads[i].join();
+      }
+    }
+    if ( error != null )
+    {
+      throw error;
+    }
+  }
+
+  private void runWorker( Worker worker ) throws Exception
+  {
+    for(;;)
+    {
+      File tile = nextTile();
+      if ( tile == null )
+      {
+        break;
+      }
+      try
+      {
+        worker.processTile( tile );
+      }
+      finally
+      {
+        tileDone( tile );
+      }
+    }
+  }
+
+  private synchronized File nextTile() throws InterruptedException
+  {
+    for(;;)
+    {
+      if ( error != null || pending.isEmpty() )
+      {
+        return null;
+      }
+      for( int i=0; i<pending.size(); i++ )
+      {
+        File tile = pending.get( i );
+        long size = tileSizes.get( tile ).longValue();
+        if ( tilesInProcess == 0 || sizeInProcess + size <= budget )
+        {
+          pending.remove( i );
+          sizeInProcess += size;
+          tilesInProcess++;
+          return tile;
+        }
+      }
+      wait();
+    }
+  }
+
+  private synchronized void tileDone( File tile )
+  {
+    sizeInProcess -= tileSizes.get( tile ).longValue();
+    tilesInProcess--;
+    notifyAll();
+  }
+
+  private synchronized void setError( Exception e )
+  {
+    if ( error == null )
+    {
+      error = e;
+    }
+    notifyAll();
+  }
+}
@@ -3,6 +3,7 @@ package btools.mapcreator;
 import java.io.File;
 
 import btools.util.DenseLongMap;
+import btools.util.NodePositionStore;
 import btools.util.TinyDenseLongMap;
 
 /**
@@ -11,11 +12,16 @@ import btools.util.TinyDenseLongMap;
  * - cut the way file into 45*30 - pieces
  * - enrich ways with relation information
  *
+ * With -DnodePositionStore the node tiles are taken from the
+ * (off-heap) position store instead of an in-memory map.
+ * SortedWayCutter is an alternative that needs no node index at all.
+ *
  * @author ab
  */
-public class WayCutter extends MapCreatorBase
+public class WayCutter extends WayCutterBase
 {
   private DenseLongMap tileIndexMap;
+  private NodePositionStore positionStore;
 
   public static void main(String[] args) throws Exception
   {
@@ -29,6 +35,7 @@ public class WayCutter extends MapCreatorBase
     new WayCutter().process( new File( args[0] ), new File( args[1] ), new File( args[2] ) );
   }
 
+  @Override
   public void process( File nodeTilesIn, File wayFileIn, File wayTilesOut ) throws Exception
   {
     init( wayTilesOut );
@@ -40,14 +47,20 @@ public class WayCutter extends MapCreatorBase
     finish();
   }
 
+  @Override
   public void init( File wayTilesOut ) throws Exception
   {
     this.outTileDir = wayTilesOut;
 
-    // *** read all nodes into tileIndexMap
-    tileIndexMap = Boolean.getBoolean( "useDenseMaps" ) ? new DenseLongMap() : new TinyDenseLongMap();
+    // *** read all nodes into tileIndexMap (or the position store)
+    positionStore = createPositionStore();
+    if ( positionStore == null )
+    {
+      tileIndexMap = Boolean.getBoolean( "useDenseMaps" ) ? new DenseLongMap() : new TinyDenseLongMap();
+    }
   }
 
+  @Override
   public void finish() throws Exception
   {
     closeTileOutStreams();
@@ -56,6 +69,11 @@ public class WayCutter extends MapCreatorBase
   @Override
   public void nextNode( NodeData n ) throws Exception
   {
+    if ( positionStore != null )
+    {
+      positionStore.put( n.nid, n.ilon, n.ilat, n.selev );
+      return;
+    }
     tileIndexMap.put( n.nid, getTileIndex( n.ilon, n.ilat ) );
   }
 
@@ -68,7 +86,7 @@ public class WayCutter extends MapCreatorBase
     // determine the tile-index for each node
     for (int i=0; i<nnodes; i++ )
     {
-      int tileIndex = tileIndexMap.getInt( data.nodes.get(i) );
+      int tileIndex = getTileIndexForNid( data.nodes.get(i) );
       if ( tileIndex != -1 )
       {
         waytileset |= ( 1L << tileIndex );
@@ -87,26 +105,24 @@ public class WayCutter extends MapCreatorBase
   }
 
 
-  public int getTileIndexForNid( long nid )
-  {
-    return tileIndexMap.getInt( nid );
-  }
-
-  private int getTileIndex( int ilon, int ilat )
+  @Override
+  public void cutRestriction( RestrictionData data, RestrictionCutter restrictionCutter ) throws Exception
   {
-     int lon = ilon / 45000000;
-     int lat = ilat / 30000000;
-     if ( lon < 0 || lon > 7 || lat < 0 || lat > 5 ) throw new IllegalArgumentException( "illegal pos: " + ilon + "," + ilat );
-     return lon*6 + lat;
+    int tileIndex = getTileIndexForNid( data.viaNid );
+    if ( tileIndex != -1 )
+    {
+      restrictionCutter.writeToTile( data, tileIndex );
+    }
   }
 
-  public String getNameForTile( int tileIndex )
+  public int getTileIndexForNid( long nid ) throws Exception
   {
-    int lon = (tileIndex / 6 ) * 45 - 180;
-    int lat = (tileIndex % 6 ) * 30 - 90;
-    String slon = lon < 0 ? "W" + (-lon) : "E" + lon;
-    String slat = lat < 0 ? "S" + (-lat) : "N" + lat;
-    return slon + "_" + slat + ".wtl";
+    if ( positionStore != null )
+    {
+      int ilon = positionStore.getILon( nid );
+      return ilon == -1 ? -1 : getTileIndex( ilon, positionStore.getILat( nid ) );
+    }
+    return tileIndexMap.getInt( nid );
   }
 
 }
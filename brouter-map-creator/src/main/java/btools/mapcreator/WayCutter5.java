@@ -1,13 +1,12 @@
 package btools.mapcreator;
 
-import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
 
 import btools.util.DenseLongMap;
+import btools.util.NodePositionStore;
 import btools.util.TinyDenseLongMap;
 
 /**
@@ -16,12 +15,16 @@ import btools.util.TinyDenseLongMap;
  * - cut the 45*30 way files into 5*5 pieces
  * - create a file containing all border node ids
  *
+ * With -DnodePositionStore the node tiles are taken from the
+ * (off-heap) position store instead of an in-memory map
+ *
  * @author ab
  */
-public class WayCutter5 extends MapCreatorBase
+public class WayCutter5 extends MapCreatorBase implements TileScheduler.Worker
 {
   private DataOutputStream borderNidsOutStream;
   private DenseLongMap tileIndexMap;
+  private NodePositionStore positionStore;
   private File nodeTilesIn;
   private int lonoffset;
   private int latoffset;
@@ -46,12 +49,40 @@ public class WayCutter5 extends MapCreatorBase
   {
     this.nodeTilesIn = nodeTilesIn;
     this.outTileDir = wayTilesOut;
+    positionStore = getPositionStore();
 
     borderNidsOutStream = createOutStream( borderNidsOut );
 
-    new WayIterator( this, true ).processDir( wayTilesIn, ".wtl" );
+    // the injected stages collect over all tiles, so process them in one thread
+    boolean injected = relMerger != null || nodeCutter != null || restrictionCutter5 != null;
+    final TileScheduler scheduler = injected ? new TileScheduler( 1, 0L ) : new TileScheduler();
+    scheduler.processDir( wayTilesIn, ".wtl", new TileScheduler.WorkerFactory()
+    {
+      @Override
+      public TileScheduler.Worker createWorker()
+      {
+        if ( scheduler.getThreadCount() == 1 )
+        {
+          return WayCutter5.this;
+        }
+        WayCutter5 worker = new WayCutter5();
+        worker.nodeTilesIn = WayCutter5.this.nodeTilesIn;
+        worker.outTileDir = outTileDir;
+        worker.borderNidsOutStream = borderNidsOutStream;
+        worker.positionStore = positionStore;
+        worker.nodeFilter = nodeFilter;
+        return worker;
+      }
+    } );
 
     borderNidsOutStream.close();
+    closePositionStore();
+  }
+
+  @Override
+  public void processTile( File wayfile ) throws Exception
+  {
+    new WayIterator( this, true ).processFile( wayfile );
   }
 
   @Override
@@ -62,7 +93,10 @@ public class WayCutter5 extends MapCreatorBase
     String nodefilename = name.substring( 0, name.length()-3 ) + "ntl";
     File nodefile = new File( nodeTilesIn, nodefilename );
 
-    tileIndexMap = Boolean.getBoolean( "useDenseMaps" ) ? new DenseLongMap() : new TinyDenseLongMap();
+    if ( positionStore == null )
+    {
+      tileIndexMap = Boolean.getBoolean( "useDenseMaps" ) ? new DenseLongMap() : new TinyDenseLongMap();
+    }
     lonoffset = -1;
     latoffset = -1;
     
@@ -75,12 +109,12 @@ public class WayCutter5 extends MapCreatorBase
     if ( restrictionCutter5 != null )
     {
       String resfilename = name.substring( 0, name.length()-3 ) + "rtl";
-      File resfile = new File( "restrictions", resfilename );
+      File resfile = new File( new File( nodeTilesIn.getParentFile(), "restrictions" ), resfilename );
 
       if ( resfile.exists() )
       {
         // read restrictions for nodes in nodesMap
-        DataInputStream di = new DataInputStream( new BufferedInputStream ( new FileInputStream( resfile ) ) );
+        DataInputStream di = createInStream( resfile );
         int ntr = 0;
         try
         {
@@ -96,6 +130,10 @@ public class WayCutter5 extends MapCreatorBase
           di.close();
         }
         System.out.println( "read " + ntr + " turn-restrictions" );
+        if ( "true".equals( System.getProperty( "deletetmpfiles" ) ) )
+        {
+          resfile.delete();
+        }
       }
     }
     return true;
@@ -116,7 +154,13 @@ public class WayCutter5 extends MapCreatorBase
       nodeCutter.nextNode( n );
     }
   
-    tileIndexMap.put( n.nid, getTileIndex( n.ilon, n.ilat ) );
+    int tileIndex = getTileIndex( n.ilon, n.ilat );
+    if ( positionStore != null )
+    {
+      positionStore.put( n.nid, n.ilon, n.ilat, n.selev );
+      return;
+    }
+    tileIndexMap.put( n.nid, tileIndex );
   }
 
   @Override
@@ -129,7 +173,7 @@ public class WayCutter5 extends MapCreatorBase
     // determine the tile-index for each node
     for (int i=0; i<nnodes; i++ )
     {
-      int tileIndex = tileIndexMap.getInt( data.nodes.get(i) );
+      int tileIndex = getTileIndexForNid( data.nodes.get(i) );
       if ( tileIndex != -1 )
       {
         waytileset |= ( 1L << tileIndex );
@@ -160,7 +204,10 @@ public class WayCutter5 extends MapCreatorBase
       {
         if ( ( i > 0 && tiForNode[i-1] != ti ) || (i+1 < nnodes && tiForNode[i+1] != ti ) )
         {
-          writeId( borderNidsOutStream, data.nodes.get(i) );
+          synchronized( borderNidsOutStream )
+          {
+            writeId( borderNidsOutStream, data.nodes.get(i) );
+          }
         }
       }
     }
@@ -180,8 +227,23 @@ public class WayCutter5 extends MapCreatorBase
     }  
   }
 
-  public int getTileIndexForNid( long nid )
+  public int getTileIndexForNid( long nid ) throws Exception
   {
+    if ( positionStore != null )
+    {
+      // the store holds all nodes, so check for the current 45*30 tile
+      int ilon = positionStore.getILon( nid );
+      if ( ilon == -1 )
+      {
+        return -1;
+      }
+      int ilat = positionStore.getILat( nid );
+      if ( (ilon / 45000000 ) * 45 != lonoffset || (ilat / 30000000 ) * 30 != latoffset )
+      {
+        return -1;
+      }
+      return getTileIndex( ilon, ilat );
+    }
     return tileIndexMap.getInt( nid );
   }
 
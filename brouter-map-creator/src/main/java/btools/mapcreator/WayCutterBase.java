@@ -0,0 +1,44 @@
+package btools.mapcreator;
+
+import java.io.File;
+
+/**
+ * Base of the cutters writing the ways (and the restrictions by their
+ * via node) into the 45*30 tiles: WayCutter with a node index
+ * and SortedWayCutter sorting on disk instead.
+ *
+ * The OsmCutter injects the nodes and ways via the listener methods,
+ * the RestrictionCutter delegates to cutRestriction.
+ *
+ * @author ab
+ */
+public abstract class WayCutterBase extends MapCreatorBase
+{
+  public abstract void process( File nodeTilesIn, File wayFileIn, File wayTilesOut ) throws Exception;
+
+  public abstract void init( File wayTilesOut ) throws Exception;
+
+  public abstract void finish() throws Exception;
+
+  /**
+   * write a restriction to the tile of it's via node
+   */
+  public abstract void cutRestriction( RestrictionData data, RestrictionCutter restrictionCutter ) throws Exception;
+
+  protected int getTileIndex( int ilon, int ilat )
+  {
+     int lon = ilon / 45000000;
+     int lat = ilat / 30000000;
+     if ( lon < 0 || lon > 7 || lat < 0 || lat > 5 ) throw new IllegalArgumentException( "illegal pos: " + ilon + "," + ilat );
+     return lon*6 + lat;
+  }
+
+  public String getNameForTile( int tileIndex )
+  {
+    int lon = (tileIndex / 6 ) * 45 - 180;
+    int lat = (tileIndex % 6 ) * 30 - 90;
+    String slon = lon < 0 ? "W" + (-lon) : "E" + lon;
+    String slat = lat < 0 ? "S" + (-lat) : "N" + lat;
+    return slon + "_" + slat + ".wtl";
+  }
+}
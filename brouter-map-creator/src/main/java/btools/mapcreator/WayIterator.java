@@ -1,10 +1,8 @@
 package btools.mapcreator;
 
-import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
 
 /**
  * Iterate over a singe wayfile or a directory
@@ -58,7 +56,7 @@ public class WayIterator extends MapCreatorBase
       return;
     }
 
-    DataInputStream di = new DataInputStream( new BufferedInputStream ( new FileInputStream( wayfile ) ) );
+    DataInputStream di = createInStream( wayfile );
     try
     {
       for(;;)
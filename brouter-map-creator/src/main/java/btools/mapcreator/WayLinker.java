@@ -1,12 +1,12 @@
 package btools.mapcreator;
 
-import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.RandomAccessFile;
 import java.util.List;
 import java.util.TreeMap;
@@ -32,7 +32,7 @@ import btools.util.LazyArrayOfLists;
  *
  * @author ab
  */
-public class WayLinker extends MapCreatorBase implements Runnable
+public class WayLinker extends MapCreatorBase implements TileScheduler.Worker
 {
   private File nodeTilesIn;
   private File wayTilesIn;
@@ -67,57 +67,6 @@ public class WayLinker extends MapCreatorBase implements Runnable
 
   private boolean skipEncodingCheck;
 
-  private boolean isSlave;
-  private ThreadController tc;
-
-  public static final class ThreadController
-  {
-    long maxFileSize = 0L;
-    long currentSlaveSize;   
-    long currentMasterSize = 2000000000L;
-    
-    synchronized boolean setCurrentMasterSize( long size )
-    {
-      try
-      {
-        if ( size <= currentSlaveSize )
-        {
-          maxFileSize = Long.MAX_VALUE;
-          return false;
-        }
-        currentMasterSize = size;
-        if ( maxFileSize == 0L )
-        {
-          maxFileSize = size;
-        }
-        return true;
-      }
-      finally
-      {
-        notify();
-      }
-    }
-
-    synchronized boolean setCurrentSlaveSize( long size ) throws Exception
-    {
-      if ( size >= currentMasterSize )
-      {
-        return false;
-      }
-      
-      while ( size + currentMasterSize + 50000000L > maxFileSize )
-      {
-        System.out.println( "****** slave thread waiting for permission to process file of size " + size 
-          + " currentMaster=" + currentMasterSize + " maxFileSize=" + maxFileSize );
-        wait( 10000 );
-      }
-      currentSlaveSize = size;
-      return true;
-    }
-  }
-  
-  
-
   private void reset()
   {
     minLon = -1;
@@ -140,27 +89,39 @@ public class WayLinker extends MapCreatorBase implements Runnable
         args[6] ), args[7] );
   }
 
-  public void process( File nodeTilesIn, File wayTilesIn, File borderFileIn, File restrictionsFileIn, File lookupFile, File profileFile, File dataTilesOut,
-      String dataTilesSuffix ) throws Exception
+  public void process( File nodeTilesIn, File wayTilesIn, File borderFileIn, File restrictionsFileIn, File lookupFile, File profileFile,
+      File dataTilesOut, String dataTilesSuffix ) throws Exception
   {
-    WayLinker master = new WayLinker();
-    WayLinker slave = new WayLinker();
-    slave.isSlave = true;
-    master.isSlave = false;
-    
-    ThreadController tc = new ThreadController();
-    slave.tc = tc;
-    master.tc = tc;
-    
-    master._process( nodeTilesIn, wayTilesIn, borderFileIn, restrictionsFileIn, lookupFile,  profileFile, dataTilesOut, dataTilesSuffix );
-    slave._process( nodeTilesIn, wayTilesIn, borderFileIn, restrictionsFileIn, lookupFile,  profileFile, dataTilesOut, dataTilesSuffix );
-        
-    Thread m = new Thread( master );
-    Thread s = new Thread( slave );
-    m.start();
-    s.start();
-    m.join();
-    s.join();
+    processTiles( nodeTilesIn, wayTilesIn, borderFileIn, restrictionsFileIn, lookupFile, profileFile, dataTilesOut, dataTilesSuffix, null );
+  }
+
+  /**
+   * process the given way tiles only (or all in wayTilesIn if null)
+   */
+  public void processTiles( final File nodeTilesIn, final File wayTilesIn, final File borderFileIn, final File restrictionsFileIn, final File lookupFile,
+      final File profileFile, final File dataTilesOut, final String dataTilesSuffix, List<File> wayTiles ) throws Exception
+  {
+
+    // each worker has its own expression context and node map,
+    // the default of 2 workers is the former master/slave setup
+    TileScheduler.WorkerFactory factory = new TileScheduler.WorkerFactory()
+    {
+      @Override
+      public TileScheduler.Worker createWorker() throws Exception
+      {
+        WayLinker worker = new WayLinker();
+        worker._process( nodeTilesIn, wayTilesIn, borderFileIn, restrictionsFileIn, lookupFile, profileFile, dataTilesOut, dataTilesSuffix );
+        return worker;
+      }
+    };
+    if ( wayTiles == null )
+    {
+      new TileScheduler( 2 ).processDir( wayTilesIn, ".wt5", factory );
+    }
+    else
+    {
+      new TileScheduler( 2 ).processFiles( wayTiles, factory );
+    }
   }
 
   private void _process( File nodeTilesIn, File wayTilesIn, File borderFileIn, File restrictionsFileIn, File lookupFile, File profileFile, File dataTilesOut,
@@ -194,58 +155,14 @@ public class WayLinker extends MapCreatorBase implements Runnable
   }
   
   @Override
-  public void run()
+  public void processTile( File wayfile ) throws Exception
   {
-    try
-    {
-      // then process all segments
-      new WayIterator( this, true, !isSlave ).processDir( wayTilesIn, ".wt5" );
-    }
-    catch( Exception e )
-    {
-      System.out.println( "******* thread (slave=" + isSlave + ") got Exception: " + e );
-      throw new RuntimeException( e );
-    }
-    finally
-    {
-      if (!isSlave)
-      {
-        tc.setCurrentMasterSize( 0L );
-      }
-    }
+    new WayIterator( this, true ).processFile( wayfile );
   }
 
   @Override
   public boolean wayFileStart( File wayfile ) throws Exception
   {
-
-    // master/slave logic:
-    // total memory size should stay below a maximum
-    // and no file should be processed twice
-
-    long filesize = wayfile.length();    
-
-    System.out.println( "**** wayFileStart() for isSlave=" + isSlave + " size=" + filesize );
-
-    if ( isSlave )
-    {
-      if ( !tc.setCurrentSlaveSize( filesize ) )
-      {
-        return false;
-      }
-    }
-    else
-    {
-      if ( !tc.setCurrentMasterSize( filesize ) )
-      {
-        return false;
-      }
-    }
-  
-    
-  
-  
-  
     File trafficFile = fileFromTemplate( wayfile, trafficTilesIn, "trf" );
 
     // process corresponding node-file, if any
@@ -271,7 +188,7 @@ public class WayLinker extends MapCreatorBase implements Runnable
       // read restrictions for nodes in nodesMap
       if ( restrictionFile.exists() )
       {
-        DataInputStream di = new DataInputStream( new BufferedInputStream ( new FileInputStream( restrictionFile ) ) );
+        DataInputStream di = createInStream( restrictionFile );
         int ntr = 0;
         try
         {
@@ -298,6 +215,10 @@ public class WayLinker extends MapCreatorBase implements Runnable
           di.close();
         }
         System.out.println( "read " + ntr + " turn-restrictions" );
+        if ( "true".equals( System.getProperty( "deletetmpfiles" ) ) )
+        {
+          restrictionFile.delete();
+        }
       }
 
       nodesList = nodesMapFrozen.getValueList();
@@ -479,7 +400,7 @@ public class WayLinker extends MapCreatorBase implements Runnable
 
       // open the output file
       File outfile = fileFromTemplate( wayfile, dataTilesOut, dataTilesSuffix );
-      DataOutputStream os = createOutStream( outfile );
+      DataOutputStream os = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( outfile ) ) );
 
       long[] fileIndex = new long[25];
       int[] fileHeaderCrcs = new int[25];
@@ -0,0 +1,223 @@
+package btools.mapcreator;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class OscUpdaterTest
+{
+  // the changes: a moved node, a new way with new nodes (one in another 1*1 sub-file)
+  // and an existing node, a way that is no longer routable and a deleted way
+  private static final String MOVED_NODE = " <node id=\"348021524\" lat=\"50.0084665\" lon=\"8.7041623\" version=\"11\"/>\n";
+
+  private static final String NEW_NODES = " <node id=\"9000000001\" lat=\"50.0090000\" lon=\"8.7050000\" version=\"1\"/>\n"
+      + " <node id=\"9000000002\" lat=\"50.0095000\" lon=\"8.7055000\" version=\"1\">\n"
+      + "  <tag k=\"barrier\" v=\"gate\"/>\n"
+      + " </node>\n"
+      + " <node id=\"9000000003\" lat=\"51.5000000\" lon=\"9.5000000\" version=\"1\"/>\n";
+
+  private static final String NEW_WAY = " <way id=\"9000001\" version=\"1\">\n"
+      + "  <nd ref=\"348021525\"/>\n"
+      + "  <nd ref=\"9000000001\"/>\n"
+      + "  <nd ref=\"9000000002\"/>\n"
+      + "  <nd ref=\"9000000003\"/>\n"
+      + "  <tag k=\"highway\" v=\"track\"/>\n"
+      + " </way>\n";
+
+  private static final String FILTERED_WAY = " <way id=\"84975412\" version=\"3\">\n"
+      + "  <nd ref=\"986343295\"/>\n"
+      + "  <nd ref=\"986343297\"/>\n"
+      + "  <nd ref=\"986343289\"/>\n"
+      + "  <tag k=\"amenity\" v=\"parking\"/>\n"
+      + " </way>\n";
+
+  private static final String DELETED_WAY = " <way id=\"136121855\" version=\"2\"/>\n";
+
+  @Test
+  public void updateTest() throws Exception
+  {
+    URL mapurl = this.getClass().getResource( "/dreieich.osm.gz" );
+    Assert.assertTrue( "test-osm-map dreieich.osm not found", mapurl != null );
+    File mapFile = new File( mapurl.getFile() );
+    File workingDir = mapFile.getParentFile();
+    File profileDir = new File( workingDir, "/../../../misc/profiles2" );
+    File tmpdir = new File( workingDir, "tmp/oscupdater" );
+    tmpdir.mkdirs();
+
+    File oscFile = writeChange( new File( tmpdir, "change.osc" ), MOVED_NODE + FILTERED_WAY, NEW_NODES + NEW_WAY, DELETED_WAY );
+    File emptyOsc = writeChange( new File( tmpdir, "empty.osc" ), "", "", "" );
+    File unknownOsc = writeChange( new File( tmpdir, "unknown.osc" ), "",
+        NEW_WAY.replace( "9000000001", "1" ).replace( "9000000002", "348021524" ), "" );
+
+    // the reference: a full run on the patched map
+    HashMap<String,String> replacements = new HashMap<String,String>();
+    replacements.put( "node 348021524", MOVED_NODE );
+    replacements.put( "way 84975412", FILTERED_WAY );
+    replacements.put( "way 136121855", "" );
+    File patchedMap = patchMap( mapFile, new File( tmpdir, "patched.osm.gz" ), replacements );
+    File expected = createMap( profileDir, new File( tmpdir, "full" ), patchedMap, null );
+
+    // full scan, a failing update must leave the state untouched
+    File dir = new File( tmpdir, "fullscan" );
+    File segments = createMap( profileDir, dir, mapFile, null );
+    try
+    {
+      update( profileDir, dir, unknownOsc, null );
+      Assert.fail( "update with an unknown node should fail" );
+    }
+    catch( IllegalArgumentException e )
+    {
+      Assert.assertTrue( e.getMessage(), e.getMessage().indexOf( "node 1 of way 9000001" ) >= 0 );
+    }
+    update( profileDir, dir, oscFile, null );
+    compareSegments( expected, segments );
+
+    // indexed, the first update builds the way index
+    dir = new File( tmpdir, "indexed" );
+    File store = new File( dir, "nodepositions.dat" );
+    segments = createMap( profileDir, dir, mapFile, store );
+    update( profileDir, dir, emptyOsc, store );
+    Assert.assertTrue( "way index not built", new File( new File( dir, "tmp" ), OscUpdater.WAY_INDEX ).exists() );
+    update( profileDir, dir, oscFile, store );
+    compareSegments( expected, segments );
+  }
+
+  private static File createMap( File profileDir, File dir, File mapFile, File store ) throws Exception
+  {
+    File segments = new File( dir, "segments" );
+    System.setProperty( "keepLinkerInput", "true" );
+    if ( store != null )
+    {
+      System.setProperty( "nodePositionStore", store.getPath() );
+    }
+    try
+    {
+      new MapCreator().process( new File( profileDir, "lookups.dat" ), new File( profileDir, "all.brf" ), new File( profileDir, "trekking.brf" ),
+          new File( profileDir, "softaccess.brf" ), "/private-backup/srtm", new File( dir, "tmp" ), segments, mapFile );
+    }
+    finally
+    {
+      System.clearProperty( "keepLinkerInput" );
+      System.clearProperty( "nodePositionStore" );
+      System.clearProperty( "deletetmpfiles" );
+    }
+    return segments;
+  }
+
+  private static void update( File profileDir, File dir, File oscFile, File store ) throws Exception
+  {
+    if ( store != null )
+    {
+      System.setProperty( "nodePositionStore", store.getPath() );
+    }
+    try
+    {
+      new OscUpdater().process( new File( profileDir, "lookups.dat" ), new File( profileDir, "all.brf" ), new File( profileDir, "trekking.brf" ),
+          new File( profileDir, "softaccess.brf" ), "/private-backup/srtm", new File( dir, "tmp" ), new File( dir, "segments" ), oscFile );
+    }
+    finally
+    {
+      System.clearProperty( "nodePositionStore" );
+      System.clearProperty( "deletetmpfiles" );
+      MapCreatorBase.closePositionStore();
+    }
+  }
+
+  private static File writeChange( File f, String modify, String create, String delete ) throws Exception
+  {
+    PrintWriter pw = new PrintWriter( new OutputStreamWriter( new FileOutputStream( f ), "UTF-8" ) );
+    pw.print( "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<osmChange version=\"0.6\">\n" );
+    pw.print( "<modify>\n" + modify + "</modify>\n<create>\n" + create + "</create>\n<delete>\n" + delete + "</delete>\n" );
+    pw.print( "</osmChange>\n" );
+    pw.close();
+    return f;
+  }
+
+  // replace or delete the given elements, and add the new nodes and ways (the map has one element per line)
+  private static File patchMap( File in, File out, HashMap<String,String> replacements ) throws Exception
+  {
+    BufferedReader br = new BufferedReader( new InputStreamReader( new GZIPInputStream( new FileInputStream( in ) ), "UTF-8" ) );
+    PrintWriter pw = new PrintWriter( new OutputStreamWriter( new GZIPOutputStream( new FileOutputStream( out ) ), "UTF-8" ) );
+    boolean waysStarted = false;
+    boolean relationsStarted = false;
+    boolean skipping = false;
+    for( String line = br.readLine(); line != null; line = br.readLine() )
+    {
+      if ( skipping )
+      {
+        skipping = !line.startsWith( " </" );
+        continue;
+      }
+      if ( line.startsWith( " <way " ) && !waysStarted )
+      {
+        pw.print( NEW_NODES );
+        waysStarted = true;
+      }
+      if ( line.startsWith( " <relation " ) && !relationsStarted )
+      {
+        pw.print( NEW_WAY );
+        relationsStarted = true;
+      }
+      String replacement = null;
+      if ( line.startsWith( " <" ) && line.indexOf( " id=\"" ) > 0 )
+      {
+        String type = line.substring( 2, line.indexOf( ' ', 2 ) );
+        String id = line.substring( line.indexOf( " id=\"" ) + 5, line.indexOf( '"', line.indexOf( " id=\"" ) + 5 ) );
+        replacement = replacements.get( type + " " + id );
+      }
+      if ( replacement == null )
+      {
+        pw.print( line + "\n" );
+        continue;
+      }
+      pw.print( replacement );
+      skipping = !line.endsWith( "/>" );
+    }
+    br.close();
+    pw.close();
+    return out;
+  }
+
+  // the rd5 files must be equal, except for the creation timestamp in the trailer
+  private static void compareSegments( File expectedDir, File dir ) throws Exception
+  {
+    String[] names = expectedDir.list();
+    Arrays.sort( names );
+    Assert.assertTrue( "no segments written", names.length > 0 );
+    for( String name : names )
+    {
+      byte[] expected = readSegment( new File( expectedDir, name ) );
+      byte[] actual = readSegment( new File( dir, name ) );
+      Assert.assertArrayEquals( "content of " + name, expected, actual );
+    }
+  }
+
+  private static byte[] readSegment( File f ) throws Exception
+  {
+    byte[] ab = new byte[(int)f.length()];
+    DataInputStream dis = new DataInputStream( new FileInputStream( f ) );
+    try
+    {
+      dis.readFully( ab );
+    }
+    finally
+    {
+      dis.close();
+    }
+    Arrays.fill( ab, ab.length - 112, ab.length - 104, (byte)0 ); // timestamp + crc + 25 tile crcs
+    return ab;
+  }
+}
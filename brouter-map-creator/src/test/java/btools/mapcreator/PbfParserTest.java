@@ -0,0 +1,151 @@
+package btools.mapcreator;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PbfParserTest
+{
+  @Test
+  public void sameAsXmlTest() throws Exception
+  {
+    // dreieich.osm.pbf is dreieich.osm.gz converted to pbf (dense and plain nodes, raw and zlib blobs)
+    URL mapurl = this.getClass().getResource( "/dreieich.osm.gz" );
+    Assert.assertTrue( "test-osm-map dreieich.osm not found", mapurl != null );
+    URL pbfurl = this.getClass().getResource( "/dreieich.osm.pbf" );
+    Assert.assertTrue( "test-osm-map dreieich.osm.pbf not found", pbfurl != null );
+    File mapFile = new File( mapurl.getFile() );
+    File workingDir = mapFile.getParentFile();
+    File profileDir = new File( workingDir, "/../../../misc/profiles2" );
+    File lookupFile = new File( profileDir, "lookups.dat" );
+    File profileAll = new File( profileDir, "all.brf" );
+    File tmpdir = new File( workingDir, "tmp/pbfparser" );
+
+    File xmlDir = cut( new File( tmpdir, "xml" ), lookupFile, profileAll, mapFile );
+    File pbfDir = cut( new File( tmpdir, "pbf" ), lookupFile, profileAll, new File( pbfurl.getFile() ) );
+
+    String[] tiles = new File( xmlDir, "nodetiles" ).list();
+    Arrays.sort( tiles );
+    String[] pbfTiles = new File( pbfDir, "nodetiles" ).list();
+    Arrays.sort( pbfTiles );
+    Assert.assertEquals( "node tiles", Arrays.asList( tiles ), Arrays.asList( pbfTiles ) );
+    Assert.assertTrue( "no node tiles written", tiles.length > 0 );
+    for( String name : tiles )
+    {
+      compareFiles( new File( xmlDir, "nodetiles/" + name ), new File( pbfDir, "nodetiles/" + name ) );
+    }
+    compareFiles( new File( xmlDir, "ways.dat" ), new File( pbfDir, "ways.dat" ) );
+    compareFiles( new File( xmlDir, "cycleways.dat" ), new File( pbfDir, "cycleways.dat" ) );
+
+    // the xml parser ignores turn restrictions, so check them against the relations of the map
+    List<String> restrictions = xmlRestrictions( mapFile );
+    Assert.assertTrue( "no restrictions in the map", restrictions.size() > 0 );
+    Assert.assertEquals( "restrictions", restrictions, readRestrictions( new File( pbfDir, "restrictions.dat" ) ) );
+  }
+
+  // the restriction relations as "from via to" (the test map has only via nodes and only_* restrictions)
+  private static List<String> xmlRestrictions( File mapFile ) throws Exception
+  {
+    List<String> res = new ArrayList<String>();
+    BufferedReader br = new BufferedReader( new InputStreamReader( new GZIPInputStream( new FileInputStream( mapFile ) ), "UTF-8" ) );
+    String from = null;
+    String via = null;
+    String to = null;
+    boolean isRestriction = false;
+    for( String line = br.readLine(); line != null; line = br.readLine() )
+    {
+      if ( line.startsWith( " <relation " ) )
+      {
+        from = via = to = null;
+        isRestriction = false;
+      }
+      else if ( line.startsWith( "  <member " ) )
+      {
+        String ref = attribute( line, "ref" );
+        String role = attribute( line, "role" );
+        from = "from".equals( role ) ? ref : from;
+        via = "via".equals( role ) ? ref : via;
+        to = "to".equals( role ) ? ref : to;
+      }
+      else if ( line.startsWith( "  <tag k=\"type\" v=\"restriction\"" ) )
+      {
+        isRestriction = true;
+      }
+      else if ( line.startsWith( " </relation>" ) && isRestriction )
+      {
+        res.add( from + " " + via + " " + to );
+      }
+    }
+    br.close();
+    Collections.sort( res );
+    return res;
+  }
+
+  private static String attribute( String line, String name )
+  {
+    int idx = line.indexOf( " " + name + "=\"" ) + name.length() + 3;
+    return line.substring( idx, line.indexOf( '"', idx ) );
+  }
+
+  private static List<String> readRestrictions( File f ) throws Exception
+  {
+    List<String> res = new ArrayList<String>();
+    DataInputStream di = new DataInputStream( MapCreatorBase.openInStream( f ) );
+    try
+    {
+      for(;;)
+      {
+        RestrictionData r = new RestrictionData( di );
+        Assert.assertTrue( "positive", r.isPositive );
+        res.add( r.fromWid + " " + r.viaNid + " " + r.toWid );
+      }
+    }
+    catch( EOFException eof )
+    {
+      di.close();
+    }
+    Collections.sort( res );
+    return res;
+  }
+
+  private static File cut( File dir, File lookupFile, File profileAll, File mapFile ) throws Exception
+  {
+    File nodes = new File( dir, "nodetiles" );
+    nodes.mkdirs();
+    new OsmCutter().process( lookupFile, nodes, new File( dir, "ways.dat" ), new File( dir, "cycleways.dat" ), new File( dir, "restrictions.dat" ),
+        profileAll, mapFile );
+    return dir;
+  }
+
+  private static void compareFiles( File f1, File f2 ) throws Exception
+  {
+    Assert.assertArrayEquals( "content of " + f1.getName(), readFile( f1 ), readFile( f2 ) );
+  }
+
+  private static byte[] readFile( File f ) throws Exception
+  {
+    byte[] ab = new byte[(int)f.length()];
+    DataInputStream dis = new DataInputStream( new FileInputStream( f ) );
+    try
+    {
+      dis.readFully( ab );
+    }
+    finally
+    {
+      dis.close();
+    }
+    return ab;
+  }
+}
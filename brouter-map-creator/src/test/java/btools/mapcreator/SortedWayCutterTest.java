@@ -0,0 +1,108 @@
+package btools.mapcreator;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.net.URL;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SortedWayCutterTest
+{
+  @Test
+  public void sameTilesTest() throws Exception
+  {
+    URL mapurl = this.getClass().getResource( "/dreieich.osm.gz" );
+    Assert.assertTrue( "test-osm-map dreieich.osm not found", mapurl != null );
+    File mapFile = new File( mapurl.getFile() );
+    File workingDir = mapFile.getParentFile();
+    File profileDir = new File( workingDir, "/../../../misc/profiles2" );
+    File lookupFile = new File( profileDir, "lookups.dat" );
+    File profileAll = new File( profileDir, "all.brf" );
+    File tmpdir = new File( workingDir, "tmp/sortedwaycutter" );
+
+    File plainDir = cut( new WayCutter(), new File( tmpdir, "plain" ), lookupFile, profileAll, mapFile );
+    File sortedDir = cut( new SortedWayCutter(), new File( tmpdir, "sorted" ), lookupFile, profileAll, mapFile );
+
+    int nWayTiles = compareTiles( new File( plainDir, "waytiles" ), new File( sortedDir, "waytiles" ), ".wtl" );
+    Assert.assertTrue( "no way tiles written", nWayTiles > 0 );
+    int nResTiles = compareTiles( new File( plainDir, "restrictions" ), new File( sortedDir, "restrictions" ), ".rtl" );
+    Assert.assertTrue( "no restriction tiles written", nResTiles > 0 );
+  }
+
+  // run the first step of the OsmFastCutter with the given way cutter
+  private static File cut( WayCutterBase wayCutter, File dir, File lookupFile, File profileAll, File mapFile ) throws Exception
+  {
+    File nodes = new File( dir, "nodetiles" );
+    nodes.mkdirs();
+    File ways = new File( dir, "waytiles" );
+    ways.mkdirs();
+
+    OsmCutter cutter = new OsmCutter();
+    cutter.wayCutter = wayCutter;
+    cutter.wayCutter.init( ways );
+    cutter.restrictionCutter = new RestrictionCutter();
+    cutter.restrictionCutter.init( new File( dir, "restrictions" ), cutter.wayCutter );
+    cutter.process( lookupFile, nodes, null, new File( dir, "cycleways.dat" ), null, profileAll, mapFile );
+
+    // the test map has no restrictions in the xml, so add some (the last one with an unknown via node)
+    long[] viaNids = { 348021524L, 348021525L, 1L };
+    for( int i=0; i<viaNids.length; i++ )
+    {
+      RestrictionData res = new RestrictionData();
+      res.fromWid = 1000 + i;
+      res.toWid = 2000 + i;
+      res.viaNid = viaNids[i];
+      cutter.restrictionCutter.nextRestriction( res );
+    }
+    cutter.wayCutter.finish();
+    cutter.restrictionCutter.finish();
+    return dir;
+  }
+
+  private static int compareTiles( File dir1, File dir2, String suffix ) throws Exception
+  {
+    String[] names1 = tileNames( dir1, suffix );
+    String[] names2 = tileNames( dir2, suffix );
+    Assert.assertEquals( "tiles in " + dir1, Arrays.asList( names1 ), Arrays.asList( names2 ) );
+    for( String name : names1 )
+    {
+      Assert.assertArrayEquals( "content of " + name, readFile( new File( dir1, name ) ), readFile( new File( dir2, name ) ) );
+    }
+    return names1.length;
+  }
+
+  private static String[] tileNames( File dir, String suffix )
+  {
+    String[] names = dir.list();
+    int n = 0;
+    for( String name : names )
+    {
+      if ( name.endsWith( suffix ) )
+      {
+        names[n++] = name;
+      }
+    }
+    String[] res = new String[n];
+    System.arraycopy( names, 0, res, 0, n );
+    Arrays.sort( res );
+    return res;
+  }
+
+  private static byte[] readFile( File f ) throws Exception
+  {
+    byte[] ab = new byte[(int)f.length()];
+    DataInputStream dis = new DataInputStream( new FileInputStream( f ) );
+    try
+    {
+      dis.readFully( ab );
+    }
+    finally
+    {
+      dis.close();
+    }
+    return ab;
+  }
+}
@@ -0,0 +1,135 @@
+package btools.mapcreator;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SrtmCacheTest
+{
+  private static final int NTILES = 4;
+
+  @Test
+  public void spillTest() throws Exception
+  {
+    URL mapurl = this.getClass().getResource( "/dreieich.osm.gz" );
+    Assert.assertTrue( "test-osm-map dreieich.osm not found", mapurl != null );
+    File dir = new File( new File( mapurl.getFile() ).getParentFile(), "tmp/srtmcache" );
+    dir.mkdirs();
+
+    // the heap copies, each with a different pattern and some missing data
+    final SrtmRaster[] heapRasters = new SrtmRaster[NTILES];
+    for( int t=0; t<NTILES; t++ )
+    {
+      SrtmRaster r = new SrtmRaster();
+      r.ncols = 1201;
+      r.nrows = 1201;
+      r.xllcorner = t;
+      r.yllcorner = 0.;
+      r.cellsize = 1./1200.;
+      r.eval_array = new short[r.ncols*r.nrows];
+      for( int i=0; i<r.eval_array.length; i++ )
+      {
+        r.eval_array[i] = (short)( t*100 + ( i*7 ) % 53 );
+      }
+      for( int i=0; i<1000; i++ )
+      {
+        r.eval_array[600*1201 + i] = Short.MIN_VALUE;
+      }
+      OutputStream os = new BufferedOutputStream( new FileOutputStream( new File( dir, tileName( t ) + ".bef" ) ) );
+      new RasterCoder().encodeRaster( r, os );
+      os.close();
+      heapRasters[t] = r;
+    }
+
+    // a single raster on the heap, and room for two in the spill file (the others are dropped and reloaded)
+    final SrtmCache cache;
+    System.setProperty( "srtmCacheSize", "1" );
+    System.setProperty( "srtmSpillSize", "7" );
+    try
+    {
+      cache = new SrtmCache( dir.getPath(), dir );
+    }
+    finally
+    {
+      System.clearProperty( "srtmCacheSize" );
+      System.clearProperty( "srtmSpillSize" );
+    }
+
+    // the workers share the rasters, so run some in parallel
+    final List<String> errors = Collections.synchronizedList( new ArrayList<String>() );
+    Thread[] threads = new Thread[4];
+    for( int ti=0; ti<threads.length; ti++ )
+    {
+      final Random rand = new Random( 4711 + ti );
+      threads[ti] = new Thread()
+      {
+        @Override
+        public void run()
+        {
+          try
+          {
+            for( int round=0; round<20; round++ )
+            {
+              int t = rand.nextInt( NTILES );
+              SrtmRaster r = cache.getRaster( tileName( t ) );
+              for( int i=0; i<500; i++ )
+              {
+                int ilon = 180000000 + t*1000000 + 1000 + rand.nextInt( 998000 );
+                int ilat = 90000000 + 1000 + rand.nextInt( 998000 );
+                short expected = heapRasters[t].getElevation( ilon, ilat );
+                short elev = r.getElevation( ilon, ilat );
+                if ( elev != expected )
+                {
+                  errors.add( "tile " + t + " mapped=" + ( r.eval_buffer != null ) + " at " + ilon + "," + ilat + ": " + elev + " <> " + expected );
+                  return;
+                }
+              }
+            }
+          }
+          catch( Exception e )
+          {
+            errors.add( e.toString() );
+          }
+        }
+      };
+      threads[ti].start();
+    }
+    for( Thread t : threads )
+    {
+      t.join();
+    }
+    Assert.assertEquals( "errors", 0, errors.size() );
+
+    int mapped = 0;
+    for( int t=0; t<NTILES; t++ )
+    {
+      SrtmRaster r = cache.getRaster( tileName( t ) );
+      Assert.assertEquals( heapRasters[t].getElevation( 180000000 + t*1000000 + 500000, 90500000 ), r.getElevation( 180000000 + t*1000000 + 500000, 90500000 ) );
+      if ( r.eval_buffer != null )
+      {
+        mapped++;
+      }
+    }
+    Assert.assertTrue( "no raster was spilled", mapped > 0 );
+
+    cache.close();
+    for( String name : dir.list() )
+    {
+      Assert.assertFalse( "spill file not deleted: " + name, name.endsWith( ".raw" ) );
+    }
+  }
+
+  private static String tileName( int t )
+  {
+    return "srtm_0" + t + "_01";
+  }
+}
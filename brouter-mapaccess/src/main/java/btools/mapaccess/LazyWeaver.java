@@ -0,0 +1,580 @@
+package btools.mapaccess;
+
+import java.util.Arrays;
+
+import btools.codec.DataBuffers;
+import btools.codec.LinkedListContainer;
+import btools.codec.MicroCache;
+import btools.codec.NoisyDiffCoder;
+import btools.codec.StatCoderContext;
+import btools.codec.TagValueCoder;
+import btools.codec.TagValueValidator;
+import btools.codec.TagValueWrapper;
+import btools.codec.WaypointMatcher;
+import btools.util.ByteDataWriter;
+import btools.util.CompactLongSet;
+
+/**
+ * LazyWeaver is the lazy variant of the DirectWeaver: it decodes
+ * the node-index of a sub-tile eagerly, but creates the OsmNode and
+ * OsmLink instances only for the nodes actually requested via
+ * getAndClear / parseNodeBody.
+ *
+ * The bitstream has to be walked once completely to find the node
+ * bodies (and for waypoint matching), but that pass just remembers
+ * the bit-position and elevation of each node and the internal
+ * reverse links. The node bodies are decoded again from the retained
+ * bitstream on demand, so the bitstream given to the constructor
+ * must not be re-used by the caller. The bitstream counts to the
+ * data size and is released when all nodes have been collected.
+ *
+ * The links of a materialized node are re-chained in the order the
+ * DirectWeaver would create them when weaving the tiles in the order
+ * they were loaded, so the search breaks ties between equal-cost paths
+ * the same way.
+ *
+ * Like MicroCache2, it does not do peninsula cleanup.
+ */
+public final class LazyWeaver extends MicroCache
+{
+  private int lonBase;
+  private int latBase;
+  private int cellsize;
+
+  private StatCoderContext bc;
+  private TagValueCoder wayTagCoder;
+  private TagValueCoder nodeTagCoder;
+  private NoisyDiffCoder nodeIdxDiff;
+  private NoisyDiffCoder nodeEleDiff;
+  private NoisyDiffCoder extLonDiff;
+  private NoisyDiffCoder extLatDiff;
+  private NoisyDiffCoder transEleDiff;
+
+  private int[] nodeIds; // all node ids, not affected by collect
+  private int[] bitPositions;
+  private short[] elevations;
+  private int maxGeometrySize;
+  private byte[] geometryBuffer;
+  private ByteDataWriter geometryWriter;
+  private int retainedSize; // bitstream and node index
+
+  // link order bookkeeping of the node being materialized
+  private long[] ownTargets = new long[8];
+  private int ownCount;
+  private int[] reverseSources = new int[8];
+  private int reverseCount;
+  private OsmLink[] linkBuffer = new OsmLink[16];
+
+  boolean onCorridor; // contains nodes of the re-tracking corridor
+  NodesCache nodesCache; // to find the tiles of external link targets
+  long loadSeq; // the tile load order, see sortLinks
+
+  public LazyWeaver( StatCoderContext bc, DataBuffers dataBuffers, int lonIdx, int latIdx, int divisor, TagValueValidator wayValidator, WaypointMatcher waypointMatcher ) throws Exception
+  {
+    super( null );
+    cellsize = 1000000 / divisor;
+    lonBase = lonIdx*cellsize;
+    latBase = latIdx*cellsize;
+    this.bc = bc;
+
+    wayTagCoder = new TagValueCoder( bc, dataBuffers, wayValidator );
+    nodeTagCoder = new TagValueCoder( bc, dataBuffers, null );
+    nodeIdxDiff = new NoisyDiffCoder( bc );
+    nodeEleDiff = new NoisyDiffCoder( bc );
+    extLonDiff = new NoisyDiffCoder(bc);
+    extLatDiff = new NoisyDiffCoder(bc);
+    transEleDiff = new NoisyDiffCoder( bc );
+
+    int nodeCount = bc.decodeNoisyNumber( 5 );
+    nodeIds = new int[nodeCount];
+    bc.decodeSortedArray( nodeIds, 0, nodeCount, 29, 0 );
+
+    bc.decodeNoisyNumber( 10 ); // netdatasize (not needed for lazy weaving)
+
+    bitPositions = new int[nodeCount];
+    elevations = new short[nodeCount];
+    int[] validBits = new int[(nodeCount+31)>>5];
+    LinkedListContainer reverseLinks = new LinkedListContainer( nodeCount, dataBuffers.ibuf1 );
+
+    // indexing pass: walk the bodies without creating any objects
+    int selev = 0;
+    for( int n=0; n<nodeCount; n++ )
+    {
+      bitPositions[n] = bc.getReadingBitPosition();
+      selev += decodeNodeBody( n, null, null, reverseLinks, validBits, waypointMatcher );
+      elevations[n] = (short)selev;
+    }
+
+    // the cache data per valid node is the node index + the reverse link sources
+    int validCount = 0;
+    int datasize = 0;
+    for( int n=0; n<nodeCount; n++ )
+    {
+      if ( ( validBits[ n >> 5 ] & (1 << n ) ) != 0 )
+      {
+        validCount++;
+        datasize += 5 + 5 * reverseLinks.initList( n );
+      }
+    }
+    faid = new int[validCount];
+    fapos = new int[validCount];
+    ab = new byte[datasize];
+    aboffset = 0;
+    size = 0;
+    for( int n=0; n<nodeCount; n++ )
+    {
+      if ( ( validBits[ n >> 5 ] & (1 << n ) ) != 0 )
+      {
+        writeVarLengthUnsigned( n );
+        int cnt = reverseLinks.initList( n );
+        for ( int ri = 0; ri < cnt; ri++ )
+        {
+          writeVarLengthUnsigned( reverseLinks.getDataElement() );
+        }
+        finishNode( expandId( nodeIds[n] ) );
+      }
+    }
+    if ( aboffset < datasize )
+    {
+      byte[] ab2 = new byte[aboffset];
+      System.arraycopy( ab, 0, ab2, 0, aboffset );
+      ab = ab2;
+    }
+    init( size );
+
+    if ( size > 0 )
+    {
+      retainedSize = ( ( bc.getReadingBitPosition() + 7 ) >> 3 ) + 10*nodeCount;
+    }
+    else
+    {
+      releaseBitstream();
+    }
+  }
+
+  @Override
+  public int getDataSize()
+  {
+    return super.getDataSize() + retainedSize;
+  }
+
+  @Override
+  public int collect( int threshold )
+  {
+    int deleted = super.collect( threshold );
+    if ( getSize() == 0 && bc != null ) // all nodes consumed
+    {
+      deleted += retainedSize;
+      releaseBitstream();
+    }
+    return deleted;
+  }
+
+  private void releaseBitstream()
+  {
+    bc = null;
+    wayTagCoder = null;
+    nodeTagCoder = null;
+    nodeIdxDiff = null;
+    nodeEleDiff = null;
+    extLonDiff = null;
+    extLatDiff = null;
+    transEleDiff = null;
+    nodeIds = null;
+    bitPositions = null;
+    elevations = null;
+    geometryBuffer = null;
+    geometryWriter = null;
+    retainedSize = 0;
+  }
+
+  /**
+   * @return true if any of the given node ids is located in this sub-tile
+   */
+  public boolean containsAny( CompactLongSet ids )
+  {
+    for( int n=0; nodeIds != null && n<nodeIds.length; n++ )
+    {
+      if ( ids.contains( expandId( nodeIds[n] ) ) )
+      {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * decode the body of the given node, with the internal reader
+   * already set by getAndClear
+   */
+  public void parseNodeBody( OsmNode node, OsmNodesMap hollowNodes )
+  {
+    int n = readVarLengthUnsigned();
+    ownCount = 0;
+    reverseCount = 0;
+
+    bc.setReadingBitPosition( bitPositions[n] );
+    decodeNodeBody( n, node, hollowNodes, null, null, null );
+    node.selev = elevations[n];
+
+    // the internal links from other nodes are stored only at the source
+    while ( hasMoreData() )
+    {
+      int source = readVarLengthUnsigned();
+      long id = expandId( nodeIds[ source ] );
+      node.addLink( (int)( id >> 32 ), (int)( id & 0xffffffff ), null, null, hollowNodes, true );
+      if ( reverseCount == reverseSources.length )
+      {
+        int[] a = new int[2*reverseCount];
+        System.arraycopy( reverseSources, 0, a, 0, reverseCount );
+        reverseSources = a;
+      }
+      reverseSources[reverseCount++] = source;
+    }
+    sortLinks( node, n );
+
+    hollowNodes.remove( node );
+    if ( node.firstlink != null )
+    {
+      hollowNodes.nodesCreated++;
+    }
+  }
+
+  /**
+   * re-chain the links of the node in the order of the DirectWeaver,
+   * which is the reverse order of their creation: reverse links from
+   * lower node indices, own links, reverse links from higher node
+   * indices, followed by the links that already existed when weaving
+   * this tile, that is those to nodes of tiles loaded earlier
+   */
+  private void sortLinks( OsmNode node, int n )
+  {
+    int cnt = 0;
+    for( OsmLink l = node.firstlink; l != null; l = l.getNext( node ) )
+    {
+      if ( cnt == linkBuffer.length )
+      {
+        OsmLink[] a = new OsmLink[2*cnt];
+        System.arraycopy( linkBuffer, 0, a, 0, cnt );
+        linkBuffer = a;
+      }
+      linkBuffer[cnt++] = l;
+    }
+    if ( cnt < 2 )
+    {
+      return;
+    }
+    if ( 2*cnt > linkBuffer.length )
+    {
+      OsmLink[] a = new OsmLink[2*cnt];
+      System.arraycopy( linkBuffer, 0, a, 0, cnt );
+      linkBuffer = a;
+    }
+
+    // the reverse sources are in descending order, so the last ones are added first
+    int nLow = 0;
+    while( nLow < reverseCount && reverseSources[reverseCount - 1 - nLow] < n )
+    {
+      nLow++;
+    }
+    int sorted = cnt;
+    for( int k = reverseCount + ownCount - 1; k >= 0; k-- )
+    {
+      long id;
+      if ( k < nLow )
+      {
+        id = expandId( nodeIds[ reverseSources[reverseCount - 1 - k] ] );
+      }
+      else if ( k < nLow + ownCount )
+      {
+        id = ownTargets[k - nLow];
+      }
+      else
+      {
+        id = expandId( nodeIds[ reverseSources[reverseCount - 1 - ( k - ownCount )] ] );
+      }
+      for( int i = 0; i < cnt; i++ )
+      {
+        OsmLink l = linkBuffer[i];
+        if ( l != null && l.getTarget( node ).getIdFromPos() == id && getEarlierTile( l.getTarget( node ) ) == null )
+        {
+          linkBuffer[sorted++] = l;
+          linkBuffer[i] = null;
+          break;
+        }
+      }
+    }
+
+    // the links from tiles loaded earlier, latest tile first, then by descending node index
+    int tail = sorted;
+    for( int i = 0; i < cnt; i++ )
+    {
+      OsmLink l = linkBuffer[i];
+      if ( l == null )
+      {
+        continue;
+      }
+      int j = sorted++;
+      while( j > tail && isBefore( node, l, linkBuffer[j-1] ) )
+      {
+        linkBuffer[j] = linkBuffer[j-1];
+        j--;
+      }
+      linkBuffer[j] = l;
+    }
+
+    OsmLink next = null;
+    for( int i = sorted - 1; i >= cnt; i-- )
+    {
+      linkBuffer[i].setNext( node, next );
+      next = linkBuffer[i];
+    }
+    node.firstlink = next;
+    Arrays.fill( linkBuffer, 0, sorted, null );
+  }
+
+  // true if link l1 comes before l2 in the tail of links from earlier tiles
+  private boolean isBefore( OsmNode node, OsmLink l1, OsmLink l2 )
+  {
+    LazyWeaver w1 = getEarlierTile( l1.getTarget( node ) );
+    LazyWeaver w2 = getEarlierTile( l2.getTarget( node ) );
+    if ( w1 == null || w2 == null )
+    {
+      return w2 == null && w1 != null; // links not from earlier tiles first
+    }
+    if ( w1.loadSeq != w2.loadSeq )
+    {
+      return w1.loadSeq > w2.loadSeq;
+    }
+    return w1.shrinkId( l1.getTarget( node ).getIdFromPos() ) > w2.shrinkId( l2.getTarget( node ).getIdFromPos() );
+  }
+
+  /**
+   * @return the tile of the given node, if that is external and was loaded before this one
+   */
+  private LazyWeaver getEarlierTile( OsmNode t )
+  {
+    if ( nodesCache == null || isInternal( t.ilon, t.ilat ) )
+    {
+      return null;
+    }
+    MicroCache mc = nodesCache.getLoadedSegmentFor( t.ilon, t.ilat );
+    if ( mc instanceof LazyWeaver && ( (LazyWeaver)mc ).loadSeq < loadSeq )
+    {
+      return (LazyWeaver)mc;
+    }
+    return null;
+  }
+
+  /**
+   * decode a node body, either for indexing (node == null), or to
+   * materialize the given node
+   *
+   * @return the elevation difference to the previous node
+   */
+  private int decodeNodeBody( int n, OsmNode node, OsmNodesMap hollowNodes, LinkedListContainer reverseLinks, int[] validBits, WaypointMatcher waypointMatcher )
+  {
+    long id = expandId( nodeIds[n] );
+    int ilon = (int) ( id >> 32 );
+    int ilat = (int) ( id & 0xffffffff );
+
+    short trExceptions = 0;
+    int featureId = bc.decodeVarBits();
+    if ( featureId == 13 )
+    {
+      if ( node == null )
+      {
+        validBits[ n >> 5 ] |= 1 << n; // mark dummy-node valid
+      }
+      return 0; // empty node escape (delta files only)
+    }
+    while( featureId != 0 )
+    {
+      int bitsize = bc.decodeNoisyNumber( 5 );
+
+      if ( featureId == 2 ) // exceptions to turn-restriction
+      {
+        trExceptions = (short)bc.decodeBounded( 1023 );
+      }
+      else if ( featureId == 1 ) // turn-restriction
+      {
+        TurnRestriction tr = node == null ? null : new TurnRestriction();
+        boolean isPositive = bc.decodeBit();
+        int fromLon = ilon + bc.decodeNoisyDiff( 10 );
+        int fromLat = ilat + bc.decodeNoisyDiff( 10 );
+        int toLon = ilon + bc.decodeNoisyDiff( 10 );
+        int toLat = ilat + bc.decodeNoisyDiff( 10 );
+        if ( tr != null )
+        {
+          tr.exceptions = trExceptions;
+          tr.isPositive = isPositive;
+          tr.fromLon = fromLon;
+          tr.fromLat = fromLat;
+          tr.toLon = toLon;
+          tr.toLat = toLat;
+          node.addTurnRestriction( tr );
+        }
+        trExceptions = 0;
+      }
+      else
+      {
+        for( int i=0; i< bitsize; i++ ) bc.decodeBit(); // unknown feature, just skip
+      }
+      featureId = bc.decodeVarBits();
+    }
+
+    int eleDiff = nodeEleDiff.decodeSignedValue();
+    TagValueWrapper nodeTags = nodeTagCoder.decodeTagValueSet();
+    if ( node != null )
+    {
+      node.nodeDescription = nodeTags == null ? null : nodeTags.data;
+    }
+
+    int links = bc.decodeNoisyNumber( 1 );
+    for( int li=0; li<links; li++ )
+    {
+      int nodeIdx = n + nodeIdxDiff.decodeSignedValue();
+
+      int dlon_remaining;
+      int dlat_remaining;
+
+      boolean isReverse = false;
+      if ( nodeIdx != n ) // internal (forward-) link
+      {
+        long id2 = expandId( nodeIds[nodeIdx] );
+        dlon_remaining = (int) ( id2 >> 32 ) - ilon;
+        dlat_remaining = (int) ( id2 & 0xffffffff ) - ilat;
+      }
+      else
+      {
+        isReverse = bc.decodeBit();
+        dlon_remaining = extLonDiff.decodeSignedValue();
+        dlat_remaining = extLatDiff.decodeSignedValue();
+      }
+
+      TagValueWrapper wayTags = wayTagCoder.decodeTagValueSet();
+
+      int linklon = ilon + dlon_remaining;
+      int linklat = ilat + dlat_remaining;
+
+      if ( node == null && wayTags != null )
+      {
+        validBits[ n >> 5 ] |= 1 << n; // mark source-node valid
+        if ( nodeIdx != n )
+        {
+          reverseLinks.addDataElement( nodeIdx, n ); // register reverse link
+          validBits[ nodeIdx >> 5 ] |= 1 << nodeIdx; // mark target-node valid
+        }
+      }
+
+      ByteDataWriter geomWriter = node != null && wayTags != null ? getGeometryWriter() : null;
+      if ( !isReverse ) // geometry for forward links only
+      {
+        WaypointMatcher matcher = wayTags == null || wayTags.accessType < 2 ? null : waypointMatcher;
+        int ilontarget = ilon + dlon_remaining;
+        int ilattarget = ilat + dlat_remaining;
+        if ( matcher != null )
+        {
+          if ( !matcher.start( ilon, ilat, ilontarget, ilattarget ) )
+          {
+            matcher = null;
+          }
+        }
+
+        int transcount = bc.decodeVarBits();
+        if ( node == null && wayTags != null && 15*transcount > maxGeometrySize )
+        {
+          maxGeometrySize = 15*transcount; // 3 var-length ints per transfer node
+        }
+        int count = transcount+1;
+        for( int i=0; i<transcount; i++ )
+        {
+          int dlon = bc.decodePredictedValue( dlon_remaining/count );
+          int dlat = bc.decodePredictedValue( dlat_remaining/count );
+          dlon_remaining -= dlon;
+          dlat_remaining -= dlat;
+          count--;
+          int elediff = transEleDiff.decodeSignedValue();
+          if ( geomWriter != null )
+          {
+            geomWriter.writeVarLengthSigned( dlon );
+            geomWriter.writeVarLengthSigned( dlat );
+            geomWriter.writeVarLengthSigned( elediff );
+          }
+
+          if ( matcher != null ) matcher.transferNode( ilontarget - dlon_remaining, ilattarget - dlat_remaining );
+        }
+        if ( matcher != null ) matcher.end();
+      }
+
+      if ( geomWriter != null )
+      {
+        byte[] geometry = geomWriter.size() > 0 ? geomWriter.toByteArray() : null;
+        node.addLink( linklon, linklat, wayTags.data, geometry, hollowNodes, isReverse );
+        if ( ownCount == ownTargets.length )
+        {
+          long[] a = new long[2*ownCount];
+          System.arraycopy( ownTargets, 0, a, 0, ownCount );
+          ownTargets = a;
+        }
+        ownTargets[ownCount++] = ((long)linklon)<<32 | linklat;
+      }
+    }
+    return eleDiff;
+  }
+
+  private ByteDataWriter getGeometryWriter()
+  {
+    if ( geometryWriter == null )
+    {
+      geometryBuffer = new byte[maxGeometrySize];
+      geometryWriter = new ByteDataWriter( geometryBuffer );
+    }
+    geometryWriter.reset( geometryBuffer );
+    return geometryWriter;
+  }
+
+  @Override
+  public long expandId( int id32 )
+  {
+    int dlon = 0;
+    int dlat = 0;
+
+    for( int bm = 1; bm < 0x8000; bm <<= 1 )
+    {
+      if ( (id32 & 1) != 0 ) dlon |= bm;
+      if ( (id32 & 2) != 0 ) dlat |= bm;
+      id32 >>= 2;
+    }
+
+    int lon32 = lonBase + dlon;
+    int lat32 = latBase + dlat;
+
+    return ((long)lon32)<<32 | lat32;
+  }
+
+  @Override
+  public int shrinkId( long id64 )
+  {
+    int lon32 = (int)(id64 >> 32);
+    int lat32 = (int)(id64 & 0xffffffff);
+    int dlon = lon32 - lonBase;
+    int dlat = lat32 - latBase;
+    int id32 = 0;
+
+    for( int bm = 0x4000; bm > 0; bm >>= 1 )
+    {
+      id32 <<= 2;
+      if ( ( dlon & bm ) != 0 ) id32 |= 1;
+      if ( ( dlat & bm ) != 0 ) id32 |= 2;
+    }
+    return id32;
+  }
+
+  @Override
+  public boolean isInternal( int ilon, int ilat )
+  {
+    return ilon >= lonBase && ilon < lonBase + cellsize
+        && ilat >= latBase && ilat < latBase + cellsize;
+  }
+}
@@ -14,6 +14,7 @@ import btools.codec.DataBuffers;
 import btools.codec.MicroCache;
 import btools.codec.WaypointMatcher;
 import btools.expressions.BExpressionContextWay;
+import btools.util.CompactLongSet;
 
 public final class NodesCache
 {
@@ -31,6 +32,8 @@ public final class NodesCache
   private DataBuffers dataBuffers;
 
   private OsmFile[][] fileRows;
+  private OsmFile[][] otherFileRows; // caches of the other detail-mode, kept for re-use
+  private long otherSum; // their part of the cache sum
 
   public WaypointMatcher waypointMatcher;
 
@@ -50,6 +53,12 @@ public final class NodesCache
   private long ghostWakeup = 0;
   
   private boolean directWeaving = !Boolean.getBoolean( "disableDirectWeaving" );
+  private boolean memoryMapping = Boolean.getBoolean( "useMemoryMappedFiles" );
+  private boolean lazyWeaving = Boolean.getBoolean( "lazyDirectWeaving" );
+  private boolean corridorRetracking = !Boolean.getBoolean( "disableCorridorRetracking" );
+
+  private CompactLongSet corridorNodes;
+  private long loadCounter; // load order of the lazy woven tiles
   
   public String formatStatus()
   {
@@ -85,24 +94,28 @@ public final class NodesCache
       dataBuffers = oldCache.dataBuffers;
       secondarySegmentsDir = oldCache.secondarySegmentsDir;
 
-      // re-use old, virgin caches (if same detail-mode)
+      // re-use old, virgin caches (if same detail-mode), and keep
+      // the caches of the other detail-mode for the next switch
       if ( oldCache.detailed == detailed)
       {
         fileRows = oldCache.fileRows;
-        for ( OsmFile[] fileRow : fileRows )
-        {
-          if ( fileRow == null )
-            continue;
-          for ( OsmFile osmf : fileRow )
-          {
-            cacheSum += osmf.setGhostState();
-          }
-        }
+        otherFileRows = oldCache.otherFileRows;
       }
       else
+      {
+        fileRows = oldCache.otherFileRows;
+        otherFileRows = oldCache.fileRows;
+      }
+      loadCounter = oldCache.loadCounter;
+      if ( fileRows == null )
       {
         fileRows = new OsmFile[180][];
       }
+      cacheSum += setGhostState( fileRows );
+
+      // the kept caches count, they are dropped first if memory is short
+      otherSum = setGhostState( otherFileRows );
+      cacheSum += otherSum;
     }
     else
     {
@@ -113,7 +126,39 @@ public final class NodesCache
     }
     ghostSum = cacheSum;
   }
+
+  private static long setGhostState( OsmFile[][] rows )
+  {
+    long sum = 0;
+    if ( rows != null )
+    {
+      for ( OsmFile[] fileRow : rows )
+      {
+        if ( fileRow == null )
+          continue;
+        for ( OsmFile osmf : fileRow )
+        {
+          sum += osmf.setGhostState();
+        }
+      }
+    }
+    return sum;
+  }
   
+  /**
+   * Switch to corridor mode for re-tracking along a guide-track
+   * with the given node ids: sub-tiles are woven lazily, so only
+   * the corridor nodes and their direct neighbours get materialized,
+   * and sub-tiles containing corridor nodes are not garbage-collected,
+   * so they stay virgin and are re-used by the next re-tracking.
+   *
+   * This is exact only in detailed mode, which does no peninsula cleanup
+   */
+  public void setCorridor( CompactLongSet nodeIds )
+  {
+    corridorNodes = corridorRetracking && detailed ? nodeIds : null;
+  }
+
   public void clean( boolean all )
   {
       for ( OsmFile[] fileRow : fileRows )
@@ -125,6 +170,17 @@ public final class NodesCache
           osmf.clean( all);
         }
       }
+      if ( all )
+      {
+        dropOtherFileRows();
+      }
+  }
+
+  private void dropOtherFileRows()
+  {
+    otherFileRows = null;
+    cacheSum -= otherSum;
+    otherSum = 0;
   }
 
   // if the cache sum exceeded a threshold,
@@ -136,6 +192,15 @@ public final class NodesCache
       return;
     }
 
+    if ( otherFileRows != null )
+    {
+      dropOtherFileRows();
+      if ( cacheSum < maxmemtiles )
+      {
+        return;
+      }
+    }
+
     for ( int i = 0; i < fileRows.length; i++ )
     {
       OsmFile[] fileRow = fileRows[i];
@@ -213,13 +278,27 @@ public final class NodesCache
       if ( segment == null )
       {
         checkEnableCacheCleaning();
-        segment = osmf.createMicroCache( ilon, ilat, dataBuffers, expCtxWay, waypointMatcher, directWeaving ? nodesMap : null );
+        boolean lazy = lazyWeaving || corridorNodes != null;
+        segment = osmf.createMicroCache( ilon, ilat, dataBuffers, expCtxWay, waypointMatcher, directWeaving ? nodesMap : null, lazy );
+        if ( segment instanceof LazyWeaver )
+        {
+          LazyWeaver lw = (LazyWeaver)segment;
+          lw.nodesCache = this;
+          lw.loadSeq = ++loadCounter;
+          lw.onCorridor = corridorNodes != null && lw.containsAny( corridorNodes );
+        }
 
         cacheSum += segment.getDataSize();
       }
       else if ( segment.ghost )
       {
         segment.unGhost();
+        if ( segment instanceof LazyWeaver ) // re-used, counts as loaded now
+        {
+          LazyWeaver lw = (LazyWeaver)segment;
+          lw.nodesCache = this;
+          lw.loadSeq = ++loadCounter;
+        }
         ghostWakeup += segment.getDataSize();
       }
       return segment;
@@ -234,6 +313,25 @@ public final class NodesCache
     }
   }
 
+  /**
+   * @return the already loaded sub-tile for the given position, or null
+   */
+  MicroCache getLoadedSegmentFor( int ilon, int ilat )
+  {
+    OsmFile[] fileRow = fileRows[ilat / 1000000];
+    int lonDegree = ilon / 1000000;
+    int ndegrees = fileRow == null ? 0 : fileRow.length;
+    for ( int i = 0; i < ndegrees; i++ )
+    {
+      OsmFile osmf = fileRow[i];
+      if ( osmf.lonDegree == lonDegree )
+      {
+        return osmf.hasData() ? osmf.getMicroCache( ilon, ilat ) : null;
+      }
+    }
+    return null;
+  }
+
   /**
    * make sure the given node is non-hollow,
    * which means it contains not just the id,
@@ -262,7 +360,7 @@ public final class NodesCache
       node.parseNodeBody( segment, nodesMap, expCtxWay );
     }
 
-    if ( garbageCollectionEnabled ) // garbage collection
+    if ( garbageCollectionEnabled && !( segment instanceof LazyWeaver && ( (LazyWeaver)segment ).onCorridor ) ) // garbage collection
     {
       cacheSum -= segment.collect( segment.getSize() >> 1 ); // threshold = 1/2 of size is deleted
     }
@@ -415,6 +513,10 @@ public final class NodesCache
       {
         currentFileName = f.getName();
         ra = new PhysicalFile( f, dataBuffers, lookupVersion, lookupMinorVersion );
+        if ( memoryMapping )
+        {
+          ra.mapData();
+        }
       }
       fileCache.put( filenameBase, ra );
     }
@@ -7,6 +7,7 @@ package btools.mapaccess;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 
 import btools.codec.DataBuffers;
 import btools.codec.MicroCache;
@@ -20,6 +21,7 @@ import btools.util.Crc32;
 final class OsmFile
 {
   private RandomAccessFile is = null;
+  private ByteBuffer mappedData;
   private long fileOffset;
 
   private int[] posIdx;
@@ -60,6 +62,7 @@ final class OsmFile
         return; // empty
 
       is = rafile.ra;
+      mappedData = rafile.mappedData;
       posIdx = new int[ncaches];
       microCaches = new MicroCache[ncaches];
       is.seek( fileOffset );
@@ -95,12 +98,12 @@ final class OsmFile
     return microCaches[subIdx];
   }
 
-  public MicroCache createMicroCache( int ilon, int ilat, DataBuffers dataBuffers, TagValueValidator wayValidator, WaypointMatcher waypointMatcher, OsmNodesMap hollowNodes )
+  public MicroCache createMicroCache( int ilon, int ilat, DataBuffers dataBuffers, TagValueValidator wayValidator, WaypointMatcher waypointMatcher, OsmNodesMap hollowNodes, boolean lazyWeaving )
       throws Exception
   {
     int lonIdx = ilon / cellsize;
     int latIdx = ilat / cellsize;
-    MicroCache segment = createMicroCache( lonIdx, latIdx, dataBuffers, wayValidator, waypointMatcher, true, hollowNodes );
+    MicroCache segment = createMicroCache( lonIdx, latIdx, dataBuffers, wayValidator, waypointMatcher, true, hollowNodes, lazyWeaving );
     int subIdx = ( latIdx - divisor * latDegree ) * divisor + ( lonIdx - divisor * lonDegree );
     microCaches[subIdx] = segment;
     return segment;
@@ -127,25 +130,60 @@ final class OsmFile
     return size;
   }
 
+  /**
+   * get the region of the mapped file for the given sub-index,
+   * or null if the file is not memory-mapped or the sub-tile is empty
+   */
+  private ByteBuffer getMappedRegionForSubIdx( int subIdx )
+  {
+    int startPos = getPosIdx( subIdx - 1 );
+    int endPos = getPosIdx( subIdx );
+    if ( endPos <= startPos )
+    {
+      return null;
+    }
+    ByteBuffer region = mappedData.duplicate();
+    region.limit( (int)( fileOffset + endPos ) );
+    region.position( (int)( fileOffset + startPos ) );
+    return region;
+  }
+
   public MicroCache createMicroCache( int lonIdx, int latIdx, DataBuffers dataBuffers, TagValueValidator wayValidator,
-      WaypointMatcher waypointMatcher, boolean reallyDecode, OsmNodesMap hollowNodes ) throws Exception
+      WaypointMatcher waypointMatcher, boolean reallyDecode, OsmNodesMap hollowNodes, boolean lazyWeaving ) throws Exception
   {
     int subIdx = ( latIdx - divisor * latDegree ) * divisor + ( lonIdx - divisor * lonDegree );
 
-    byte[] ab = dataBuffers.iobuffer;
-    int asize = getDataInputForSubIdx( subIdx, ab );
+    byte[] ab = null;
+    ByteBuffer region = null;
+    int asize;
+    StatCoderContext bc;
 
-    if ( asize == 0 )
+    if ( mappedData != null ) // zero-copy: decode straight from the mapped file
     {
-      return MicroCache.emptyCache();
+      region = getMappedRegionForSubIdx( subIdx );
+      if ( region == null )
+      {
+        return MicroCache.emptyCache();
+      }
+      asize = region.remaining();
+      bc = new StatCoderContext( region );
     }
-    if ( asize > ab.length )
+    else
     {
-      ab = new byte[asize];
+      ab = dataBuffers.iobuffer;
       asize = getDataInputForSubIdx( subIdx, ab );
-    }
 
-    StatCoderContext bc = new StatCoderContext( ab );
+      if ( asize == 0 )
+      {
+        return MicroCache.emptyCache();
+      }
+      if ( asize > ab.length || ( lazyWeaving && hollowNodes != null ) ) // the lazy weaver keeps the data
+      {
+        ab = new byte[asize];
+        asize = getDataInputForSubIdx( subIdx, ab );
+      }
+      bc = new StatCoderContext( ab );
+    }
 
     try
     {
@@ -157,6 +195,10 @@ final class OsmFile
       {
         return new MicroCache2( bc, dataBuffers, lonIdx, latIdx, divisor, wayValidator, waypointMatcher );
       }
+      if ( lazyWeaving )
+      {
+        return new LazyWeaver( bc, dataBuffers, lonIdx, latIdx, divisor, wayValidator, waypointMatcher );
+      }
       new DirectWeaver( bc, dataBuffers, lonIdx, latIdx, divisor, wayValidator, waypointMatcher, hollowNodes );
       return MicroCache.emptyNonVirgin;
     }
@@ -166,6 +208,11 @@ final class OsmFile
       int readBytes = (bc.getReadingBitPosition()+7)>>3;
       if ( readBytes != asize-4 )
       {
+        if ( ab == null )
+        {
+          ab = new byte[asize];
+          region.get( ab );
+        }
         int crcData = Crc32.crc( ab, 0, asize - 4 );
         int crcFooter = new ByteDataReader( ab, asize - 4 ).readInt();
         if ( crcData == crcFooter )
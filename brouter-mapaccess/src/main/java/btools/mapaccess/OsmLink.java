@@ -81,6 +81,21 @@ public class OsmLink
     } */
   }
 
+  /**
+   * Set the relevant next-pointer for the given source
+   */
+  final void setNext( OsmNode source, OsmLink link )
+  {
+    if ( n2 != source && n2 != null )
+    {
+      next = link;
+    }
+    else
+    {
+      previous = link;
+    }
+  }
+
   /**
    * Reset this link for the given direction
    */
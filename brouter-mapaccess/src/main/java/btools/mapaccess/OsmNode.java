@@ -129,6 +129,10 @@ public class OsmNode extends OsmLink implements OsmPos
     {
       parseNodeBody2( (MicroCache2) mc, hollowNodes, expCtxWay );
     }
+    else if ( mc instanceof LazyWeaver )
+    {
+      ( (LazyWeaver) mc ).parseNodeBody( this, hollowNodes );
+    }
     else
       throw new IllegalArgumentException( "unknown cache version: " + mc.getClass() );
   }
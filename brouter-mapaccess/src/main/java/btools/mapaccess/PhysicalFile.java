@@ -8,6 +8,8 @@ package btools.mapaccess;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 import btools.codec.DataBuffers;
 import btools.codec.MicroCache;
@@ -17,6 +19,7 @@ import btools.util.Crc32;
 final public class PhysicalFile
 {
   RandomAccessFile ra = null;
+  ByteBuffer mappedData; // if non-null, the whole file mapped read-only
   long[] fileIndex = new long[25];
   int[] fileHeaderCrcs;
    
@@ -62,7 +65,7 @@ final public class PhysicalFile
           if ( osmf.hasData() )
             for ( int lonIdx = 0; lonIdx < div; lonIdx++ )
               for ( int latIdx = 0; latIdx < div; latIdx++ )
-                osmf.createMicroCache( lonDegree * div + lonIdx, latDegree * div + latIdx, dataBuffers, null, null, MicroCache.debug, null );
+                osmf.createMicroCache( lonDegree * div + lonIdx, latDegree * div + latIdx, dataBuffers, null, null, MicroCache.debug, null, false );
         }
       }
     }
@@ -145,4 +148,19 @@ final public class PhysicalFile
       fileHeaderCrcs[i] = dis.readInt();
     }
   }
+
+  /**
+   * Map the file read-only into memory, so that sub-tiles can
+   * be decoded directly from the mapped region without copying
+   * them into the io-buffer. Files too large for a single
+   * mapping are left unmapped.
+   */
+  void mapData() throws IOException
+  {
+    long len = ra.length();
+    if ( mappedData == null && len <= Integer.MAX_VALUE )
+    {
+      mappedData = ra.getChannel().map( FileChannel.MapMode.READ_ONLY, 0L, len );
+    }
+  }
 }
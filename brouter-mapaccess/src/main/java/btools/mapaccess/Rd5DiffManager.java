@@ -10,6 +10,15 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 final public class Rd5DiffManager
 {
@@ -20,14 +29,19 @@ final public class Rd5DiffManager
 
   /**
    * Compute diffs for all RD5 files
+   *
+   * The files are processed in parallel (-DdiffThreads=n, default: number
+   * of processors), limited by a memory budget (-DdiffMemoryBudget in bytes,
+   * default: half the heap). Larger files are started first.
    */
   public static void calcDiffs( File oldDir, File newDir ) throws Exception
   {
-    File oldDiffDir = new File( oldDir, "diff" );
-    File newDiffDir = new File( newDir, "diff" );
+    final File oldDiffDir = new File( oldDir, "diff" );
+    final File newDiffDir = new File( newDir, "diff" );
 
     File[] filesNew = newDir.listFiles();
-    
+    List<File> todo = new ArrayList<File>();
+
     for( File fn : filesNew )
     {
       String name = fn.getName();
@@ -39,60 +53,155 @@ final public class Rd5DiffManager
       {
         continue; // exclude very small files from diffing
       }
-      String basename = name.substring( 0, name.length() - 4 );
       File fo = new File( oldDir, name );
       if ( !fo.isFile() )
       {
         continue;
       }
-      
-      // calculate MD5 of old file
-      String md5 = getMD5( fo );
-
-      String md5New = getMD5( fn );
-      
-      System.out.println( "name=" + name + " md5=" + md5 );
-      
-      File specificNewDiffs = new File( newDiffDir, basename );
-      specificNewDiffs.mkdirs();
-      
-      String diffFileName = md5 + ".rd5diff";
-      File diffFile = new File( specificNewDiffs, diffFileName );
-      
-      String dummyDiffFileName = md5New + ".rd5diff";
-      File dummyDiffFile = new File( specificNewDiffs, dummyDiffFileName );
-      dummyDiffFile.createNewFile();
-
-      // calc the new diff
-      Rd5DiffTool.diff2files( fo, fn, diffFile  );
-      
-      // ... and add that to old diff files
-      File specificOldDiffs = new File( oldDiffDir, basename );
-      if ( specificOldDiffs.isDirectory() )
+      todo.add( fn );
+    }
+    Collections.sort( todo, new Comparator<File>()
+    {
+      @Override
+      public int compare( File f1, File f2 )
+      {
+        return f1.length() < f2.length() ? 1 : ( f1.length() > f2.length() ? -1 : 0 );
+      }
+    } );
+
+    long defaultBudget = Runtime.getRuntime().maxMemory() / 2;
+    final MemoryBudget budget = new MemoryBudget( Long.getLong( "diffMemoryBudget", defaultBudget ).longValue() );
+
+    ExecutorService pool = Executors.newFixedThreadPool( Rd5DiffTool.getThreadCount() );
+    List<Future<?>> results = new ArrayList<Future<?>>();
+    try
+    {
+      for( final File fn : todo )
       {
-        File[] oldDiffs = specificOldDiffs.listFiles();
-        for( File od : oldDiffs )
+        final File fo = new File( oldDir, fn.getName() );
+        results.add( pool.submit( new Callable<Object>()
         {
-          if ( !od.getName().endsWith( ".rd5diff" ) )
+          @Override
+          public Object call() throws Exception
           {
-            continue;
+            long bytes = Rd5DiffTool.getMemoryEstimate( fo, fn );
+            budget.acquire( bytes );
+            try
+            {
+              calcDiff( fo, fn, oldDiffDir, newDiffDir );
+            }
+            finally
+            {
+              budget.release( bytes );
+            }
+            return null;
           }
-          if ( System.currentTimeMillis() - od.lastModified() > 9*86400000L )
+        } ) );
+      }
+      for( Future<?> result : results )
+      {
+        try
+        {
+          result.get();
+        }
+        catch( ExecutionException e )
+        {
+          Throwable cause = e.getCause();
+          if ( cause instanceof Error )
           {
-            continue; // limit diff history to 9 days
-          }
-          
-          File updatedDiff = new File( specificNewDiffs, od.getName() );
-          if ( !updatedDiff.exists() )
-          {        
-            Rd5DiffTool.addDeltas( od, diffFile, updatedDiff  );
-            updatedDiff.setLastModified( od.lastModified() );
+            throw (Error)cause;
           }
+          throw (Exception)cause;
+        }
+      }
+    }
+    finally
+    {
+      pool.shutdownNow();
+    }
+  }
+
+  private static void calcDiff( File fo, File fn, File oldDiffDir, File newDiffDir ) throws Exception
+  {
+    String name = fn.getName();
+    String basename = name.substring( 0, name.length() - 4 );
+
+    // calculate MD5 of old file
+    String md5 = getMD5( fo );
+
+    String md5New = getMD5( fn );
+
+    System.out.println( "name=" + name + " md5=" + md5 );
+
+    File specificNewDiffs = new File( newDiffDir, basename );
+    specificNewDiffs.mkdirs();
+
+    String diffFileName = md5 + ".rd5diff";
+    File diffFile = new File( specificNewDiffs, diffFileName );
+
+    String dummyDiffFileName = md5New + ".rd5diff";
+    File dummyDiffFile = new File( specificNewDiffs, dummyDiffFileName );
+    dummyDiffFile.createNewFile();
+
+    // calc the new diff
+    Rd5DiffTool.diff2files( fo, fn, diffFile  );
+
+    // ... and add that to old diff files
+    File specificOldDiffs = new File( oldDiffDir, basename );
+    if ( specificOldDiffs.isDirectory() )
+    {
+      File[] oldDiffs = specificOldDiffs.listFiles();
+      for( File od : oldDiffs )
+      {
+        if ( !od.getName().endsWith( ".rd5diff" ) )
+        {
+          continue;
+        }
+        if ( System.currentTimeMillis() - od.lastModified() > 9*86400000L )
+        {
+          continue; // limit diff history to 9 days
+        }
+
+        File updatedDiff = new File( specificNewDiffs, od.getName() );
+        if ( !updatedDiff.exists() )
+        {
+          Rd5DiffTool.addDeltas( od, diffFile, updatedDiff  );
+          updatedDiff.setLastModified( od.lastModified() );
         }
       }
     }
   }
 
+  /**
+   * Heap budget shared by the file jobs. A job larger than
+   * the budget still runs, but only if no other job does.
+   */
+  private static final class MemoryBudget
+  {
+    private long budget;
+    private long used;
+
+    MemoryBudget( long budget )
+    {
+      this.budget = budget;
+    }
+
+    synchronized void acquire( long bytes ) throws InterruptedException
+    {
+      while( used > 0 && used + bytes > budget )
+      {
+        wait();
+      }
+      used += bytes;
+    }
+
+    synchronized void release( long bytes )
+    {
+      used -= bytes;
+      notifyAll();
+    }
+  }
+
   public static String getMD5( File f ) throws Exception
   {
     MessageDigest md = MessageDigest.getInstance("MD5");
@@ -7,12 +7,20 @@ package btools.mapaccess;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import btools.codec.DataBuffers;
 import btools.codec.MicroCache;
@@ -23,6 +31,8 @@ import btools.util.ProgressListener;
 
 final public class Rd5DiffTool implements ProgressListener
 {
+  private static ExecutorService subFilePool;
+
   public static void main( String[] args ) throws Exception
   {
     if ( args.length == 2 )
@@ -138,17 +148,11 @@ final public class Rd5DiffTool implements ProgressListener
   /**
    * Compute the delta between 2 RD5 files and
    * show statistics on the expected size of the delta file
+   *
+   * The sub-files are diffed in parallel, see processSubFiles
    */
   public static void diff2files( File f1, File f2, File outFile ) throws Exception
   {
-    byte[] abBuf1 = new byte[10 * 1024 * 1024];
-    byte[] abBuf2 = new byte[10 * 1024 * 1024];
-    
-    int nodesDiff = 0;
-    int diffedTiles = 0;
-    
-    long bytesDiff = 0L;
-
     DataInputStream dis1 = new DataInputStream( new BufferedInputStream( new FileInputStream( f1 ) ) );
     DataInputStream dis2 = new DataInputStream( new BufferedInputStream( new FileInputStream( f2 ) ) );
     DataOutputStream dos = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( outFile ) ) );
@@ -161,102 +165,12 @@ final public class Rd5DiffTool implements ProgressListener
 
     try
     {
-      DataBuffers dataBuffers = new DataBuffers();
-      for ( int subFileIdx = 0; subFileIdx < 25; subFileIdx++ )
-      {
-         boolean hasData1 = getTileStart( fileIndex1, subFileIdx ) < getTileEnd( fileIndex1, subFileIdx );
-         boolean hasData2 = getTileStart( fileIndex2, subFileIdx ) < getTileEnd( fileIndex2, subFileIdx );
-
-         int[] posIdx1 = hasData1 ? readPosIndex( dis1, null ) : null;
-         int[] posIdx2 = hasData2 ? readPosIndex( dis2, dos ) : null;
-
-         for ( int tileIdx = 0; tileIdx < 1024; tileIdx++ )
-         {
-           byte[] ab1 = createMicroCache( posIdx1, tileIdx, dis1, false );
-           byte[] ab2 = createMicroCache( posIdx2, tileIdx, dis2, false );
-
-           if ( ab2 == null )
-           {
-             continue; // empty target tile
-           }
-           MicroCache mc;
-           if ( Arrays.equals( ab1, ab2 ) )
-           {
-             mc = MicroCache.emptyCache(); // empty diff
-           }
-           else // calc diff of the 2 tiles
-           {
-             MicroCache mc1 = createMicroCache( ab1, dataBuffers );
-             MicroCache mc2 = createMicroCache( ab2, dataBuffers );
-             mc = new MicroCache2( mc1.getSize() + mc2.getSize(), abBuf2, 0, 0, 32 );
-             mc.calcDelta( mc1, mc2 );
-           }
-              
-           if ( mc.getSize() == 0 )
-           {
-             dos.writeInt( 0 );
-           }
-           else
-           {
-             int len = mc.encodeMicroCache( abBuf1 );
-             dos.writeInt( len );
-             dos.write( abBuf1, 0, len );
+      SubFileJob stats = processSubFiles( dis1, dis2, dos, fileIndex1, fileIndex2, false );
 
-             bytesDiff += len;
-             nodesDiff += mc.getSize();
-             diffedTiles++;
-
-/*                 // do some consistemcy checks on the encoding
-
-                 byte[] bytes = new byte[len];
-                 System.arraycopy( abBuf1, 0, bytes, 0, len );
-                 
-                 // cross-check the encoding: decode again
-                 MicroCache mcCheck = new MicroCache2( new StatCoderContext( bytes ), new DataBuffers( null ), 0, 0, 32, null, null );
-                 
-                 // due to link-order ambiguity, for decoded we can only compare node-count and datasize
-                 if ( mc.size() != mcCheck.size() )
-                 {
-                   throw new IllegalArgumentException( "re-decoded data-size mismatch!" );
-                 }
-                 if ( mc.getSize() != mcCheck.getSize() )
-                 {
-                   throw new IllegalArgumentException( "re-decoded node-count mismatch!" );
-                 }
-                 
-                 // .... so re-encode again
-                 int len2 = mcCheck.encodeMicroCache( abBuf1 );
-                 byte[] bytes2 = new byte[len2];
-                 System.arraycopy( abBuf1, 0, bytes2, 0, len2 );
-                 
-                 // and here we can compare byte-by-byte
-                 if ( len != len2 )
-                 {
-                   throw new IllegalArgumentException( "decoded size mismatch!" );
-                 }
-                 for( int i=0; i<len; i++ )
-                 {
-                   if ( bytes[i] != bytes2[i] )
-                   {
-                     throw new IllegalArgumentException( "decoded data mismatch at i=" + i );
-                   }
-                 }
-             */
-          }
-        }
-      }
       // write any remaining data to the output file
-      for(;;)
-      {
-        int len = dis2.read( abBuf1 );
-        if (len < 0)
-        {
-          break;
-        }
-        dos.write( abBuf1, 0, len );
-      }
+      copyRemaining( dis2, dos );
       long t1 = System.currentTimeMillis();
-      System.out.println( "nodesDiff=" + nodesDiff + " bytesDiff=" + bytesDiff + " diffedTiles=" + diffedTiles + " took " + (t1-t0) + "ms" );
+      System.out.println( "nodesDiff=" + stats.nodesDiff + " bytesDiff=" + stats.bytesDiff + " diffedTiles=" + stats.diffedTiles + " took " + (t1-t0) + "ms" );
     }
     finally
     {
@@ -293,6 +207,314 @@ final public class Rd5DiffTool implements ProgressListener
     }
   }
 
+  /**
+   * @return the number of threads for the sub-file processing, from -DdiffThreads (default: number of processors)
+   */
+  public static int getThreadCount()
+  {
+    return Math.max( 1, Integer.getInteger( "diffThreads", Runtime.getRuntime().availableProcessors() ).intValue() );
+  }
+
+  /**
+   * @return the estimated heap needed to diff or add the given files
+   */
+  public static long getMemoryEstimate( File f1, File f2 )
+  {
+    // the sub-files in process (raw data of both files and the result)
+    int inProcess = Math.min( 25, getThreadCount() + 1 );
+    return 2L * ( f1.length() + f2.length() ) * inProcess / 25;
+  }
+
+  private static synchronized ExecutorService getSubFilePool()
+  {
+    int nThreads = getThreadCount();
+    if ( nThreads == 1 )
+    {
+      return null;
+    }
+    if ( subFilePool == null )
+    {
+      subFilePool = Executors.newFixedThreadPool( nThreads, new ThreadFactory()
+      {
+        @Override
+        public Thread newThread( Runnable r )
+        {
+          Thread t = new Thread( r, "rd5diff" );
+          t.setDaemon( true );
+          return t;
+        }
+      } );
+    }
+    return subFilePool;
+  }
+
+  /**
+   * Read the sub-files of both files in order, process them in parallel
+   * (at most threads + 1 in process) and write the results in order
+   *
+   * @return the accumulated statistics
+   */
+  private static SubFileJob processSubFiles( DataInputStream dis1, DataInputStream dis2, DataOutputStream dos,
+      long[] fileIndex1, long[] fileIndex2, boolean addMode ) throws Exception
+  {
+    SubFileJob total = new SubFileJob( addMode );
+    ExecutorService pool = getSubFilePool();
+    LinkedList<Future<SubFileJob>> inProcess = new LinkedList<Future<SubFileJob>>();
+    int maxInProcess = getThreadCount() + 1;
+
+    for ( int subFileIdx = 0; subFileIdx < 25; subFileIdx++ )
+    {
+      boolean hasData1 = getTileStart( fileIndex1, subFileIdx ) < getTileEnd( fileIndex1, subFileIdx );
+      boolean hasData2 = getTileStart( fileIndex2, subFileIdx ) < getTileEnd( fileIndex2, subFileIdx );
+
+      int[] posIdx1 = hasData1 ? readPosIndex( dis1, null ) : null;
+      int[] posIdx2 = hasData2 ? readPosIndex( dis2, null ) : null;
+
+      SubFileJob job = new SubFileJob( addMode );
+      job.posIdx2 = posIdx2;
+      for ( int tileIdx = 0; tileIdx < 1024; tileIdx++ )
+      {
+        job.tiles1[tileIdx] = createMicroCache( posIdx1, tileIdx, dis1, addMode );
+        job.tiles2[tileIdx] = createMicroCache( posIdx2, tileIdx, dis2, addMode );
+      }
+
+      if ( pool == null )
+      {
+        job.call().writeTo( dos, total );
+        continue;
+      }
+      inProcess.add( pool.submit( job ) );
+      if ( inProcess.size() >= maxInProcess )
+      {
+        getResult( inProcess.removeFirst() ).writeTo( dos, total );
+      }
+    }
+    while( !inProcess.isEmpty() )
+    {
+      getResult( inProcess.removeFirst() ).writeTo( dos, total );
+    }
+    return total;
+  }
+
+  private static SubFileJob getResult( Future<SubFileJob> f ) throws Exception
+  {
+    try
+    {
+      return f.get();
+    }
+    catch( ExecutionException e )
+    {
+      Throwable cause = e.getCause();
+      if ( cause instanceof Error )
+      {
+        throw (Error)cause;
+      }
+      throw (Exception)cause;
+    }
+  }
+
+  private static void copyRemaining( DataInputStream dis, DataOutputStream dos ) throws Exception
+  {
+    byte[] buf = new byte[65536];
+    for(;;)
+    {
+      int len = dis.read( buf );
+      if (len < 0)
+      {
+        break;
+      }
+      dos.write( buf, 0, len );
+    }
+  }
+
+  /**
+   * the work buffers of a thread
+   */
+  private static final class DiffBuffers
+  {
+    DataBuffers dataBuffers = new DataBuffers();
+    byte[] abBuf1 = new byte[10 * 1024 * 1024];
+    byte[] abBuf2 = new byte[10 * 1024 * 1024];
+  }
+
+  private static final ThreadLocal<DiffBuffers> diffBuffers = new ThreadLocal<DiffBuffers>()
+  {
+    @Override
+    protected DiffBuffers initialValue()
+    {
+      return new DiffBuffers();
+    }
+  };
+
+  /**
+   * The tiles of a sub-file, to be diffed (or added) into the result
+   */
+  private static final class SubFileJob implements Callable<SubFileJob>
+  {
+    boolean addMode;
+    int[] posIdx2;
+    byte[][] tiles1 = new byte[1024][];
+    byte[][] tiles2 = new byte[1024][];
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+
+    int nodesDiff;
+    int diffedTiles;
+    long bytesDiff;
+
+    SubFileJob( boolean addMode )
+    {
+      this.addMode = addMode;
+    }
+
+    @Override
+    public SubFileJob call() throws Exception
+    {
+      DiffBuffers buffers = diffBuffers.get();
+      DataOutputStream dos = new DataOutputStream( result );
+      if ( posIdx2 != null )
+      {
+        for( int i=0; i<1024; i++ )
+        {
+          dos.writeInt( posIdx2[i] );
+        }
+      }
+      for ( int tileIdx = 0; tileIdx < 1024; tileIdx++ )
+      {
+        if ( addMode )
+        {
+          addTile( tiles1[tileIdx], tiles2[tileIdx], dos, buffers );
+        }
+        else
+        {
+          diffTile( tiles1[tileIdx], tiles2[tileIdx], dos, buffers );
+        }
+      }
+      dos.flush();
+      tiles1 = null;
+      tiles2 = null;
+      return this;
+    }
+
+    void writeTo( DataOutputStream dos, SubFileJob total ) throws Exception
+    {
+      result.writeTo( dos );
+      result = null;
+      total.nodesDiff += nodesDiff;
+      total.diffedTiles += diffedTiles;
+      total.bytesDiff += bytesDiff;
+    }
+
+    private void diffTile( byte[] ab1, byte[] ab2, DataOutputStream dos, DiffBuffers buffers ) throws Exception
+    {
+      if ( ab2 == null )
+      {
+        return; // empty target tile
+      }
+      MicroCache mc;
+      if ( Arrays.equals( ab1, ab2 ) )
+      {
+        mc = MicroCache.emptyCache(); // empty diff
+      }
+      else // calc diff of the 2 tiles
+      {
+        MicroCache mc1 = createMicroCache( ab1, buffers.dataBuffers );
+        MicroCache mc2 = createMicroCache( ab2, buffers.dataBuffers );
+        mc = new MicroCache2( mc1.getSize() + mc2.getSize(), buffers.abBuf2, 0, 0, 32 );
+        mc.calcDelta( mc1, mc2 );
+      }
+
+      if ( mc.getSize() == 0 )
+      {
+        dos.writeInt( 0 );
+      }
+      else
+      {
+        byte[] abBuf1 = buffers.abBuf1;
+        int len = mc.encodeMicroCache( abBuf1 );
+        dos.writeInt( len );
+        dos.write( abBuf1, 0, len );
+
+        bytesDiff += len;
+        nodesDiff += mc.getSize();
+        diffedTiles++;
+
+/*                 // do some consistemcy checks on the encoding
+
+             byte[] bytes = new byte[len];
+             System.arraycopy( abBuf1, 0, bytes, 0, len );
+             
+             // cross-check the encoding: decode again
+             MicroCache mcCheck = new MicroCache2( new StatCoderContext( bytes ), new DataBuffers( null ), 0, 0, 32, null, null );
+             
+             // due to link-order ambiguity, for decoded we can only compare node-count and datasize
+             if ( mc.size() != mcCheck.size() )
+             {
+               throw new IllegalArgumentException( "re-decoded data-size mismatch!" );
+             }
+             if ( mc.getSize() != mcCheck.getSize() )
+             {
+               throw new IllegalArgumentException( "re-decoded node-count mismatch!" );
+             }
+             
+             // .... so re-encode again
+             int len2 = mcCheck.encodeMicroCache( abBuf1 );
+             byte[] bytes2 = new byte[len2];
+             System.arraycopy( abBuf1, 0, bytes2, 0, len2 );
+             
+             // and here we can compare byte-by-byte
+             if ( len != len2 )
+             {
+               throw new IllegalArgumentException( "decoded size mismatch!" );
+             }
+             for( int i=0; i<len; i++ )
+             {
+               if ( bytes[i] != bytes2[i] )
+               {
+                 throw new IllegalArgumentException( "decoded data mismatch at i=" + i );
+               }
+             }
+         */
+      }
+    }
+
+    private void addTile( byte[] ab1, byte[] ab2, DataOutputStream dos, DiffBuffers buffers ) throws Exception
+    {
+      if ( ab2 == null )
+      {
+        return; // no target tile expected
+      }
+
+      // no-delta shortcut: just copy base data
+      if ( ab2.length == 0 )
+      {
+        if ( ab1 == null )
+        {
+          dos.writeInt( 0 );
+        }
+        else
+        {
+          dos.writeInt( ab1.length );
+          dos.write( ab1 );
+        }
+        return;
+      }
+
+      // this is the real delta case (using decode->add->encode )
+      MicroCache mc1 = createMicroCache( ab1, buffers.dataBuffers );
+      MicroCache mc2 = createMicroCache( ab2, buffers.dataBuffers );
+
+      MicroCache mc = new MicroCache2( mc1.getSize() + mc2.getSize(), buffers.abBuf2, 0, 0, 32 );
+      mc.addDelta( mc1, mc2, true );
+
+      byte[] abBuf1 = buffers.abBuf1;
+      int len = mc.encodeMicroCache( abBuf1 );
+
+      dos.writeInt( len+4 );
+      dos.write( abBuf1, 0, len );
+      dos.writeInt( Crc32.crc( abBuf1, 0, len ) ^ 2 );
+    }
+  }
+
 
   public static void recoverFromDelta( File f1, File f2, File outFile, ProgressListener progress /* , File cmpFile */ ) throws Exception
   {
@@ -520,11 +742,11 @@ final public class Rd5DiffTool implements ProgressListener
     }
   }
 
+  /**
+   * Add the delta f2 to the delta f1, the sub-files are processed in parallel
+   */
   public static void addDeltas( File f1, File f2, File outFile ) throws Exception
   {
-    byte[] abBuf1 = new byte[10 * 1024 * 1024];
-    byte[] abBuf2 = new byte[10 * 1024 * 1024];
-
     DataInputStream dis1 = new DataInputStream( new BufferedInputStream( new FileInputStream( f1 ) ) );
     DataInputStream dis2 = new DataInputStream( new BufferedInputStream( new FileInputStream( f2 ) ) );
     DataOutputStream dos = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( outFile ) ) );
@@ -537,63 +759,10 @@ final public class Rd5DiffTool implements ProgressListener
 
     try
     {
-      DataBuffers dataBuffers = new DataBuffers();
-      for ( int subFileIdx = 0; subFileIdx < 25; subFileIdx++ )
-      {
-         boolean hasData1 = getTileStart( fileIndex1, subFileIdx ) < getTileEnd( fileIndex1, subFileIdx );
-         boolean hasData2 = getTileStart( fileIndex2, subFileIdx ) < getTileEnd( fileIndex2, subFileIdx );
-
-         int[] posIdx1 = hasData1 ? readPosIndex( dis1, null ) : null;
-         int[] posIdx2 = hasData2 ? readPosIndex( dis2, dos ) : null;
-
-         for ( int tileIdx = 0; tileIdx < 1024; tileIdx++ )
-         {
-           byte[] ab1 = createMicroCache( posIdx1, tileIdx, dis1, true );
-           byte[] ab2 = createMicroCache( posIdx2, tileIdx, dis2, true );
-           if ( ab2 == null )
-           {
-             continue; // no target tile expected
-           }
-
-           // no-delta shortcut: just copy base data
-           if ( ab2.length == 0 )
-           {
-             if ( ab1 == null )
-             {
-               dos.writeInt( 0 );
-             }
-             else
-             {
-               dos.writeInt( ab1.length );
-               dos.write( ab1 );
-             }
-             continue;
-           }
-
-           // this is the real delta case (using decode->add->encode )
-           MicroCache mc1 = createMicroCache( ab1, dataBuffers );
-           MicroCache mc2 = createMicroCache( ab2, dataBuffers );
+      processSubFiles( dis1, dis2, dos, fileIndex1, fileIndex2, true );
 
-           MicroCache mc = new MicroCache2( mc1.getSize() + mc2.getSize(), abBuf2, 0, 0, 32 );
-           mc.addDelta( mc1, mc2, true );
-
-           int len = mc.encodeMicroCache( abBuf1 );
-
-           dos.writeInt( len+4 );
-           dos.write( abBuf1, 0, len );
-           dos.writeInt( Crc32.crc( abBuf1, 0, len ) ^ 2 );
-        }
-      }
       // write any remaining data to the output file
-      for(;;)
-      {
-        int len = dis2.read( abBuf1 );
-        if (len < 0)
-        {
-          break;
-        }
-        dos.write( abBuf1, 0, len );
-      }
+      copyRemaining( dis2, dos );
       long t1 = System.currentTimeMillis();
       System.out.println( "adding diffs took " + (t1-t0) + "ms" );
     }
@@ -1,8 +1,5 @@
 package btools.server;
 
-import java.io.BufferedOutputStream;
-import java.io.DataOutputStream;
-import java.io.FileOutputStream;
 import java.net.URLDecoder;
 import java.util.ArrayList;
 import java.util.List;
@@ -10,7 +7,6 @@ import java.util.List;
 import btools.router.OsmNodeNamed;
 import btools.router.RoutingContext;
 import btools.router.RoutingEngine;
-import btools.router.SearchBoundary;
 
 public class BRouter
 {
@@ -102,26 +98,15 @@ public class BRouter
     {
       int searchRadius = Integer.parseInt( args[4] ); // if = 0 search a 5x5 square
 
-      String filename = SearchBoundary.getFileName( wplist.get(0) );
-      DataOutputStream dos = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( "traffic/" + filename ) ) );
-
-      for( int direction = 0; direction < 8; direction++ )
+      // the 8 directions run in parallel, see TrafficSimulator
+      TrafficSimulator sim = new TrafficSimulator( args[0], args[5], searchRadius );
+      sim.addSeed( Double.parseDouble( args[1] ), Double.parseDouble( args[2] ) );
+      String errorMessage = sim.run();
+      if ( errorMessage != null )
       {
-        RoutingContext rc = readRoutingContext(args);
-        SearchBoundary boundary = new SearchBoundary( wplist.get(0), searchRadius, direction/2 );
-        rc.trafficOutputStream = dos;
-        rc.inverseDirection = (direction & 1 ) != 0;
-        re = new RoutingEngine( "mytrack", "mylog", args[0], wplist, rc );
-        re.boundary = boundary;
-        re.airDistanceCostFactor = rc.trafficDirectionFactor;
-        rc.countTraffic = true;
-        re.doSearch();
-        if ( re.getErrorMessage() != null )
-        {
-          break;
-        }
+        System.out.println( errorMessage );
       }
-      dos.close();
+      return;
     }
     else
     {
@@ -306,6 +306,13 @@ public class RouteServer extends Thread implements Comparable<RouteServer>
         
         ProfileCache.setSize( 2*maxthreads );
 
+        // optional background reload of changed profiles
+        long profileWatchInterval = Long.getLong( "profileWatchInterval", 0L ).longValue();
+        if ( profileWatchInterval > 0L )
+        {
+          ProfileCache.startWatching( profileWatchInterval );
+        }
+
         PriorityQueue<RouteServer> threadQueue = new PriorityQueue<RouteServer>();
 
         ServerSocket serverSocket = args.length > 5 ? new ServerSocket(Integer.parseInt(args[3]),100,InetAddress.getByName(args[5])) : new ServerSocket(Integer.parseInt(args[3]));
@@ -0,0 +1,264 @@
+package btools.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import btools.router.OsmNodeNamed;
+import btools.router.RoutingContext;
+import btools.router.RoutingEngine;
+import btools.router.SearchBoundary;
+
+/**
+ * Runs the traffic simulation for a set of seed points
+ *
+ * Every seed needs 8 seeded searches (4 directions, each forward
+ * and inverse). These all run in parallel (-DtrafficThreads=n,
+ * default: number of processors, limited by the heap as each search
+ * needs about 512 MB), each writing to a temp file,
+ * and are then merged, per seed in direction order, into the
+ * traffic/<tile>.trf files read by the OsmTrafficMap. Seeds in the
+ * same 5*5 tile go to the same file, where the traffic adds up.
+ *
+ * The heap is split among the searches, and the rd5 files are memory
+ * mapped (unless -DuseMemoryMappedFiles=false), so all searches share
+ * the same pages of the segment files.
+ *
+ * @author ab
+ */
+public final class TrafficSimulator
+{
+  private static final long BYTES_PER_SEARCH = 512L * 1024 * 1024;
+
+  private String segmentDir;
+  private String profile;
+  private int searchRadius;
+  private File trafficDir = new File( "traffic" );
+  private List<OsmNodeNamed> seeds = new ArrayList<OsmNodeNamed>();
+
+  public static void main( String[] args ) throws Exception
+  {
+    System.out.println( "*** TrafficSimulator: run the traffic simulation for all seeds in parallel" );
+    if ( args.length < 4 || ( args.length & 1 ) != 0 )
+    {
+      System.out.println( "usage: java TrafficSimulator <segmentdir> <profile> <lon> <lat> [<lon> <lat> ...]" );
+      return;
+    }
+    TrafficSimulator sim = new TrafficSimulator( args[0], args[1], 0 ); // search a 5x5 square
+    for( int i=2; i<args.length; i += 2 )
+    {
+      sim.addSeed( Double.parseDouble( args[i] ), Double.parseDouble( args[i+1] ) );
+    }
+    String errorMessage = sim.run();
+    if ( errorMessage != null )
+    {
+      System.out.println( errorMessage );
+    }
+  }
+
+  /**
+   * @param searchRadius the search radius in meters, 0 for a 5x5 square of tiles
+   */
+  public TrafficSimulator( String segmentDir, String profile, int searchRadius )
+  {
+    this.segmentDir = segmentDir;
+    this.profile = profile;
+    this.searchRadius = searchRadius;
+  }
+
+  public void addSeed( double lon, double lat )
+  {
+    OsmNodeNamed n = new OsmNodeNamed();
+    n.name = "seed";
+    n.ilon = (int)( ( lon + 180. ) *1000000. + 0.5);
+    n.ilat = (int)( ( lat +  90. ) *1000000. + 0.5);
+    seeds.add( n );
+  }
+
+  /**
+   * run all searches and write the traffic files
+   *
+   * @return the first error message, or null
+   */
+  public String run() throws Exception
+  {
+    long heapThreads = Runtime.getRuntime().maxMemory() / BYTES_PER_SEARCH;
+    int defaultThreads = (int)Math.max( 1L, Math.min( Math.min( Runtime.getRuntime().availableProcessors(), 8 * seeds.size() ), heapThreads ) );
+    int nThreads = Math.max( 1, Integer.getInteger( "trafficThreads", defaultThreads ).intValue() );
+    int memoryclass = (int)Math.max( 16L, Runtime.getRuntime().maxMemory() / 1024 / 1024 / nThreads );
+    if ( System.getProperty( "useMemoryMappedFiles" ) == null )
+    {
+      System.setProperty( "useMemoryMappedFiles", "true" );
+    }
+    trafficDir.mkdirs();
+
+    ExecutorService pool = Executors.newFixedThreadPool( nThreads );
+    Map<String,List<SeedSearch>> searchesByFile = new LinkedHashMap<String,List<SeedSearch>>();
+    List<SeedSearch> searches = new ArrayList<SeedSearch>();
+    try
+    {
+      for( OsmNodeNamed seed : seeds )
+      {
+        String filename = SearchBoundary.getFileName( seed );
+        List<SeedSearch> fileSearches = searchesByFile.get( filename );
+        if ( fileSearches == null )
+        {
+          fileSearches = new ArrayList<SeedSearch>();
+          searchesByFile.put( filename, fileSearches );
+        }
+        for( int direction = 0; direction < 8; direction++ )
+        {
+          SeedSearch s = new SeedSearch( seed, direction, memoryclass, new File( trafficDir, filename + "_" + searches.size() + ".tmp" ) );
+          s.result = pool.submit( s );
+          fileSearches.add( s );
+          searches.add( s );
+        }
+      }
+
+      // merge the outputs, stopping a seed at the first failed direction, like BRouter does
+      String firstError = null;
+      for( Map.Entry<String,List<SeedSearch>> e : searchesByFile.entrySet() )
+      {
+        OutputStream os = new BufferedOutputStream( new FileOutputStream( new File( trafficDir, e.getKey() ) ) );
+        try
+        {
+          OsmNodeNamed lastFailed = null;
+          for( SeedSearch s : e.getValue() )
+          {
+            String errorMessage = getResult( s );
+            if ( s.seed == lastFailed )
+            {
+              continue;
+            }
+            appendFile( s.tmpFile, os );
+            if ( errorMessage != null )
+            {
+              lastFailed = s.seed;
+              if ( firstError == null )
+              {
+                firstError = errorMessage;
+              }
+            }
+          }
+        }
+        finally
+        {
+          os.close();
+        }
+      }
+      return firstError;
+    }
+    finally
+    {
+      pool.shutdownNow();
+      for( SeedSearch s : searches )
+      {
+        s.tmpFile.delete();
+      }
+    }
+  }
+
+  private static String getResult( SeedSearch s ) throws Exception
+  {
+    try
+    {
+      return s.result.get();
+    }
+    catch( ExecutionException e )
+    {
+      Throwable cause = e.getCause();
+      if ( cause instanceof Error )
+      {
+        throw (Error)cause;
+      }
+      throw (Exception)cause;
+    }
+  }
+
+  private static void appendFile( File f, OutputStream os ) throws Exception
+  {
+    byte[] buf = new byte[65536];
+    InputStream is = new BufferedInputStream( new FileInputStream( f ) );
+    try
+    {
+      for(;;)
+      {
+        int n = is.read( buf );
+        if ( n < 0 )
+        {
+          break;
+        }
+        os.write( buf, 0, n );
+      }
+    }
+    finally
+    {
+      is.close();
+    }
+  }
+
+  private final class SeedSearch implements Callable<String>
+  {
+    OsmNodeNamed seed;
+    int direction;
+    int memoryclass;
+    File tmpFile;
+    Future<String> result;
+
+    SeedSearch( OsmNodeNamed seed, int direction, int memoryclass, File tmpFile )
+    {
+      this.seed = seed;
+      this.direction = direction;
+      this.memoryclass = memoryclass;
+      this.tmpFile = tmpFile;
+    }
+
+    @Override
+    public String call() throws Exception
+    {
+      // every search gets it's own copy of the seed
+      OsmNodeNamed wp = new OsmNodeNamed();
+      wp.name = seed.name;
+      wp.ilon = seed.ilon;
+      wp.ilat = seed.ilat;
+      List<OsmNodeNamed> wplist = new ArrayList<OsmNodeNamed>();
+      wplist.add( wp );
+
+      RoutingContext rc = new RoutingContext();
+      rc.localFunction = profile;
+      rc.memoryclass = memoryclass;
+
+      DataOutputStream dos = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmpFile ) ) );
+      try
+      {
+        SearchBoundary boundary = new SearchBoundary( wp, searchRadius, direction/2 );
+        rc.trafficOutputStream = dos;
+        rc.inverseDirection = (direction & 1 ) != 0;
+        RoutingEngine re = new RoutingEngine( "mytrack", "mylog", segmentDir, wplist, rc );
+        re.boundary = boundary;
+        re.airDistanceCostFactor = rc.trafficDirectionFactor;
+        rc.countTraffic = true;
+        re.doSearch();
+        return re.getErrorMessage();
+      }
+      finally
+      {
+        dos.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,107 @@
+package btools.server;
+
+import java.io.File;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import btools.codec.MicroCache;
+import btools.expressions.BExpressionContextNode;
+import btools.expressions.BExpressionContextWay;
+import btools.expressions.BExpressionMetaData;
+import btools.mapaccess.NodesCache;
+import btools.mapaccess.OsmLink;
+import btools.mapaccess.OsmNode;
+
+public class LazyWeavingTest
+{
+  @Test
+  public void linkOrderTest() throws Exception
+  {
+    URL resulturl = this.getClass().getResource( "/testtrack0.gpx" );
+    Assert.assertTrue( "reference result not found: ", resulturl != null );
+    String wd = new File( resulturl.getFile() ).getParentFile().getAbsolutePath();
+    String segmentDir = wd + "/../../../brouter-map-creator/target/test-classes/tmp/segments";
+    File profileDir = new File( wd, "../../../misc/profiles2" );
+
+    NodesCache directCache = new NodesCache( segmentDir, createWayContext( profileDir ), false, 1L << 30, null, true );
+    System.setProperty( "lazyDirectWeaving", "true" );
+    NodesCache lazyCache;
+    try
+    {
+      lazyCache = new NodesCache( segmentDir, createWayContext( profileDir ), false, 1L << 30, null, true );
+    }
+    finally
+    {
+      System.clearProperty( "lazyDirectWeaving" );
+    }
+
+    // load the sub-tiles of the test-map in random order
+    Random rand = new Random( 4711 );
+    List<int[]> positions = new ArrayList<int[]>();
+    for( int lat = 49970000; lat < 50040000; lat += 31250 )
+    {
+      for( int lon = 8660000; lon < 8780000; lon += 31250 )
+      {
+        positions.add( new int[] { 180000000 + lon, 90000000 + lat } );
+      }
+    }
+    Collections.shuffle( positions, rand );
+
+    List<OsmNode> directNodes = new ArrayList<OsmNode>();
+    List<OsmNode> lazyNodes = new ArrayList<OsmNode>();
+    for( int[] p : positions )
+    {
+      MicroCache mc = lazyCache.getSegmentFor( p[0], p[1] );
+      for( int i = 0; mc != null && i < mc.getSize(); i++ )
+      {
+        OsmNode template = new OsmNode( mc.getIdForIndex( i ) );
+        directNodes.add( directCache.getGraphNode( template ) );
+        lazyNodes.add( lazyCache.getGraphNode( template ) );
+      }
+      directCache.loadSegmentFor( p[0], p[1] );
+    }
+    Assert.assertTrue( "no nodes found", lazyNodes.size() > 100 );
+
+    // materialize the lazy nodes in random order
+    List<OsmNode> shuffled = new ArrayList<OsmNode>( lazyNodes );
+    Collections.shuffle( shuffled, rand );
+    for( OsmNode n : shuffled )
+    {
+      Assert.assertTrue( lazyCache.obtainNonHollowNode( n ) );
+    }
+
+    // the link order decides equal-cost ties in the search
+    for( int i = 0; i < lazyNodes.size(); i++ )
+    {
+      Assert.assertEquals( "links of " + lazyNodes.get( i ), formatLinks( directNodes.get( i ) ), formatLinks( lazyNodes.get( i ) ) );
+    }
+  }
+
+  private static BExpressionContextWay createWayContext( File profileDir )
+  {
+    BExpressionMetaData meta = new BExpressionMetaData();
+    BExpressionContextWay expctxWay = new BExpressionContextWay( meta );
+    BExpressionContextNode expctxNode = new BExpressionContextNode( 0, meta );
+    expctxNode.setForeignContext( expctxWay );
+    meta.readMetaData( new File( profileDir, "lookups.dat" ) );
+    expctxWay.parseFile( new File( profileDir, "trekking.brf" ), "global" );
+    expctxNode.parseFile( new File( profileDir, "trekking.brf" ), "global" );
+    return expctxWay;
+  }
+
+  private static String formatLinks( OsmNode n )
+  {
+    StringBuilder sb = new StringBuilder();
+    for( OsmLink l = n.firstlink; l != null; l = l.getNext( n ) )
+    {
+      sb.append( l.getTarget( n ) ).append( l.isReverse( n ) ? "<" : ">" ).append( ' ' );
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,59 @@
+package btools.server;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.net.URL;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import btools.mapaccess.Rd5DiffTool;
+
+public class Rd5DiffTest
+{
+  @Test
+  public void threadsTest() throws Exception
+  {
+    URL resulturl = this.getClass().getResource( "/testtrack0.gpx" );
+    Assert.assertTrue( "reference result not found: ", resulturl != null );
+    File workingDir = new File( resulturl.getFile() ).getParentFile();
+
+    // the map of the map-creator test and the one patched by the osc-updater test
+    File mapCreatorDir = new File( workingDir, "/../../../brouter-map-creator/target/test-classes/tmp" );
+    File f1 = new File( mapCreatorDir, "segments/E5_N50.rd5" );
+    File f2 = new File( mapCreatorDir, "oscupdater/full/segments/E5_N50.rd5" );
+    Assert.assertTrue( "map-creator output not found: " + f2, f1.exists() && f2.exists() );
+
+    File tmpdir = new File( workingDir, "tmp/rd5diff" );
+    tmpdir.mkdirs();
+    byte[] sequential = diff( f1, f2, new File( tmpdir, "diff1.df5" ), 1 );
+    byte[] parallel = diff( f1, f2, new File( tmpdir, "diff4.df5" ), 4 );
+    Assert.assertTrue( "empty diff", sequential.length > 0 );
+    Assert.assertArrayEquals( "diff with 4 threads", sequential, parallel );
+  }
+
+  private static byte[] diff( File f1, File f2, File outFile, int threads ) throws Exception
+  {
+    System.setProperty( "diffThreads", "" + threads );
+    try
+    {
+      Rd5DiffTool.diff2files( f1, f2, outFile );
+    }
+    finally
+    {
+      System.clearProperty( "diffThreads" );
+    }
+    byte[] ab = new byte[(int)outFile.length()];
+    DataInputStream dis = new DataInputStream( new FileInputStream( outFile ) );
+    try
+    {
+      dis.readFully( ab );
+    }
+    finally
+    {
+      dis.close();
+    }
+    return ab;
+  }
+}
@@ -1,13 +1,17 @@
 package btools.util;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 
 public class BitCoderContext
 {
   private byte[] ab;
+  private ByteBuffer bb; // alternative (read-only) data source
   private int idxMax;
   private int idx = -1;
   private int bits; // bits left in buffer
-  private int b; // buffer word
+  private long b; // buffer word
 
   public static final int[] vl_values = new int[4096];
   public static final int[] vl_length = new int[4096];
@@ -15,8 +19,6 @@ public class BitCoderContext
   private static final int[] vc_values = new int[4096];
   private static final int[] vc_length = new int[4096];
 
-  private static final int[] reverse_byte = new int[256];
-
   private static final int[] bm2bits = new int[256];
 
   static
@@ -39,7 +41,7 @@ public class BitCoderContext
       bc.reset();
       int b0 = bc.getWritingBitPosition();
       bc.encodeVarBits2( i );
-      vc_values[i] = bc.b;
+      vc_values[i] = (int)bc.b;
       vc_length[i] = bc.getWritingBitPosition() - b0;
     }
     for( int i=0; i<1024; i++ )
@@ -52,15 +54,6 @@ public class BitCoderContext
       vl_values[i] = bc.decodeVarBits2();
       vl_length[i] = bc.getReadingBitPosition() - b0;
     }
-    for( int b=0; b<256; b++ )
-    {
-      int r = 0;
-      for( int i=0; i<8; i++ )
-      {
-        if ( (b & (1<<i) ) != 0 ) r |= 1 << (7-i);
-      }
-      reverse_byte[b] = r;
-    }
     for( int b=0; b<8; b++ )
     {
       bm2bits[1<<b] = b;
@@ -74,13 +67,33 @@ public class BitCoderContext
     idxMax = ab.length-1;
   }
 
+  /**
+   * Create a (decode-only) context reading the bytes from
+   * position to limit of the given buffer, which can be a heap,
+   * a direct or a memory-mapped buffer. The buffer's position and
+   * limit are not modified.
+   */
+  public BitCoderContext( ByteBuffer bb )
+  {
+    reset( bb );
+  }
+
   public final void reset( byte[] ab )
   {
     this.ab = ab;
+    bb = null;
     idxMax = ab.length-1;
     reset();
   }
 
+  public final void reset( ByteBuffer buffer )
+  {
+    ab = null;
+    bb = buffer.slice().order( ByteOrder.LITTLE_ENDIAN );
+    idxMax = bb.limit()-1;
+    reset();
+  }
+
   public final void reset()
   {
     idx = -1;
@@ -116,7 +129,7 @@ public class BitCoderContext
     if ( (value & 0xfff) == value )
     {
       flushBuffer();
-      b |= vc_values[value] << bits;
+      b |= ((long)vc_values[value]) << bits;
       bits += vc_length[value];      
     }
     else
@@ -138,44 +151,28 @@ public class BitCoderContext
     return range + decodeBounded( range );
   }
 
+  /**
+   * decode a variable length number, see {@link #encodeVarBits2}
+   *
+   * This works on the 64-bit buffer word: the length of the
+   * zero-prefix is found by counting trailing zeros (the
+   * bitstream is LSB-first), and the value bits are
+   * extracted with a single mask.
+   */
   public final int decodeVarBits()
   {
     fillBuffer();
-    int b12 = b & 0xfff;
-    int len = vl_length[b12];
-    if ( len <= 12 )
+    int zeros = Long.numberOfTrailingZeros( b );
+    int len = 2*zeros + 1;
+    if ( len <= bits )
     {
+      int range = ( 1 << zeros ) - 1;
+      int value = range + ( (int)( b >>> ( zeros + 1 ) ) & range );
       b >>>= len;
       bits -= len;
-      return vl_values[b12]; // full value lookup
+      return value;
     }
-    if ( len <= 23 ) // // only length lookup
-    {
-      int len2 = len >> 1;
-      b >>>= (len2+1);
-      int mask = 0xffffffff >>> ( 32 - len2 );
-      mask += b & mask;
-      b >>>= len2;
-      bits -= len;
-      return mask;
-    }
-    if ( (b & 0xffffff) != 0 )
-    {
-      // here we just know len in [25..47]
-      // ( fillBuffer guarantees only 24 bits! )
-      b >>>= 12;
-      int len3 = 1 + (vl_length[b & 0xfff]>>1);
-      b >>>= len3;
-      int len2 = 11 + len3;
-      bits -= len2+1;
-      fillBuffer();
-      int mask = 0xffffffff >>> ( 32 - len2 );
-      mask += b & mask;
-      b >>>= len2;
-      bits -= len2;
-      return mask;
-    }
-    return decodeVarBits2(); // no chance, use the slow one
+    return decodeVarBits2(); // code longer than the buffer, use the slow one
   }
 
 
@@ -189,7 +186,7 @@ public class BitCoderContext
     }
     if ( value )
     {
-      b |= 1 << bits;
+      b |= 1L << bits;
     }
     bits++;
   }
@@ -198,8 +195,15 @@ public class BitCoderContext
   {
     if ( bits == 0 )
     {
-      bits = 8;
-      b = ab[++idx] & 0xff;
+      if ( idx + 8 <= idxMax )
+      {
+        fillBuffer();
+      }
+      else // no zero-padding for single bits at the end of data
+      {
+        bits = 8;
+        b = byteAt( ++idx );
+      }
     }
     boolean value = ( ( b & 1 ) != 0 );
     b >>>= 1;
@@ -237,21 +241,29 @@ public class BitCoderContext
    */
   public final int decodeBounded( int max )
   {
+    fillBuffer();
+    if ( ( max & ( max + 1 ) ) == 0 ) // max = 2^n-1: plain n-bit word
+    {
+      int n = 32 - Integer.numberOfLeadingZeros( max );
+      int value = (int)b & max;
+      b >>>= n;
+      bits -= n;
+      return value;
+    }
     int value = 0;
     int im = 1; // integer mask
+    long w = b;
+    int n = 0;
     while (( value | im ) <= max)
     {
-      if ( bits == 0 )
-      {
-        bits = 8;
-        b = ab[++idx] & 0xff;
-      }
-      if ( ( b & 1 ) != 0 )
+      if ( ( w & 1 ) != 0 )
         value |= im;
-      b >>>= 1;
-      bits--;
+      w >>>= 1;
+      n++;
       im <<= 1;
     }
+    b = w;
+    bits -= n;
     return value;
   }
 
@@ -259,7 +271,7 @@ public class BitCoderContext
   {
     fillBuffer();
     int mask = 0xffffffff >>> ( 32 - count );
-    int value = b & mask;
+    int value = (int)b & mask;
     b >>>= count;
     bits -= count;
     return value;
@@ -268,33 +280,62 @@ public class BitCoderContext
   public final int decodeBitsReverse( int count )
   {
     fillBuffer();
-    int value = 0;
-    while( count > 8 )
-    {
-      value = (value << 8) | reverse_byte[ b & 0xff ];
-      b >>=8;
-      count -=8;
-      bits -=8;
-      fillBuffer();
-    }
-    value = (value << count) | reverse_byte[ b & 0xff ] >> (8-count);
+    int value = Integer.reverse( (int)b ) >>> ( 32 - count );
     bits -= count;
-    b >>= count;
+    b >>>= count;
     return value;
   }
 
+  /**
+   * make sure the buffer word holds at least 32 bits
+   * (zero-padded at the end of data). If at least 8 bytes are
+   * left, it's refilled with a 64-bit word at once
+   */
   private void fillBuffer()
   {
-    while (bits < 24)
+    if ( bits >= 32 )
+    {
+      return;
+    }
+    if ( idx + 8 <= idxMax )
+    {
+      // bulk refill: load as many whole bytes as fit into the 64-bit buffer
+      int n = ( 63 - bits ) >> 3;
+      long w = bb != null ? bb.getLong( idx + 1 ) : longAt( idx + 1 );
+      b |= ( w & ( 0xffffffffffffffffL >>> ( 64 - ( n << 3 ) ) ) ) << bits;
+      idx += n;
+      bits += n << 3;
+      return;
+    }
+    while (bits < 32)
     {
       if ( idx++ < idxMax )
       {
-        b |= (ab[idx] & 0xff) << bits;
+        b |= ((long)byteAt( idx )) << bits;
       }
       bits += 8;
     }
   }
 
+  // little-endian 64-bit word from the byte-array
+  private long longAt( int i )
+  {
+    byte[] a = ab;
+    return ( a[i] & 0xffL )
+         | ( a[i+1] & 0xffL ) << 8
+         | ( a[i+2] & 0xffL ) << 16
+         | ( a[i+3] & 0xffL ) << 24
+         | ( a[i+4] & 0xffL ) << 32
+         | ( a[i+5] & 0xffL ) << 40
+         | ( a[i+6] & 0xffL ) << 48
+         | ( a[i+7] & 0xffL ) << 56;
+  }
+
+  private int byteAt( int i )
+  {
+    return ab != null ? ab[i] & 0xff : bb.get( i ) & 0xff;
+  }
+
   private void flushBuffer()
   {
     while (bits > 7)
@@ -337,7 +378,7 @@ public class BitCoderContext
   {
     idx = pos >>> 3;
     bits = (idx << 3) + 8 - pos;
-    b = ab[idx] & 0xff;
+    b = byteAt( idx );
     b >>>= (8-bits);
   }
 
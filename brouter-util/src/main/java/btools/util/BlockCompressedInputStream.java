@@ -0,0 +1,163 @@
+package btools.util;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * InputStream for the block-framed format written
+ * by BlockCompressedOutputStream, read sequentially
+ *
+ * @author ab
+ */
+public final class BlockCompressedInputStream extends InputStream
+{
+  private DataInputStream is;
+  private Inflater inflater = new Inflater();
+  private byte[] block;
+  private int blockFill;
+  private int blockPos;
+  private byte[] compressed;
+  private boolean eof;
+
+  public BlockCompressedInputStream( InputStream is ) throws IOException
+  {
+    this.is = new DataInputStream( is );
+    byte[] magic = new byte[BlockCompressedOutputStream.MAGIC.length];
+    this.is.readFully( magic );
+    if ( !isMagic( magic ) )
+    {
+      throw new IOException( "not a block compressed stream" );
+    }
+    int blockSize = this.is.readInt();
+    block = new byte[blockSize];
+    compressed = new byte[blockSize];
+  }
+
+  public static BlockCompressedInputStream open( File f ) throws IOException
+  {
+    return new BlockCompressedInputStream( new BufferedInputStream( new FileInputStream( f ) ) );
+  }
+
+  /**
+   * @return true if the file starts with the header of the block format
+   */
+  public static boolean isBlockCompressed( File f ) throws IOException
+  {
+    byte[] magic = new byte[BlockCompressedOutputStream.MAGIC.length];
+    DataInputStream dis = new DataInputStream( new FileInputStream( f ) );
+    try
+    {
+      dis.readFully( magic );
+    }
+    catch( EOFException e )
+    {
+      return false;
+    }
+    finally
+    {
+      dis.close();
+    }
+    return isMagic( magic );
+  }
+
+  private static boolean isMagic( byte[] magic )
+  {
+    for( int i=0; i<magic.length; i++ )
+    {
+      if ( magic[i] != BlockCompressedOutputStream.MAGIC[i] )
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public int read() throws IOException
+  {
+    if ( blockPos == blockFill && !readBlock() )
+    {
+      return -1;
+    }
+    return block[blockPos++] & 0xff;
+  }
+
+  @Override
+  public int read( byte[] b, int off, int len ) throws IOException
+  {
+    if ( len == 0 )
+    {
+      return 0;
+    }
+    if ( blockPos == blockFill && !readBlock() )
+    {
+      return -1;
+    }
+    int n = Math.min( len, blockFill - blockPos );
+    System.arraycopy( block, blockPos, b, off, n );
+    blockPos += n;
+    return n;
+  }
+
+  @Override
+  public int available() throws IOException
+  {
+    return blockFill - blockPos;
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    inflater.end();
+    is.close();
+  }
+
+  private boolean readBlock() throws IOException
+  {
+    if ( eof )
+    {
+      return false;
+    }
+    int rawLen = is.readInt();
+    if ( rawLen == 0 ) // end marker
+    {
+      eof = true;
+      return false;
+    }
+    int clen = is.readInt();
+    if ( clen > compressed.length )
+    {
+      compressed = new byte[clen];
+    }
+    is.readFully( compressed, 0, clen );
+
+    inflater.reset();
+    inflater.setInput( compressed, 0, clen );
+    try
+    {
+      blockFill = 0;
+      while( blockFill < rawLen )
+      {
+        int n = inflater.inflate( block, blockFill, rawLen - blockFill );
+        if ( n == 0 && ( inflater.finished() || inflater.needsInput() ) )
+        {
+          throw new IOException( "incomplete block" );
+        }
+        blockFill += n;
+      }
+    }
+    catch( DataFormatException e )
+    {
+      throw new IOException( "corrupt block: " + e.getMessage() );
+    }
+    blockPos = 0;
+    return true;
+  }
+}
@@ -0,0 +1,121 @@
+package btools.util;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+/**
+ * OutputStream writing a block-framed, deflate compressed format:
+ *
+ * - a header (magic + block size)
+ * - fixed size blocks, each compressed on it's own: raw length, compressed length, data
+ * - an end marker (raw length 0)
+ *
+ * The format is read sequentially, see BlockCompressedInputStream:
+ * blocks are cut at arbitrary byte positions, so a block does not
+ * start at a record boundary (and a diff coder's state runs across blocks)
+ *
+ * @author ab
+ */
+public final class BlockCompressedOutputStream extends OutputStream
+{
+  static final byte[] MAGIC = { 'B', 'R', 'B', 'L', 'O', 'C', 'K', '1' };
+  static final int DEFAULT_BLOCKSIZE = 65536;
+
+  private DataOutputStream os;
+  private Deflater deflater = new Deflater( Deflater.BEST_SPEED );
+  private byte[] block;
+  private int blockFill;
+  private byte[] compressed;
+
+  public BlockCompressedOutputStream( OutputStream os ) throws IOException
+  {
+    this( os, DEFAULT_BLOCKSIZE );
+  }
+
+  public BlockCompressedOutputStream( OutputStream os, int blockSize ) throws IOException
+  {
+    this.os = new DataOutputStream( os );
+    block = new byte[blockSize];
+    compressed = new byte[blockSize + blockSize / 16 + 64];
+    this.os.write( MAGIC );
+    this.os.writeInt( blockSize );
+  }
+
+  @Override
+  public void write( int b ) throws IOException
+  {
+    if ( blockFill == block.length )
+    {
+      writeBlock();
+    }
+    block[blockFill++] = (byte)b;
+  }
+
+  @Override
+  public void write( byte[] b, int off, int len ) throws IOException
+  {
+    while( len > 0 )
+    {
+      if ( blockFill == block.length )
+      {
+        writeBlock();
+      }
+      int n = Math.min( len, block.length - blockFill );
+      System.arraycopy( b, off, block, blockFill, n );
+      blockFill += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  /**
+   * flushes the current (partial) block
+   */
+  @Override
+  public void flush() throws IOException
+  {
+    if ( blockFill > 0 )
+    {
+      writeBlock();
+    }
+    os.flush();
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    if ( blockFill > 0 )
+    {
+      writeBlock();
+    }
+    deflater.end();
+
+    os.writeInt( 0 ); // end marker
+    os.close();
+  }
+
+  private void writeBlock() throws IOException
+  {
+    deflater.reset();
+    deflater.setInput( block, 0, blockFill );
+    deflater.finish();
+    int clen = 0;
+    while( !deflater.finished() )
+    {
+      if ( clen == compressed.length )
+      {
+        byte[] newCompressed = new byte[compressed.length * 2];
+        System.arraycopy( compressed, 0, newCompressed, 0, clen );
+        compressed = newCompressed;
+      }
+      clen += deflater.deflate( compressed, clen, compressed.length - clen );
+    }
+
+    os.writeInt( blockFill );
+    os.writeInt( clen );
+    os.write( compressed, 0, clen );
+    blockFill = 0;
+  }
+}
@@ -0,0 +1,374 @@
+package btools.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Disk-backed merge sort for (key,value) pairs of longs
+ *
+ * Pairs are collected in memory up to the chunk size, then
+ * sorted and written to a run file. After finish(), the pairs
+ * are read back in (key,value) order by merging the runs,
+ * so the memory usage does not depend on the number of pairs.
+ *
+ * @author ab
+ */
+public final class ExternalLongSorter
+{
+  private static final int MAX_MERGE_RUNS = 128;
+
+  private File tmpDir;
+  private int chunkSize;
+
+  private long[] keys = new long[1024];
+  private long[] values = new long[1024];
+  private int size;
+  private long count;
+
+  private List<File> runs = new ArrayList<File>();
+  private List<File> openFiles;
+
+  // merge state
+  private DiffCoderDataInputStream[] inputs;
+  private long[] headKeys;
+  private long[] headValues;
+  private int[] heap;
+  private int heapSize;
+  private int pos = -1; // position in the in-memory chunk if there are no runs
+
+  private long key;
+  private long value;
+
+  /**
+   * @param tmpDir the directory for the run files
+   * @param chunkSize the maximum number of pairs kept in memory
+   */
+  public ExternalLongSorter( File tmpDir, int chunkSize )
+  {
+    this.tmpDir = tmpDir;
+    this.chunkSize = Math.max( 2, chunkSize );
+  }
+
+  public void add( long k, long v ) throws IOException
+  {
+    if ( pos >= 0 || inputs != null )
+    {
+      throw new IllegalStateException( "add after finish" );
+    }
+    if ( size == keys.length )
+    {
+      if ( size >= chunkSize )
+      {
+        writeRun();
+      }
+      else
+      {
+        int newSize = (int)Math.min( (long)chunkSize, 2L * size );
+        long[] newKeys = new long[newSize];
+        long[] newValues = new long[newSize];
+        System.arraycopy( keys, 0, newKeys, 0, size );
+        System.arraycopy( values, 0, newValues, 0, size );
+        keys = newKeys;
+        values = newValues;
+      }
+    }
+    keys[size] = k;
+    values[size] = v;
+    size++;
+    count++;
+  }
+
+  /**
+   * @return the number of pairs added
+   */
+  public long size()
+  {
+    return count;
+  }
+
+  /**
+   * stop adding pairs and prepare for reading them in sorted order
+   */
+  public void finish() throws IOException
+  {
+    if ( runs.isEmpty() )
+    {
+      // everything fits into memory
+      sort( 0, size - 1 );
+      pos = 0;
+      return;
+    }
+    if ( size > 0 )
+    {
+      writeRun();
+    }
+    keys = null;
+    values = null;
+
+    // reduce the number of runs to keep the open files limited
+    while( runs.size() > MAX_MERGE_RUNS )
+    {
+      List<File> merged = new ArrayList<File>();
+      for( int i=0; i<runs.size(); i += MAX_MERGE_RUNS )
+      {
+        openRuns( runs.subList( i, Math.min( runs.size(), i + MAX_MERGE_RUNS ) ) );
+        File f = createRunFile();
+        DiffCoderDataOutputStream dos = new DiffCoderDataOutputStream( new BufferedOutputStream( new FileOutputStream( f ) ) );
+        while( next() )
+        {
+          dos.writeDiffed( key, 0 );
+          dos.writeDiffed( value, 1 );
+        }
+        dos.close();
+        closeRuns();
+        merged.add( f );
+      }
+      runs = merged;
+    }
+    openRuns( runs );
+  }
+
+  /**
+   * advance to the next pair
+   *
+   * @return false if there are no more pairs
+   */
+  public boolean next() throws IOException
+  {
+    if ( pos >= 0 )
+    {
+      if ( pos == size )
+      {
+        return false;
+      }
+      key = keys[pos];
+      value = values[pos];
+      pos++;
+      return true;
+    }
+    if ( inputs == null )
+    {
+      throw new IllegalStateException( "next before finish" );
+    }
+    if ( heapSize == 0 )
+    {
+      return false;
+    }
+    int r = heap[0];
+    key = headKeys[r];
+    value = headValues[r];
+    if ( readHead( r ) )
+    {
+      siftDown( 0 );
+    }
+    else
+    {
+      heap[0] = heap[--heapSize];
+      siftDown( 0 );
+    }
+    return true;
+  }
+
+  public long getKey()
+  {
+    return key;
+  }
+
+  public long getValue()
+  {
+    return value;
+  }
+
+  /**
+   * release the memory and delete the run files
+   */
+  public void close() throws IOException
+  {
+    closeRuns();
+    for( File f : runs )
+    {
+      f.delete();
+    }
+    keys = null;
+    values = null;
+  }
+
+  private void writeRun() throws IOException
+  {
+    sort( 0, size - 1 );
+    File f = createRunFile();
+    DiffCoderDataOutputStream dos = new DiffCoderDataOutputStream( new BufferedOutputStream( new FileOutputStream( f ) ) );
+    for( int i=0; i<size; i++ )
+    {
+      dos.writeDiffed( keys[i], 0 );
+      dos.writeDiffed( values[i], 1 );
+    }
+    dos.close();
+    runs.add( f );
+    size = 0;
+  }
+
+  private File createRunFile() throws IOException
+  {
+    File f = File.createTempFile( "sortrun", ".tmp", tmpDir );
+    f.deleteOnExit();
+    return f;
+  }
+
+  private void openRuns( List<File> files ) throws IOException
+  {
+    int n = files.size();
+    inputs = new DiffCoderDataInputStream[n];
+    headKeys = new long[n];
+    headValues = new long[n];
+    heap = new int[n];
+    heapSize = 0;
+    for( int r=0; r<n; r++ )
+    {
+      File f = files.get( r );
+      inputs[r] = new DiffCoderDataInputStream( new BufferedInputStream( new FileInputStream( f ) ) );
+      if ( readHead( r ) )
+      {
+        heap[heapSize++] = r;
+      }
+    }
+    for( int i=heapSize/2 - 1; i>=0; i-- )
+    {
+      siftDown( i );
+    }
+    openFiles = new ArrayList<File>( files );
+  }
+
+  private void closeRuns() throws IOException
+  {
+    if ( inputs != null )
+    {
+      for( int r=0; r<inputs.length; r++ )
+      {
+        if ( inputs[r] != null )
+        {
+          inputs[r].close();
+        }
+      }
+      inputs = null;
+    }
+    if ( openFiles != null )
+    {
+      for( File f : openFiles )
+      {
+        f.delete();
+      }
+      openFiles = null;
+    }
+  }
+
+  private boolean readHead( int r ) throws IOException
+  {
+    try
+    {
+      headKeys[r] = inputs[r].readDiffed( 0 );
+      headValues[r] = inputs[r].readDiffed( 1 );
+      return true;
+    }
+    catch( EOFException e )
+    {
+      inputs[r].close();
+      inputs[r] = null;
+      return false;
+    }
+  }
+
+  private boolean headLess( int r1, int r2 )
+  {
+    return headKeys[r1] < headKeys[r2] || ( headKeys[r1] == headKeys[r2] && headValues[r1] < headValues[r2] );
+  }
+
+  private void siftDown( int i )
+  {
+    for(;;)
+    {
+      int child = 2*i + 1;
+      if ( child >= heapSize )
+      {
+        break;
+      }
+      if ( child + 1 < heapSize && headLess( heap[child+1], heap[child] ) )
+      {
+        child++;
+      }
+      if ( !headLess( heap[child], heap[i] ) )
+      {
+        break;
+      }
+      int h = heap[i];
+      heap[i] = heap[child];
+      heap[child] = h;
+      i = child;
+    }
+  }
+
+  // quicksort on the (key,value) arrays
+  private void sort( int lo, int hi )
+  {
+    while( hi - lo > 16 )
+    {
+      int mid = ( lo + hi ) >>> 1;
+      if ( less( mid, lo ) ) swap( mid, lo );
+      if ( less( hi, lo ) ) swap( hi, lo );
+      if ( less( hi, mid ) ) swap( hi, mid );
+      long pk = keys[mid];
+      long pv = values[mid];
+      int i = lo;
+      int j = hi;
+      while( i <= j )
+      {
+        while( keys[i] < pk || ( keys[i] == pk && values[i] < pv ) ) i++;
+        while( keys[j] > pk || ( keys[j] == pk && values[j] > pv ) ) j--;
+        if ( i <= j )
+        {
+          swap( i++, j-- );
+        }
+      }
+      // recurse into the smaller part to limit the stack depth
+      if ( j - lo < hi - i )
+      {
+        sort( lo, j );
+        lo = i;
+      }
+      else
+      {
+        sort( i, hi );
+        hi = j;
+      }
+    }
+    for( int i=lo+1; i<=hi; i++ )
+    {
+      for( int j=i; j>lo && less( j, j-1 ); j-- )
+      {
+        swap( j, j-1 );
+      }
+    }
+  }
+
+  private boolean less( int i, int j )
+  {
+    return keys[i] < keys[j] || ( keys[i] == keys[j] && values[i] < values[j] );
+  }
+
+  private void swap( int i, int j )
+  {
+    long k = keys[i];
+    keys[i] = keys[j];
+    keys[j] = k;
+    long v = values[i];
+    values[i] = values[j];
+    values[j] = v;
+  }
+}
@@ -0,0 +1,140 @@
+package btools.util;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from a pair of long keys
+ * to an int value, using primitive arrays only
+ *
+ * Target application are node pairs (e.g. traffic per link),
+ * where a map of chained objects would need several times
+ * the memory. Long.MIN_VALUE is reserved as first key.
+ *
+ * @author ab
+ */
+public final class LongPairIntMap
+{
+  private static final long FREE = Long.MIN_VALUE;
+
+  private long[] keys1;
+  private long[] keys2;
+  private int[] values;
+  private int mask;
+  private int size;
+  private int growLimit;
+
+  public LongPairIntMap()
+  {
+    this( 16 );
+  }
+
+  /**
+   * @param expectedSize the number of entries to allocate space for
+   */
+  public LongPairIntMap( int expectedSize )
+  {
+    int capacity = 16;
+    while( capacity < Integer.MAX_VALUE / 4 && capacity * 3L < expectedSize * 4L )
+    {
+      capacity <<= 1;
+    }
+    allocate( capacity );
+  }
+
+  /**
+   * @return the value for the given key pair, or notFound if not contained
+   */
+  public int get( long k1, long k2, int notFound )
+  {
+    int i = indexOf( k1, k2 );
+    return keys1[i] == FREE ? notFound : values[i];
+  }
+
+  public boolean contains( long k1, long k2 )
+  {
+    return keys1[indexOf( k1, k2 )] != FREE;
+  }
+
+  /**
+   * put a value, replacing an existing one
+   *
+   * @return true if the key pair was not contained before
+   */
+  public boolean put( long k1, long k2, int value )
+  {
+    if ( k1 == FREE )
+    {
+      throw new IllegalArgumentException( "key reserved: " + k1 );
+    }
+    int i = indexOf( k1, k2 );
+    values[i] = value;
+    if ( keys1[i] != FREE )
+    {
+      return false;
+    }
+    keys1[i] = k1;
+    keys2[i] = k2;
+    if ( ++size > growLimit )
+    {
+      grow();
+    }
+    return true;
+  }
+
+  public int size()
+  {
+    return size;
+  }
+
+  // linear probing: the slot of the key pair, or the free slot to insert it
+  private int indexOf( long k1, long k2 )
+  {
+    int i = hash( k1, k2 ) & mask;
+    for(;;)
+    {
+      long k = keys1[i];
+      if ( k == FREE || ( k == k1 && keys2[i] == k2 ) )
+      {
+        return i;
+      }
+      i = ( i + 1 ) & mask;
+    }
+  }
+
+  private static int hash( long k1, long k2 )
+  {
+    long h = k1 * 0x9e3779b97f4a7c15L + k2;
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    return (int)h;
+  }
+
+  private void allocate( int capacity )
+  {
+    keys1 = new long[capacity];
+    keys2 = new long[capacity];
+    values = new int[capacity];
+    Arrays.fill( keys1, FREE );
+    mask = capacity - 1;
+    growLimit = (int)( capacity * 3L / 4 );
+  }
+
+  private void grow()
+  {
+    long[] oldKeys1 = keys1;
+    long[] oldKeys2 = keys2;
+    int[] oldValues = values;
+    allocate( oldKeys1.length * 2 );
+    for( int j=0; j<oldKeys1.length; j++ )
+    {
+      if ( oldKeys1[j] != FREE )
+      {
+        int i = indexOf( oldKeys1[j], oldKeys2[j] );
+        keys1[i] = oldKeys1[j];
+        keys2[i] = oldKeys2[j];
+        values[i] = oldValues[j];
+      }
+    }
+  }
+}
@@ -0,0 +1,170 @@
+package btools.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Off-heap store for node positions (lon, lat, elevation),
+ * keyed by the osm node id.
+ *
+ * The store is a dense array of fixed-size records in a
+ * memory mapped file, so it costs no heap and can be
+ * re-opened by a later stage (or process). The file is
+ * mapped in segments on demand, and unused ranges of the
+ * key space stay sparse on filesystems supporting that.
+ *
+ * Like DenseLongMap, the target are osm-node ids, which are
+ * basically dense. get/put of different keys are thread-safe.
+ *
+ * @author ab
+ */
+public final class NodePositionStore
+{
+  private static final int RECORD_SIZE = 10; // lon+1, lat, elevation
+
+  private RandomAccessFile raf;
+  private FileChannel channel;
+  private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0]; // copy-on-write
+  private int segmentBits;
+  private long segmentMask;
+
+  /**
+   * Opens (or creates) a store with the default segment
+   * size of 16M keys (160 MB mapped per segment)
+   */
+  public NodePositionStore( File file ) throws IOException
+  {
+    this( file, 24, false );
+  }
+
+  public NodePositionStore( File file, int segmentBits ) throws IOException
+  {
+    this( file, segmentBits, false );
+  }
+
+  /**
+   * @param segmentBits number of key-bits per mapped segment (10..27)
+   * @param create true to start with an empty store, truncating an existing file
+   */
+  public NodePositionStore( File file, int segmentBits, boolean create ) throws IOException
+  {
+    if ( segmentBits < 10 || segmentBits > 27 )
+    {
+      throw new IllegalArgumentException( "segmentBits out of range (10..27): " + segmentBits );
+    }
+    this.segmentBits = segmentBits;
+    segmentMask = ( 1L << segmentBits ) - 1;
+    raf = new RandomAccessFile( file, "rw" );
+    if ( create )
+    {
+      raf.setLength( 0L ); // positions of a previous run must not survive
+    }
+    channel = raf.getChannel();
+  }
+
+  public void put( long id, int ilon, int ilat, short selev ) throws IOException
+  {
+    MappedByteBuffer seg = getSegment( id, true );
+    int offset = offsetFor( id );
+    seg.putInt( offset, ilon + 1 ); // 0 = unset
+    seg.putInt( offset + 4, ilat );
+    seg.putShort( offset + 8, selev );
+  }
+
+  public void remove( long id ) throws IOException
+  {
+    MappedByteBuffer seg = getSegment( id, false );
+    if ( seg != null )
+    {
+      seg.putInt( offsetFor( id ), 0 );
+    }
+  }
+
+  public boolean contains( long id ) throws IOException
+  {
+    MappedByteBuffer seg = getSegment( id, false );
+    return seg != null && seg.getInt( offsetFor( id ) ) != 0;
+  }
+
+  /**
+   * @return the longitude, or -1 if the id is not known
+   */
+  public int getILon( long id ) throws IOException
+  {
+    MappedByteBuffer seg = getSegment( id, false );
+    return seg == null ? -1 : seg.getInt( offsetFor( id ) ) - 1;
+  }
+
+  public int getILat( long id ) throws IOException
+  {
+    MappedByteBuffer seg = getSegment( id, false );
+    return seg == null ? -1 : seg.getInt( offsetFor( id ) + 4 );
+  }
+
+  public short getSElev( long id ) throws IOException
+  {
+    MappedByteBuffer seg = getSegment( id, false );
+    return seg == null ? Short.MIN_VALUE : seg.getShort( offsetFor( id ) + 8 );
+  }
+
+  /**
+   * Writes the mapped segments to the file and closes it. Note that
+   * the mappings itself are released not before garbage collection.
+   */
+  public synchronized void close() throws IOException
+  {
+    for( MappedByteBuffer seg : segments )
+    {
+      if ( seg != null )
+      {
+        seg.force();
+      }
+    }
+    segments = new MappedByteBuffer[0];
+    channel.close();
+    raf.close();
+  }
+
+  private int offsetFor( long id )
+  {
+    return (int)( id & segmentMask ) * RECORD_SIZE;
+  }
+
+  private MappedByteBuffer getSegment( long id, boolean create ) throws IOException
+  {
+    if ( id < 0 )
+    {
+      throw new IllegalArgumentException( "negative id: " + id );
+    }
+    int segn = (int)( id >> segmentBits );
+    MappedByteBuffer[] segs = segments;
+    MappedByteBuffer seg = segn < segs.length ? segs[segn] : null;
+    return seg != null ? seg : mapSegment( segn, create );
+  }
+
+  private synchronized MappedByteBuffer mapSegment( int segn, boolean create ) throws IOException
+  {
+    MappedByteBuffer[] segs = segments;
+    MappedByteBuffer seg = segn < segs.length ? segs[segn] : null;
+    if ( seg == null )
+    {
+      long segSize = ( 1L << segmentBits ) * RECORD_SIZE;
+      long segStart = segn * segSize;
+
+      // a reader only maps what is already in the file
+      if ( !create && channel.size() < segStart + segSize )
+      {
+        return null;
+      }
+      seg = channel.map( FileChannel.MapMode.READ_WRITE, segStart, segSize );
+      MappedByteBuffer[] newSegs = new MappedByteBuffer[Math.max( segs.length, segn + 1 )];
+      System.arraycopy( segs, 0, newSegs, 0, segs.length );
+      newSegs[segn] = seg;
+      segments = newSegs;
+    }
+    return seg;
+  }
+}
@@ -1,5 +1,8 @@
 package btools.util;
 
+import java.nio.ByteBuffer;
+import java.util.Random;
+
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -62,4 +65,123 @@ public class BitCoderContextTest
       }
     }
   }
+
+  @Test
+  public void byteBufferDecodeTest()
+  {
+    byte[] ab = new byte[200000];
+    BitCoderContext ctx = new BitCoderContext( ab );
+    for ( int i = 0; i < 100000; i+=13 )
+    {
+      ctx.encodeVarBits( i );
+      ctx.encodeBounded( i & 1023, i % ( (i & 1023) + 1 ) );
+      ctx.encodeBit( (i & 4) != 0 );
+    }
+    int len = ctx.closeAndGetEncodedLength();
+
+    // embed the encoded data at some odd offset of a heap- and a direct buffer
+    int offset = 17;
+    ByteBuffer heap = ByteBuffer.allocate( len + 2*offset );
+    ByteBuffer direct = ByteBuffer.allocateDirect( len + 2*offset );
+    for ( ByteBuffer bb : new ByteBuffer[] { heap, direct } )
+    {
+      bb.position( offset );
+      bb.put( ab, 0, len );
+      bb.limit( offset + len );
+      bb.position( offset );
+    }
+
+    BitCoderContext ref = new BitCoderContext( ab );
+    BitCoderContext c1 = new BitCoderContext( heap );
+    BitCoderContext c2 = new BitCoderContext( direct );
+    for ( int i = 0; i < 100000; i+=13 )
+    {
+      int v = ref.decodeVarBits();
+      Assert.assertTrue( "varbits mismatch i=" + i, v == i && c1.decodeVarBits() == v && c2.decodeVarBits() == v );
+      v = ref.decodeBounded( i & 1023 );
+      Assert.assertTrue( "bounded mismatch i=" + i, c1.decodeBounded( i & 1023 ) == v && c2.decodeBounded( i & 1023 ) == v );
+      boolean bit = ref.decodeBit();
+      Assert.assertTrue( "bit mismatch i=" + i, c1.decodeBit() == bit && c2.decodeBit() == bit );
+      int pos = ref.getReadingBitPosition();
+      Assert.assertTrue( "position mismatch i=" + i, c1.getReadingBitPosition() == pos && c2.getReadingBitPosition() == pos );
+    }
+    Assert.assertTrue( "buffer position modified", heap.position() == offset && direct.position() == offset );
+  }
+
+  @Test
+  public void wordDecoderMatchesBitwiseReferenceTest()
+  {
+    // decode random data with the word-at-a-time decoders and
+    // with a bit-by-bit reference and expect identical results
+    Random rand = new Random( 4711 );
+    byte[] ab = new byte[100000];
+    rand.nextBytes( ab );
+    for ( int i = 0; i < ab.length; i += 3 + rand.nextInt( 10 ) )
+    {
+      ab[i] = 0; // some longer zero-runs for long varbit prefixes
+    }
+
+    BitCoderContext ctx = new BitCoderContext( ab );
+    BitCoderContext ref = new BitCoderContext( ab );
+    int op = 0;
+    while ( ref.getReadingBitPosition() < ( ab.length - 16 ) << 3 )
+    {
+      int value;
+      int expected;
+      switch ( rand.nextInt( 4 ) )
+      {
+        case 0:
+          value = ctx.decodeVarBits();
+          expected = refDecodeVarBits( ref );
+          break;
+        case 1:
+          int max = rand.nextInt( 3 ) == 0 ? ( 1 << rand.nextInt( 20 ) ) - 1 : rand.nextInt( 100000 );
+          value = ctx.decodeBounded( max );
+          expected = refDecodeBounded( ref, max );
+          break;
+        case 2:
+          int count = 1 + rand.nextInt( 30 );
+          value = ctx.decodeBits( count );
+          expected = 0;
+          for ( int i = 0; i < count; i++ )
+          {
+            if ( ref.decodeBit() ) expected |= 1 << i;
+          }
+          break;
+        default:
+          count = 1 + rand.nextInt( 30 );
+          value = ctx.decodeBitsReverse( count );
+          expected = 0;
+          for ( int i = 0; i < count; i++ )
+          {
+            expected = ( expected << 1 ) | ( ref.decodeBit() ? 1 : 0 );
+          }
+      }
+      Assert.assertTrue( "value mismatch at op=" + op + " " + value + "<>" + expected, value == expected );
+      Assert.assertTrue( "position mismatch at op=" + op, ctx.getReadingBitPosition() == ref.getReadingBitPosition() );
+      op++;
+    }
+  }
+
+  private static int refDecodeBounded( BitCoderContext ref, int max )
+  {
+    int value = 0;
+    int im = 1;
+    while ( ( value | im ) <= max )
+    {
+      if ( ref.decodeBit() ) value |= im;
+      im <<= 1;
+    }
+    return value;
+  }
+
+  private static int refDecodeVarBits( BitCoderContext ref )
+  {
+    int range = 0;
+    while ( !ref.decodeBit() )
+    {
+      range = 2 * range + 1;
+    }
+    return range + refDecodeBounded( ref, range );
+  }
 }
@@ -0,0 +1,88 @@
+package btools.util;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BlockCompressedStreamTest
+{
+  @Test
+  public void writeReadTest() throws Exception
+  {
+    File file = File.createTempFile( "blocktest", ".dat" );
+    try
+    {
+      int n = 100000;
+      Random rand = new Random( 12345 );
+      byte[] data = new byte[n];
+      for( int i=0; i<n; i++ )
+      {
+        data[i] = (byte)( rand.nextInt( 16 ) + ( i / 1000 ) );
+      }
+
+      BlockCompressedOutputStream os = new BlockCompressedOutputStream( new BufferedOutputStream( new FileOutputStream( file ) ), 4096 );
+      os.write( data, 0, 5000 );
+      for( int i=5000; i<n; i++ )
+      {
+        os.write( data[i] );
+      }
+      os.close();
+      Assert.assertTrue( "compressed", file.length() < n );
+      Assert.assertTrue( BlockCompressedInputStream.isBlockCompressed( file ) );
+
+      BlockCompressedInputStream is = BlockCompressedInputStream.open( file );
+      for( int i=0; i<n; i++ )
+      {
+        Assert.assertEquals( "byte " + i, data[i] & 0xff, is.read() );
+      }
+      Assert.assertEquals( -1, is.read() );
+      is.close();
+    }
+    finally
+    {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void diffCoderTest() throws Exception
+  {
+    File file = File.createTempFile( "blocktest", ".dat" );
+    try
+    {
+      DiffCoderDataOutputStream dos = new DiffCoderDataOutputStream( new BlockCompressedOutputStream( new FileOutputStream( file ), 1024 ) );
+      for( long i=0; i<10000; i++ )
+      {
+        dos.writeDiffed( i * i, 0 );
+        dos.writeUTF( "x" + i );
+      }
+      dos.close();
+
+      DiffCoderDataInputStream dis = new DiffCoderDataInputStream( BlockCompressedInputStream.open( file ) );
+      for( long i=0; i<10000; i++ )
+      {
+        Assert.assertEquals( i * i, dis.readDiffed( 0 ) );
+        Assert.assertEquals( "x" + i, dis.readUTF() );
+      }
+      try
+      {
+        dis.readByte();
+        Assert.fail( "EOFException expected" );
+      }
+      catch( EOFException e )
+      {
+        // expected
+      }
+      dis.close();
+    }
+    finally
+    {
+      file.delete();
+    }
+  }
+}
@@ -0,0 +1,57 @@
+package btools.util;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ExternalLongSorterTest
+{
+  @Test
+  public void inMemoryTest() throws Exception
+  {
+    sortTest( 10000, 100000 );
+  }
+
+  @Test
+  public void mergeTest() throws Exception
+  {
+    // 1000 pairs per chunk -> 300 runs -> an intermediate merge pass
+    sortTest( 300000, 1000 );
+  }
+
+  private void sortTest( int n, int chunkSize ) throws Exception
+  {
+    File tmpDir = new File( System.getProperty( "java.io.tmpdir" ) );
+    Random rand = new Random( 4711 );
+    long[] expected = new long[n];
+    ExternalLongSorter sorter = new ExternalLongSorter( tmpDir, chunkSize );
+    for( int i=0; i<n; i++ )
+    {
+      long key = rand.nextInt( n / 3 ) * 1000000007L;
+      long value = rand.nextInt( 1000 ) - 500;
+      expected[i] = key + value;
+      sorter.add( key, value );
+    }
+    Assert.assertEquals( n, sorter.size() );
+    sorter.finish();
+    Arrays.sort( expected );
+
+    long lastKey = Long.MIN_VALUE;
+    long lastValue = Long.MIN_VALUE;
+    for( int i=0; i<n; i++ )
+    {
+      Assert.assertTrue( "next " + i, sorter.next() );
+      long key = sorter.getKey();
+      long value = sorter.getValue();
+      Assert.assertTrue( "order", key > lastKey || ( key == lastKey && value >= lastValue ) );
+      Assert.assertEquals( expected[i], key + value );
+      lastKey = key;
+      lastValue = value;
+    }
+    Assert.assertFalse( sorter.next() );
+    sorter.close();
+  }
+}
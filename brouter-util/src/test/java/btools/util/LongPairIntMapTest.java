@@ -0,0 +1,44 @@
+package btools.util;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LongPairIntMapTest
+{
+  @Test
+  public void hashMapComparisonTest()
+  {
+    hashMapComparison( 100000, 100000, 1000 );
+    hashMapComparison( 100000, 100000, 1000000000L );
+  }
+
+  private void hashMapComparison( int mapsize, int trycount, long keyrange )
+  {
+    Random rand = new Random( 12345 );
+    HashMap<String,Integer> hmap = new HashMap<String,Integer>();
+    LongPairIntMap lmap = new LongPairIntMap();
+
+    for( int i=0; i<mapsize; i++ )
+    {
+      long k1 = (long)( rand.nextDouble()*keyrange );
+      long k2 = (long)( rand.nextDouble()*keyrange ) << 32;
+      int value = rand.nextInt();
+      boolean isNew = hmap.put( k1 + "_" + k2, Integer.valueOf( value ) ) == null;
+      Assert.assertEquals( "new key " + k1 + "/" + k2, isNew, lmap.put( k1, k2, value ) );
+    }
+    Assert.assertEquals( hmap.size(), lmap.size() );
+
+    for( int i=0; i<trycount; i++ )
+    {
+      long k1 = (long)( rand.nextDouble()*keyrange );
+      long k2 = (long)( rand.nextDouble()*keyrange ) << 32;
+      Integer vv = hmap.get( k1 + "_" + k2 );
+      int hvalue = vv == null ? -1 : vv.intValue();
+      Assert.assertEquals( "value for key " + k1 + "/" + k2, hvalue, lmap.get( k1, k2, -1 ) );
+      Assert.assertEquals( vv != null, lmap.contains( k1, k2 ) );
+    }
+  }
+}
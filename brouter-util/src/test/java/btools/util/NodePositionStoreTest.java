@@ -0,0 +1,82 @@
+package btools.util;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class NodePositionStoreTest
+{
+  @Test
+  public void hashMapComparisonTest() throws Exception
+  {
+    File file = File.createTempFile( "nodepositions", ".dat" );
+    try
+    {
+      Random rand = new Random( 12345 );
+      HashMap<Long,int[]> hmap = new HashMap<Long,int[]>();
+      NodePositionStore store = new NodePositionStore( file, 12 );
+      for( int i=0; i<10000; i++ )
+      {
+        long id = (long)( rand.nextDouble() * 100000 );
+        int[] pos = new int[] { rand.nextInt( 360000000 ), rand.nextInt( 180000000 ), rand.nextInt( 9000 ) - 500 };
+        hmap.put( Long.valueOf( id ), pos );
+        store.put( id, pos[0], pos[1], (short)pos[2] );
+      }
+      store.close();
+
+      // re-open, as a later stage would do
+      store = new NodePositionStore( file, 12 );
+      for( long id=0; id<110000; id++ )
+      {
+        int[] pos = hmap.get( Long.valueOf( id ) );
+        Assert.assertEquals( "contains " + id, pos != null, store.contains( id ) );
+        if ( pos == null )
+        {
+          Assert.assertEquals( -1, store.getILon( id ) );
+          continue;
+        }
+        Assert.assertEquals( pos[0], store.getILon( id ) );
+        Assert.assertEquals( pos[1], store.getILat( id ) );
+        Assert.assertEquals( pos[2], store.getSElev( id ) );
+      }
+      store.close();
+    }
+    finally
+    {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void createTruncatesTest() throws Exception
+  {
+    File file = File.createTempFile( "nodepositions", ".dat" );
+    try
+    {
+      NodePositionStore store = new NodePositionStore( file, 12 );
+      store.put( 4711L, 8000000, 50000000, (short)100 );
+      store.close();
+
+      store = new NodePositionStore( file, 12 );
+      store.put( 4712L, 8000000, 50000000, (short)100 );
+      store.remove( 4711L );
+      store.remove( 1L << 20 ); // not mapped
+      Assert.assertFalse( store.contains( 4711L ) );
+      Assert.assertTrue( store.contains( 4712L ) );
+      store.close();
+
+      // a new run must not see the positions of the previous one
+      store = new NodePositionStore( file, 12, true );
+      Assert.assertFalse( store.contains( 4712L ) );
+      Assert.assertEquals( -1, store.getILon( 4712L ) );
+      store.close();
+    }
+    finally
+    {
+      file.delete();
+    }
+  }
+}